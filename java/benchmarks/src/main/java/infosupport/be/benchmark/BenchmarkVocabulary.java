@@ -0,0 +1,67 @@
+package infosupport.be.benchmark;
+
+import infosupport.be.config.EmbeddingIndexConfig;
+import infosupport.be.index.KnnGraph;
+import infosupport.be.index.VectorIndex;
+import infosupport.be.persistence.EmbeddingCache;
+import infosupport.be.util.EmbeddingManager;
+import infosupport.be.util.EvictionPolicy;
+import infosupport.be.util.FlatEmbeddingStore;
+import infosupport.be.util.HashingEmbeddingModel;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Builds an {@link EmbeddingManager} the way the application wires it, but on top of the offline
+ * {@link HashingEmbeddingModel} and without the disk cache, so every run is reproducible.
+ */
+final class BenchmarkVocabulary {
+    private static final int EMBED_CHUNK = 10_000;
+
+    private BenchmarkVocabulary() {
+    }
+
+    /**
+     * @param indexType any {@code embedding.index.type}: exact, hnsw, ivf, int8 or pq
+     */
+    static EmbeddingManager manager(String indexType, int dimension) {
+        FlatEmbeddingStore store = new EmbeddingIndexConfig().embeddingStore(indexType);
+        VectorIndex index = EmbeddingIndexConfig.createIndex(store, EmbeddingIndexConfig.IndexOptions.defaults(indexType));
+        return new EmbeddingManager(new HashingEmbeddingModel(dimension, Duration.ZERO), store, index,
+                EmbeddingCache.disabled(), KnnGraph.disabled(), EvictionPolicy.unbounded(), 5, 64);
+    }
+
+    /**
+     * Embeds {@code count} synthetic words, in chunks so the model calls stay a realistic size.
+     */
+    static List<String> fill(EmbeddingManager manager, int count) {
+        List<String> words = words(count, 42);
+        for (int from = 0; from < words.size(); from += EMBED_CHUNK) {
+            manager.embedNewTerms(words.subList(from, Math.min(words.size(), from + EMBED_CHUNK)));
+        }
+        return words;
+    }
+
+    /**
+     * @return distinct pseudo-words of 4 to 10 lowercase letters
+     */
+    static List<String> words(int count, long seed) {
+        Random random = new Random(seed);
+        Set<String> words = new LinkedHashSet<>();
+        StringBuilder word = new StringBuilder();
+        while (words.size() < count) {
+            word.setLength(0);
+            int length = 4 + random.nextInt(7);
+            for (int i = 0; i < length; i++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words.add(word.toString());
+        }
+        return new ArrayList<>(words);
+    }
+}
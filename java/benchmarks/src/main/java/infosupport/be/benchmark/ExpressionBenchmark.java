@@ -0,0 +1,82 @@
+package infosupport.be.benchmark;
+
+import infosupport.be.util.EmbeddingCalculator;
+import infosupport.be.util.EmbeddingManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end {@link EmbeddingCalculator#calculate} of the console examples: plan lookup,
+ * linear combination and top-5 search. All terms are embedded up front, so no model call is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Benchmark)
+public class ExpressionBenchmark {
+    private static final List<String> EXPRESSIONS = List.of(
+            "king - (man - woman)",
+            "sushi - (japan - germany)",
+            "computer - (cat - mouse)",
+            "\"Albert Einstein\" - (genius - idiot)",
+            "paris - france + italy",
+            "walked - walk + swim",
+            "bigger - big + small",
+            "queen + man - woman");
+    private static final int EXPRESSION_COUNT = 8;
+
+    @Param({"10000"})
+    private int terms;
+
+    @Param({"1536"})
+    private int dimension;
+
+    @Param({"exact"})
+    private String index;
+
+    private EmbeddingManager manager;
+    private EmbeddingCalculator calculator;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        manager = BenchmarkVocabulary.manager(index, dimension);
+        BenchmarkVocabulary.fill(manager, terms);
+        calculator = new EmbeddingCalculator(manager);
+        // Embeds the expression terms and compiles the plans
+        calculator.calculateAll(EXPRESSIONS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public List<Map.Entry<String, Double>> calculate() {
+        return calculator.calculate(EXPRESSIONS.get(next++ % EXPRESSIONS.size()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EXPRESSION_COUNT)
+    public List<List<Map.Entry<String, Double>>> calculateAll() {
+        return calculator.calculateAll(EXPRESSIONS);
+    }
+}
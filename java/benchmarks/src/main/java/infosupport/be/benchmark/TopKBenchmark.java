@@ -0,0 +1,80 @@
+package infosupport.be.benchmark;
+
+import infosupport.be.util.EmbeddingManager;
+import infosupport.be.util.EmbeddingVector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EmbeddingManager#findTopKClosest} over synthetic vocabularies, one query at a time
+ * and as a batch of {@value #QUERIES} queries. Other indexes can be compared with e.g. {@code -p index=exact,hnsw,int8}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules=jdk.incubator.vector", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class TopKBenchmark {
+    private static final int QUERIES = 64;
+
+    @Param({"1000", "10000", "100000"})
+    private int terms;
+
+    @Param({"384"})
+    private int dimension;
+
+    @Param({"exact"})
+    private String index;
+
+    private EmbeddingManager manager;
+    private List<EmbeddingVector> queries;
+    private List<Set<String>> noExclusions;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        manager = BenchmarkVocabulary.manager(index, dimension);
+        BenchmarkVocabulary.fill(manager, terms);
+        // Queries are words outside the vocabulary, embedded by the same model
+        queries = new ArrayList<>(QUERIES);
+        for (String word : BenchmarkVocabulary.words(QUERIES, 7)) {
+            queries.add(manager.embedNewTerm(word));
+        }
+        noExclusions = Collections.nCopies(QUERIES, Set.of());
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public List<Map.Entry<String, Double>> findTopKClosest() {
+        return manager.findTopKClosest(queries.get(next++ & (QUERIES - 1)), 5);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public List<List<Map.Entry<String, Double>>> findTopKClosestBatch() {
+        return manager.findTopKClosestAll(queries, 5, noExclusions);
+    }
+}
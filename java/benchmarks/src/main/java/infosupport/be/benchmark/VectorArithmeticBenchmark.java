@@ -0,0 +1,70 @@
+package infosupport.be.benchmark;
+
+import infosupport.be.util.EmbeddingVector;
+import infosupport.be.util.SimilarityMetric;
+import infosupport.be.util.VectorMath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Element-wise arithmetic and similarity of single vectors, at common embedding sizes
+ * (all-MiniLM-L6-v2, text-embedding-ada-002 and text-embedding-3-large).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class VectorArithmeticBenchmark {
+
+    @Param({"384", "1536", "3072"})
+    private int dimension;
+
+    private EmbeddingVector a;
+    private EmbeddingVector b;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        a = new EmbeddingVector(randomVector(random));
+        b = new EmbeddingVector(randomVector(random));
+    }
+
+    @Benchmark
+    public EmbeddingVector plus() {
+        return a.plus(b);
+    }
+
+    @Benchmark
+    public EmbeddingVector minus() {
+        return a.minus(b);
+    }
+
+    @Benchmark
+    public double cosineSimilarity() {
+        double dot = VectorMath.dot(a.vector(), b.vector());
+        return SimilarityMetric.COSINE.similarity(
+                SimilarityMetric.COSINE.rankScore(dot, VectorMath.norm(a.vector()), VectorMath.norm(b.vector())));
+    }
+
+    private float[] randomVector(Random random) {
+        float[] vector = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+}
@@ -1,20 +1,27 @@
 package infosupport.be;
 
+import infosupport.be.evaluation.AnalogyEvaluator;
 import infosupport.be.plot.EmbeddingPlotter;
+import infosupport.be.plot.EmbeddingProjector;
 import infosupport.be.util.EmbeddingCalculator;
 import infosupport.be.util.EmbeddingManager;
 import infosupport.be.util.EmbeddingVector;
+import infosupport.be.util.VocabularyLoader;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.Resource;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Scanner;
 
@@ -26,15 +33,48 @@ public class ModuleOneApplication implements CommandLineRunner {
     private final EmbeddingManager embeddingManager;
     private final EmbeddingCalculator embeddingCalculator;
     private final EmbeddingPlotter embeddingPlotter;
+    private final VocabularyLoader vocabularyLoader;
+    private final AnalogyEvaluator analogyEvaluator;
+
+    @Value("${embedding.index.report-on-startup:false}")
+    private boolean reportIndexOnStartup;
+
+    @Value("${embedding.vocabulary.file:}")
+    private String vocabularyFile;
+
+    @Value("${embedding.analogies.evaluate-on-startup:false}")
+    private boolean evaluateAnalogiesOnStartup;
+
+    @Value("${embedding.analogies.file:classpath:analogies/questions-words.txt}")
+    private Resource analogyFile;
+
+    @Value("${embedding.plot.overview:none}")
+    private String overviewMode;
+
+    @Value("${embedding.server.enabled:false}")
+    private boolean serving;
 
     public static void main(String[] args) {
-        SpringApplication.run(ModuleOneApplication.class, args).close();
+        ConfigurableApplicationContext context = SpringApplication.run(ModuleOneApplication.class, args);
+        // When serving, keep the context (and its web server) running until the process is stopped
+        if (!context.getEnvironment().getProperty("embedding.server.enabled", Boolean.class, false)) {
+            context.close();
+        }
     }
 
     @Override
     public void run(String... args) {
         // 1) Initialize some general terms
         embeddingManager.embedNewTerms(initialTerms);
+        if (!vocabularyFile.isBlank()) {
+            vocabularyLoader.load(Path.of(vocabularyFile));
+        }
+        if (reportIndexOnStartup) {
+            log.info("\n{}", embeddingManager.evaluateIndex(200, 5, 16, 32, 64, 128, 256).format());
+        }
+        if (evaluateAnalogiesOnStartup) {
+            log.info("\n{}", analogyEvaluator.evaluate(analogyFile).format());
+        }
 
         // 2) Fluent API: Perform embedding arithmetic
         EmbeddingVector result = embed("king").minus(
@@ -59,7 +99,12 @@ public class ModuleOneApplication implements CommandLineRunner {
         //      sushi - (japan - germany) // What's a typical German dish?
         //      computer - (cat - mouse) // If the computer were a cat, who would be the mouse?
         //      "Albert Einstein" - (genius - idiot) // Assuming Einstein fits best for genius, who fits for idiot?
-        runInteractiveConsole();
+        // When serving, the same arithmetic is available over HTTP instead, see EmbeddingController
+        if (serving) {
+            log.info("Serving embedding arithmetic on /api/embeddings, the interactive console is disabled");
+        } else {
+            runInteractiveConsole();
+        }
 
         // B) Plot words on a 2D canvas
         // See https://lamyiowce.github.io/word2viz/
@@ -72,6 +117,11 @@ public class ModuleOneApplication implements CommandLineRunner {
                 "waiter", "waitress", "actor", "actress", "steward", "stewardess"
         );
         plotWordsOnCanvas(words, "he", "she", "poor", "rich");
+
+        // C) Plot the whole vocabulary on its principal components (or a random projection)
+        if (!overviewMode.isBlank() && !"none".equalsIgnoreCase(overviewMode.trim())) {
+            plotVocabularyOverview(EmbeddingProjector.Mode.fromName(overviewMode));
+        }
     }
 
     // Method to shorten embedding a term, to improve fluency
@@ -140,6 +190,15 @@ public class ModuleOneApplication implements CommandLineRunner {
         log.info("Plot saved to {}", outputPath.toAbsolutePath());
     }
 
+    /**
+     * Plots every embedded term on two unsupervised axes.
+     */
+    public void plotVocabularyOverview(EmbeddingProjector.Mode mode) {
+        Path outputPath = createOutputPath("overview", mode.name().toLowerCase(Locale.ROOT));
+        embeddingPlotter.plotOverviewToImage(mode, 1600, 1200, outputPath);
+        log.info("Overview plot saved to {}", outputPath.toAbsolutePath());
+    }
+
     /**
      * Embeds axis terms, creates the axis vectors (axisX, axisY),
      * embeds the given words, then plots everything to a PNG file.
@@ -194,7 +253,7 @@ public class ModuleOneApplication implements CommandLineRunner {
         return Paths.get("plots", fileName);
     }
 
-    // TODO: load in English dictionary instead?
+    // For a full English dictionary, point embedding.vocabulary.file at a word list (one word per line)
     private final List<String> initialTerms = List.of("king", "queen", "man", "woman", "prince", "princess",
             "boy", "girl", "nurse", "doctor", "waiter", "waitress", "actor", "actress", "teacher", "ceo", "secretary",
             "plumber", "nanny", "programmer", "homemaker", "painter", "dancer", "singer", "prostitute", "thief",
@@ -0,0 +1,47 @@
+package infosupport.be.config;
+
+import infosupport.be.index.KnnGraph;
+import infosupport.be.index.VectorIndex;
+import infosupport.be.persistence.EmbeddingCache;
+import infosupport.be.util.FlatEmbeddingStore;
+import infosupport.be.util.HashingEmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Path;
+
+@Configuration
+public class EmbeddingCacheConfig {
+
+    @Bean
+    public EmbeddingCache embeddingCache(
+            EmbeddingModel embeddingModel,
+            @Value("${embedding.cache.enabled:true}") boolean enabled,
+            @Value("${embedding.cache.directory:embedding-cache}") Path directory,
+            @Value("${spring.ai.openai.embedding.options.model:default}") String modelName
+    ) {
+        // Vectors of the local stand-in model must never end up in the remote model's cache file
+        String cacheName = embeddingModel instanceof HashingEmbeddingModel local ? local.modelName() : modelName;
+        return enabled ? new EmbeddingCache(directory, cacheName) : EmbeddingCache.disabled();
+    }
+
+    @Bean
+    public KnnGraph knnGraph(
+            FlatEmbeddingStore embeddingStore,
+            VectorIndex vectorIndex,
+            EmbeddingCache embeddingCache,
+            @Value("${embedding.knn-graph.enabled:false}") boolean enabled,
+            @Value("${embedding.knn-graph.k:10}") int k
+    ) {
+        if (!enabled) {
+            return KnnGraph.disabled();
+        }
+        // The graph belongs to the cached vectors, so it lives next to the cache file (in memory only without a cache)
+        Path file = embeddingCache.isEnabled()
+                ? embeddingCache.file().resolveSibling(embeddingCache.file().getFileName() + ".knn")
+                : null;
+        return new KnnGraph(embeddingStore, vectorIndex.metric(), k, file);
+    }
+}
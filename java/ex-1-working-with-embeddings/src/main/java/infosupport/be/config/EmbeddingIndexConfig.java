@@ -0,0 +1,124 @@
+package infosupport.be.config;
+
+import infosupport.be.index.ExactIndex;
+import infosupport.be.index.HnswIndex;
+import infosupport.be.index.IvfIndex;
+import infosupport.be.index.QuantizedIndex;
+import infosupport.be.index.VectorIndex;
+import infosupport.be.util.EvictionPolicy;
+import infosupport.be.util.FlatEmbeddingStore;
+import infosupport.be.util.SimilarityMetric;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Locale;
+
+@Slf4j
+@Configuration
+public class EmbeddingIndexConfig {
+
+    // Defaults of the index properties, shared with the benchmarks through IndexOptions.defaults
+    public static final String DEFAULT_METRIC = "cosine";
+    public static final int DEFAULT_HNSW_M = 16;
+    public static final int DEFAULT_HNSW_EF_CONSTRUCTION = 100;
+    public static final int DEFAULT_HNSW_EF_SEARCH = 64;
+    public static final int DEFAULT_HNSW_EXACT_THRESHOLD = 5000;
+    public static final int DEFAULT_RERANK_FACTOR = 10;
+    public static final int DEFAULT_QUANTIZED_TRAINING_ROWS = 5000;
+    public static final int DEFAULT_PQ_SUBSPACE_DIMENSION = 4;
+    public static final int DEFAULT_IVF_PARTITIONS = 0;
+    public static final int DEFAULT_IVF_PROBES = 8;
+    public static final int DEFAULT_IVF_TRAINING_ROWS = 5000;
+    public static final double DEFAULT_IVF_REBUILD_GROWTH = 2.0;
+
+    /**
+     * The {@code embedding.index.*} settings, see application.properties.
+     */
+    public record IndexOptions(String metric, String type,
+                               int hnswM, int hnswEfConstruction, int hnswEfSearch, int hnswExactThreshold,
+                               int rerankFactor, int quantizedTrainingRows, int pqSubspaceDimension,
+                               int ivfPartitions, int ivfProbes, int ivfTrainingRows, double ivfRebuildGrowth) {
+
+        /**
+         * @return the defaults of application.properties for an index of this type
+         */
+        public static IndexOptions defaults(String type) {
+            return new IndexOptions(DEFAULT_METRIC, type,
+                    DEFAULT_HNSW_M, DEFAULT_HNSW_EF_CONSTRUCTION, DEFAULT_HNSW_EF_SEARCH, DEFAULT_HNSW_EXACT_THRESHOLD,
+                    DEFAULT_RERANK_FACTOR, DEFAULT_QUANTIZED_TRAINING_ROWS, DEFAULT_PQ_SUBSPACE_DIMENSION,
+                    DEFAULT_IVF_PARTITIONS, DEFAULT_IVF_PROBES, DEFAULT_IVF_TRAINING_ROWS, DEFAULT_IVF_REBUILD_GROWTH);
+        }
+    }
+
+    @Bean
+    public FlatEmbeddingStore embeddingStore(@Value("${embedding.index.type:exact}") String indexType) {
+        // Quantized indexes only re-rank a few rows at full precision, so those can live off-heap
+        return new FlatEmbeddingStore(isQuantized(indexType));
+    }
+
+    @Bean
+    public VectorIndex vectorIndex(
+            FlatEmbeddingStore embeddingStore,
+            @Value("${embedding.similarity.metric:" + DEFAULT_METRIC + "}") String metricName,
+            @Value("${embedding.index.type:exact}") String indexType,
+            @Value("${embedding.index.hnsw.m:" + DEFAULT_HNSW_M + "}") int m,
+            @Value("${embedding.index.hnsw.ef-construction:" + DEFAULT_HNSW_EF_CONSTRUCTION + "}") int efConstruction,
+            @Value("${embedding.index.hnsw.ef-search:" + DEFAULT_HNSW_EF_SEARCH + "}") int efSearch,
+            @Value("${embedding.index.hnsw.exact-threshold:" + DEFAULT_HNSW_EXACT_THRESHOLD + "}") int exactThreshold,
+            @Value("${embedding.index.quantized.rerank-factor:" + DEFAULT_RERANK_FACTOR + "}") int rerankFactor,
+            @Value("${embedding.index.quantized.training-rows:" + DEFAULT_QUANTIZED_TRAINING_ROWS + "}") int trainingRows,
+            @Value("${embedding.index.quantized.pq-subspace-dimension:" + DEFAULT_PQ_SUBSPACE_DIMENSION + "}") int pqSubspaceDimension,
+            @Value("${embedding.index.ivf.partitions:" + DEFAULT_IVF_PARTITIONS + "}") int ivfPartitions,
+            @Value("${embedding.index.ivf.nprobe:" + DEFAULT_IVF_PROBES + "}") int ivfProbes,
+            @Value("${embedding.index.ivf.training-rows:" + DEFAULT_IVF_TRAINING_ROWS + "}") int ivfTrainingRows,
+            @Value("${embedding.index.ivf.rebuild-growth:" + DEFAULT_IVF_REBUILD_GROWTH + "}") double ivfRebuildGrowth,
+            @Value("${embedding.store.max-entries:0}") int maxEntries
+    ) {
+        return createIndex(embeddingStore, new IndexOptions(metricName, indexType,
+                m, efConstruction, efSearch, exactThreshold, rerankFactor,
+                trainingRowsWithin("quantized", trainingRows, maxEntries), pqSubspaceDimension,
+                ivfPartitions, ivfProbes, trainingRowsWithin("ivf", ivfTrainingRows, maxEntries), ivfRebuildGrowth));
+    }
+
+    /**
+     * Builds the index the {@link #vectorIndex} bean would build with these settings.
+     */
+    public static VectorIndex createIndex(FlatEmbeddingStore embeddingStore, IndexOptions options) {
+        SimilarityMetric metric = SimilarityMetric.fromName(options.metric());
+        return switch (options.type().trim().toLowerCase(Locale.ROOT)) {
+            case "exact" -> new ExactIndex(embeddingStore, metric);
+            case "hnsw" -> new HnswIndex(embeddingStore, metric, options.hnswM(), options.hnswEfConstruction(),
+                    options.hnswEfSearch(), options.hnswExactThreshold());
+            case "ivf" -> new IvfIndex(embeddingStore, metric, options.ivfPartitions(), options.ivfProbes(),
+                    options.ivfTrainingRows(), options.ivfRebuildGrowth());
+            case "int8" -> QuantizedIndex.int8(embeddingStore, metric, options.rerankFactor(), options.quantizedTrainingRows());
+            case "pq" -> QuantizedIndex.productQuantized(embeddingStore, metric, options.pqSubspaceDimension(),
+                    options.rerankFactor(), options.quantizedTrainingRows());
+            default -> throw new IllegalArgumentException("Unknown embedding.index.type: " + options.type());
+        };
+    }
+
+    @Bean
+    public EvictionPolicy evictionPolicy(@Value("${embedding.store.eviction:tinylfu}") String eviction,
+                                         @Value("${embedding.store.max-entries:0}") int maxEntries,
+                                         @Value("${embedding.store.max-bytes:0}") long maxBytes) {
+        return new EvictionPolicy(EvictionPolicy.Kind.fromName(eviction), maxEntries, maxBytes);
+    }
+
+    // A store bounded to fewer terms than the training rows would never train the index, and stay exact
+    private static int trainingRowsWithin(String indexType, int trainingRows, int maxEntries) {
+        if (maxEntries > 0 && trainingRows > maxEntries) {
+            log.warn("embedding.index.{}.training-rows={} exceeds embedding.store.max-entries={}, training at {} terms instead",
+                    indexType, trainingRows, maxEntries, maxEntries);
+            return maxEntries;
+        }
+        return trainingRows;
+    }
+
+    private static boolean isQuantized(String indexType) {
+        String type = indexType.trim().toLowerCase(Locale.ROOT);
+        return type.equals("int8") || type.equals("pq");
+    }
+}
@@ -0,0 +1,33 @@
+package infosupport.be.config;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.env.EnvironmentPostProcessor;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.MapPropertySource;
+
+import java.util.Map;
+
+/**
+ * With {@code embedding.local.enabled=true}, leaves out the OpenAI auto-configuration, so the module starts
+ * without an API key and only {@link LocalEmbeddingModelConfig}'s model is created. A {@code @Primary} bean
+ * alone is not enough: the OpenAI models would still be created, and they refuse to start without a key.
+ * This module only uses OpenAI for embeddings, so nothing else is lost.
+ * <p>
+ * Registered in {@code META-INF/spring.factories}.
+ */
+public class LocalEmbeddingEnvironmentPostProcessor implements EnvironmentPostProcessor {
+    private static final String OPENAI_AUTO_CONFIGURATION = "org.springframework.ai.autoconfigure.openai.OpenAiAutoConfiguration";
+
+    @Override
+    public void postProcessEnvironment(ConfigurableEnvironment environment, SpringApplication application) {
+        if (!environment.getProperty("embedding.local.enabled", Boolean.class, false)) {
+            return;
+        }
+        String excluded = environment.getProperty("spring.autoconfigure.exclude", "");
+        // First, so it wins over the OpenAI properties in application.properties
+        environment.getPropertySources().addFirst(new MapPropertySource("localEmbedding", Map.of(
+                "spring.autoconfigure.exclude", excluded.isBlank() ? OPENAI_AUTO_CONFIGURATION : excluded + "," + OPENAI_AUTO_CONFIGURATION,
+                "spring.ai.openai.embedding.enabled", "false",
+                "spring.ai.embedding.transformer.enabled", "false")));
+    }
+}
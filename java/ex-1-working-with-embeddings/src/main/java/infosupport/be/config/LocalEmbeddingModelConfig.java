@@ -0,0 +1,29 @@
+package infosupport.be.config;
+
+import infosupport.be.util.HashingEmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import java.time.Duration;
+
+/**
+ * Replaces the remote embedding model with {@link HashingEmbeddingModel} when
+ * {@code embedding.local.enabled=true}, so the module runs offline and reproducibly.
+ */
+@Configuration
+@ConditionalOnProperty(name = "embedding.local.enabled", havingValue = "true")
+public class LocalEmbeddingModelConfig {
+
+    @Bean
+    @Primary
+    public EmbeddingModel localEmbeddingModel(
+            @Value("${embedding.local.dimension:1536}") int dimension,
+            @Value("${embedding.local.latency-ms:0}") long latencyMillis
+    ) {
+        return new HashingEmbeddingModel(dimension, Duration.ofMillis(latencyMillis));
+    }
+}
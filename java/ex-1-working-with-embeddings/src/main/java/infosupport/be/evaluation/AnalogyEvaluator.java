@@ -0,0 +1,199 @@
+package infosupport.be.evaluation;
+
+import infosupport.be.index.VectorIndex;
+import infosupport.be.util.EmbeddingCalculator;
+import infosupport.be.util.EmbeddingManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Runs a word analogy file in the format of the word2vec {@code questions-words.txt} test set through
+ * the {@link EmbeddingCalculator}: a {@code : section} line starts a section, and every other line
+ * {@code a b c d} asks whether {@code b - a + c} lands on {@code d}.
+ * <p>
+ * The file is streamed twice. The first pass collects the distinct words and embeds them in
+ * batches, so the second pass only measures the arithmetic and the search. The second pass
+ * evaluates the questions in chunks on a pool with one thread per core and times each question.
+ */
+@Component
+@Slf4j
+public class AnalogyEvaluator {
+    private static final int CHUNK_SIZE = 1024;
+
+    private final EmbeddingManager embeddingManager;
+    private final EmbeddingCalculator embeddingCalculator;
+    private final VectorIndex vectorIndex;
+    private final int parallelism;
+
+    public AnalogyEvaluator(EmbeddingManager embeddingManager, EmbeddingCalculator embeddingCalculator,
+                            VectorIndex vectorIndex,
+                            @Value("${embedding.analogies.parallelism:0}") int parallelism) {
+        this.embeddingManager = embeddingManager;
+        this.embeddingCalculator = embeddingCalculator;
+        this.vectorIndex = vectorIndex;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    private record Question(String section, String a, String b, String c, String expected) {
+
+        String expression() {
+            return b + " - " + a + " + " + c;
+        }
+    }
+
+    private record Outcome(String section, boolean hitAt1, boolean hitAt5, long nanos, boolean failed) {
+    }
+
+    public AnalogyReport evaluate(Resource analogies) {
+        // 1) Embed every word of the file up front, in batches
+        Set<String> words = new LinkedHashSet<>();
+        int[] skipped = new int[1];
+        stream(analogies, question -> words.addAll(List.of(question.a(), question.b(), question.c(), question.expected())),
+                () -> skipped[0]++);
+        long embedStart = System.nanoTime();
+        embeddingManager.ensureEmbedded(words);
+        log.info("Embedded the {} distinct words of {} in {} ms", words.size(), analogies.getFilename(),
+                (System.nanoTime() - embedStart) / 1_000_000);
+
+        // 2) Evaluate the questions chunk by chunk on all cores
+        List<Outcome> outcomes = new ArrayList<>();
+        List<Question> chunk = new ArrayList<>(CHUNK_SIZE);
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newFixedThreadPool(parallelism)) {
+            stream(analogies, question -> {
+                chunk.add(question);
+                if (chunk.size() == CHUNK_SIZE) {
+                    outcomes.addAll(evaluateChunk(executor, chunk));
+                    chunk.clear();
+                }
+            }, () -> {
+            });
+            outcomes.addAll(evaluateChunk(executor, chunk));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return report(outcomes, skipped[0], seconds);
+    }
+
+    private List<Outcome> evaluateChunk(ExecutorService executor, List<Question> chunk) {
+        List<Future<Outcome>> futures = new ArrayList<>(chunk.size());
+        for (Question question : chunk) {
+            futures.add(executor.submit(() -> evaluate(question)));
+        }
+        List<Outcome> outcomes = new ArrayList<>(chunk.size());
+        for (Future<Outcome> future : futures) {
+            try {
+                outcomes.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Analogy evaluation interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Analogy evaluation failed", e.getCause());
+            }
+        }
+        return outcomes;
+    }
+
+    private Outcome evaluate(Question question) {
+        long start = System.nanoTime();
+        try {
+            List<Map.Entry<String, Double>> results = embeddingCalculator.calculate(question.expression());
+            long nanos = System.nanoTime() - start;
+            int rank = -1;
+            for (int i = 0; i < results.size() && rank < 0; i++) {
+                if (results.get(i).getKey().equalsIgnoreCase(question.expected())) {
+                    rank = i;
+                }
+            }
+            return new Outcome(question.section(), rank == 0, rank >= 0, nanos, false);
+        } catch (IllegalArgumentException e) {
+            log.debug("Skipping analogy '{}': {}", question.expression(), e.getMessage());
+            return new Outcome(question.section(), false, false, 0, true);
+        }
+    }
+
+    private AnalogyReport report(List<Outcome> outcomes, int skipped, double seconds) {
+        long[] latencies = outcomes.stream().filter(o -> !o.failed()).mapToLong(Outcome::nanos).sorted().toArray();
+        int evaluated = latencies.length;
+        int hitsAt1 = 0;
+        int hitsAt5 = 0;
+        Map<String, int[]> sections = new LinkedHashMap<>();
+        for (Outcome outcome : outcomes) {
+            if (outcome.failed()) {
+                continue;
+            }
+            int[] section = sections.computeIfAbsent(outcome.section(), s -> new int[2]);
+            section[1]++;
+            if (outcome.hitAt1()) {
+                hitsAt1++;
+                section[0]++;
+            }
+            if (outcome.hitAt5()) {
+                hitsAt5++;
+            }
+        }
+        Map<String, Double> sectionAccuracy = new LinkedHashMap<>();
+        sections.forEach((name, counts) -> sectionAccuracy.put(name, counts[0] / (double) counts[1]));
+
+        return new AnalogyReport(vectorIndex.name(), vectorIndex.metric().name().toLowerCase(Locale.ROOT),
+                evaluated, skipped + outcomes.size() - evaluated,
+                hitsAt1 / (double) Math.max(1, evaluated), hitsAt5 / (double) Math.max(1, evaluated),
+                evaluated / Math.max(seconds, 1e-9), percentile(latencies, 0.50), percentile(latencies, 0.99),
+                sectionAccuracy);
+    }
+
+    private static double percentile(long[] sortedNanos, double fraction) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sortedNanos.length) - 1;
+        return sortedNanos[Math.clamp(index, 0, sortedNanos.length - 1)] / 1e6;
+    }
+
+    /**
+     * Reads the file line by line, handing every well-formed question to the consumer.
+     */
+    private static void stream(Resource analogies, Consumer<Question> questions, Runnable malformed) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(analogies.getInputStream(), StandardCharsets.UTF_8))) {
+            String section = "";
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.startsWith(":")) {
+                    section = line.substring(1).strip();
+                    continue;
+                }
+                String[] words = line.toLowerCase(Locale.ROOT).split("\\s+");
+                if (words.length != 4) {
+                    malformed.run();
+                    continue;
+                }
+                questions.accept(new Question(section, words[0], words[1], words[2], words[3]));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read analogy file " + analogies.getDescription(), e);
+        }
+    }
+}
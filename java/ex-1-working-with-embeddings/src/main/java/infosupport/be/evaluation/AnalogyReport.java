@@ -0,0 +1,34 @@
+package infosupport.be.evaluation;
+
+import java.util.Map;
+
+/**
+ * Outcome of an analogy run: answer quality next to the cost of getting it.
+ *
+ * @param index             index that answered the queries
+ * @param metric            similarity metric used for ranking
+ * @param questions         questions that were evaluated
+ * @param skipped           malformed lines, or questions that could not be evaluated
+ * @param accuracyAt1       fraction of questions whose expected answer ranked first
+ * @param accuracyAt5       fraction of questions whose expected answer is in the top 5
+ * @param queriesPerSecond  evaluated questions per second of wall-clock time
+ * @param p50Millis         median latency of one question
+ * @param p99Millis         99th percentile latency of one question
+ * @param sectionAccuracyAt1 accuracy@1 per section of the file, in file order
+ */
+public record AnalogyReport(String index, String metric, int questions, int skipped,
+                            double accuracyAt1, double accuracyAt5,
+                            double queriesPerSecond, double p50Millis, double p99Millis,
+                            Map<String, Double> sectionAccuracyAt1) {
+
+    public String format() {
+        StringBuilder table = new StringBuilder();
+        table.append(String.format("Analogies with '%s' index and %s similarity: %d questions (%d skipped)%n",
+                index, metric, questions, skipped));
+        table.append(String.format("  acc@1 %.3f   acc@5 %.3f   %.1f queries/s   p50 %.3f ms   p99 %.3f ms%n",
+                accuracyAt1, accuracyAt5, queriesPerSecond, p50Millis, p99Millis));
+        sectionAccuracyAt1.forEach((section, accuracy) ->
+                table.append(String.format("  %-28s acc@1 %.3f%n", section, accuracy)));
+        return table.toString();
+    }
+}
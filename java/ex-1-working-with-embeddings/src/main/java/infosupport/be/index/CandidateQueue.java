@@ -0,0 +1,72 @@
+package infosupport.be.index;
+
+import java.util.Arrays;
+
+/**
+ * Unbounded max-heap of (row, score) pairs, used as the candidate frontier of graph searches.
+ * The best scoring candidate is always at the root.
+ */
+class CandidateQueue {
+    private int[] rows;
+    private double[] scores;
+    private int size;
+
+    CandidateQueue(int initialCapacity) {
+        this.rows = new int[Math.max(4, initialCapacity)];
+        this.scores = new double[rows.length];
+    }
+
+    void push(int row, double score) {
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size << 1);
+            scores = Arrays.copyOf(scores, size << 1);
+        }
+        int index = size++;
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (scores[parent] >= score) {
+                break;
+            }
+            rows[index] = rows[parent];
+            scores[index] = scores[parent];
+            index = parent;
+        }
+        rows[index] = row;
+        scores[index] = score;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int peekRow() {
+        return rows[0];
+    }
+
+    double peekScore() {
+        return scores[0];
+    }
+
+    void pop() {
+        int lastRow = rows[--size];
+        double lastScore = scores[size];
+        int index = 0;
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && scores[child + 1] > scores[child]) {
+                child++;
+            }
+            if (scores[child] <= lastScore) {
+                break;
+            }
+            rows[index] = rows[child];
+            scores[index] = scores[child];
+            index = child;
+        }
+        rows[index] = lastRow;
+        scores[index] = lastScore;
+    }
+}
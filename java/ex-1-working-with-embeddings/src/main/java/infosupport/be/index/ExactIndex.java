@@ -0,0 +1,105 @@
+package infosupport.be.index;
+
+import infosupport.be.util.FlatEmbeddingStore;
+import infosupport.be.util.SimilarityMetric;
+import infosupport.be.util.TopKHeap;
+import infosupport.be.util.TopKSearch;
+
+import java.util.BitSet;
+
+/**
+ * Brute-force "index": every query scans the whole store with {@link TopKSearch}.
+ * Always exact, and the reference the approximate indexes are measured against.
+ */
+public class ExactIndex implements VectorIndex {
+    private static final int OFF_HEAP_BLOCK_ROWS = 4096;
+
+    private final FlatEmbeddingStore store;
+    private final SimilarityMetric metric;
+
+    public ExactIndex(FlatEmbeddingStore store, SimilarityMetric metric) {
+        this.store = store;
+        this.metric = metric;
+    }
+
+    @Override
+    public String name() {
+        return "exact";
+    }
+
+    @Override
+    public SimilarityMetric metric() {
+        return metric;
+    }
+
+    @Override
+    public void add(int row) {
+        // Nothing to maintain, the scan always sees every row of the store
+    }
+
+    @Override
+    public void remove(int row) {
+        // Nothing to maintain, free rows are excluded from every scan
+    }
+
+    @Override
+    public TopKHeap search(float[] query, int k, BitSet excluded) {
+        BitSet skip = store.excludeFree(excluded);
+        if (store.isOffHeap()) {
+            return searchAllOffHeap(new float[][]{query}, k, new BitSet[]{skip})[0];
+        }
+        return store.read((matrix, norms, rows, dimension) ->
+                TopKSearch.search(matrix, norms, rows, dimension, query, k, skip, metric));
+    }
+
+    /**
+     * Scores the whole batch in one blocked pass over the store, see {@link TopKSearch#searchAll}.
+     */
+    @Override
+    public TopKHeap[] searchAll(float[][] queries, int k, BitSet[] excluded) {
+        BitSet[] skip = excludeFree(queries.length, excluded);
+        if (store.isOffHeap()) {
+            return searchAllOffHeap(queries, k, skip);
+        }
+        return store.read((matrix, norms, rows, dimension) ->
+                TopKSearch.searchAll(matrix, norms, rows, dimension, queries, k, skip, metric));
+    }
+
+    private BitSet[] excludeFree(int queries, BitSet[] excluded) {
+        BitSet[] result = new BitSet[queries];
+        for (int q = 0; q < queries; q++) {
+            result[q] = store.excludeFree(excluded == null ? null : excluded[q]);
+        }
+        return result;
+    }
+
+    /**
+     * Copies the off-heap rows out block by block and scans each block like a heap matrix.
+     */
+    private TopKHeap[] searchAllOffHeap(float[][] queries, int k, BitSet[] excluded) {
+        int dimension = Math.max(store.dimension(), 0);
+        float[] block = new float[OFF_HEAP_BLOCK_ROWS * dimension];
+        float[] norms = new float[OFF_HEAP_BLOCK_ROWS];
+        TopKHeap[] results = new TopKHeap[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            results[q] = new TopKHeap(k);
+        }
+        int copied;
+        for (int from = 0; (copied = store.copyRows(from, OFF_HEAP_BLOCK_ROWS, block, norms)) > 0; from += copied) {
+            BitSet[] blockExcluded = new BitSet[queries.length];
+            for (int q = 0; q < queries.length; q++) {
+                BitSet skip = excluded == null ? null : excluded[q];
+                blockExcluded[q] = skip == null ? null : skip.get(from, from + copied);
+            }
+            TopKHeap[] partial = TopKSearch.searchAll(block, norms, copied, dimension, queries, k, blockExcluded, metric);
+            for (int q = 0; q < queries.length; q++) {
+                int[] rows = partial[q].sortedRows();
+                double[] scores = partial[q].sortedScores();
+                for (int i = 0; i < rows.length; i++) {
+                    results[q].offer(from + rows[i], scores[i]);
+                }
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,372 @@
+package infosupport.be.index;
+
+import infosupport.be.util.FlatEmbeddingStore;
+import infosupport.be.util.SimilarityMetric;
+import infosupport.be.util.TopKHeap;
+import infosupport.be.util.VectorMath;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hierarchical Navigable Small World graph (Malkov &amp; Yashunin, 2016) over the rows of a
+ * {@link FlatEmbeddingStore}. Every row is a node; each node links to its {@code m} best
+ * neighbours per layer ({@code 2m} on the bottom layer), and a search greedily walks from
+ * the sparse top layer down to layer 0, where it keeps an {@code efSearch}-wide beam.
+ * <p>
+ * The graph is built incrementally: {@link #add(int)} inserts one row at a time, so terms
+ * embedded at runtime become searchable immediately. While the vocabulary is smaller than
+ * {@code exactThreshold} rows, searches fall back to an exact scan, which is both faster
+ * and perfect at that size.
+ * <p>
+ * A removed row stays in the graph, so walks can still pass through it, but never shows up in
+ * results. When the store reuses the row for a new term, the node is linked again from its new
+ * position; its stale links are pruned away as better ones come in.
+ */
+public class HnswIndex implements VectorIndex {
+    private final FlatEmbeddingStore store;
+    private final SimilarityMetric metric;
+    private final ExactIndex exactIndex;
+    private final int m;
+    private final int maxBottomLinks;
+    private final int efConstruction;
+    private final int efSearch;
+    private final int exactThreshold;
+    private final double levelMultiplier;
+    private final Random random = new Random(42);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // links[row][level] = {count, neighbour 1, neighbour 2, ...}
+    private int[][][] links = new int[0][][];
+    private final BitSet removed = new BitSet();
+    private int nodes;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    public HnswIndex(FlatEmbeddingStore store, SimilarityMetric metric,
+                     int m, int efConstruction, int efSearch, int exactThreshold) {
+        if (m < 2) {
+            throw new IllegalArgumentException("HNSW parameter M must be at least 2, got " + m);
+        }
+        this.store = store;
+        this.metric = metric;
+        this.exactIndex = new ExactIndex(store, metric);
+        this.m = m;
+        this.maxBottomLinks = 2 * m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = efSearch;
+        this.exactThreshold = exactThreshold;
+        this.levelMultiplier = 1 / Math.log(m);
+    }
+
+    @Override
+    public String name() {
+        return "hnsw";
+    }
+
+    @Override
+    public SimilarityMetric metric() {
+        return metric;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nodes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void add(int row) {
+        store.read((matrix, norms, rows, dimension) -> {
+            lock.writeLock().lock();
+            try {
+                insert(row, new Graph(matrix, norms, dimension, metric));
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void remove(int row) {
+        lock.writeLock().lock();
+        try {
+            if (row < links.length && links[row] != null) {
+                removed.set(row);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public TopKHeap search(float[] query, int k, BitSet excluded) {
+        return search(query, k, excluded, efSearch);
+    }
+
+    @Override
+    public TopKHeap search(float[] query, int k, BitSet excluded, int searchWidth) {
+        if (size() < exactThreshold) {
+            return exactIndex.search(query, k, excluded);
+        }
+        BitSet skip = store.excludeFree(excluded);
+        return store.read((matrix, norms, rows, dimension) -> {
+            lock.readLock().lock();
+            try {
+                Graph graph = new Graph(matrix, norms, dimension, metric);
+                double queryNorm = VectorMath.norm(query);
+                int entry = entryPoint;
+                double entryScore = graph.score(query, queryNorm, entry);
+                for (int level = maxLevel; level > 0; level--) {
+                    entry = greedyClosest(graph, query, queryNorm, entry, level);
+                    entryScore = graph.score(query, queryNorm, entry);
+                }
+
+                // Widen the beam by the excluded rows, so filtering them still leaves k results
+                int width = Math.max(searchWidth, k + (skip == null ? 0 : skip.cardinality()));
+                TopKHeap beam = searchLayer(graph, query, queryNorm, entry, entryScore, width, 0);
+
+                TopKHeap result = new TopKHeap(k);
+                int[] beamRows = beam.sortedRows();
+                double[] beamScores = beam.sortedScores();
+                for (int i = 0; i < beamRows.length && !result.isFull(); i++) {
+                    if (skip == null || !skip.get(beamRows[i])) {
+                        result.offer(beamRows[i], beamScores[i]);
+                    }
+                }
+                return result;
+            } finally {
+                lock.readLock().unlock();
+            }
+        });
+    }
+
+    private void insert(int row, Graph graph) {
+        boolean reused = row < links.length && links[row] != null;
+        if (reused && !removed.get(row)) {
+            return;
+        }
+        ensureCapacity(row + 1);
+
+        int level;
+        if (reused) {
+            // Keep the level and the old links, so the layers above stay reachable if the row is the entry point
+            level = links[row].length - 1;
+            removed.clear(row);
+        } else {
+            level = randomLevel();
+            int[][] nodeLinks = new int[level + 1][];
+            for (int l = 0; l <= level; l++) {
+                nodeLinks[l] = newLinkList(l);
+            }
+            links[row] = nodeLinks;
+            nodes++;
+        }
+
+        if (entryPoint < 0) {
+            entryPoint = row;
+            maxLevel = level;
+            return;
+        }
+
+        float[] query = Arrays.copyOfRange(graph.matrix, row * graph.dimension, (row + 1) * graph.dimension);
+        double queryNorm = graph.norms[row];
+
+        // Descend greedily through the layers above the new node's top layer
+        int entry = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            entry = greedyClosest(graph, query, queryNorm, entry, l);
+        }
+
+        // On every layer the new node lives on, search a wider beam and link to the best candidates
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            TopKHeap beam = searchLayer(graph, query, queryNorm, entry, graph.score(query, queryNorm, entry), efConstruction, l);
+            int[] candidates = beam.sortedRows();
+            double[] scores = beam.sortedScores();
+
+            int[] selected = selectNeighbours(graph, candidates, scores, m);
+            for (int neighbour : selected) {
+                if (neighbour == row || hasLink(row, l, neighbour)) {
+                    continue;
+                }
+                appendLink(row, l, neighbour);
+                if (!hasLink(neighbour, l, row)) {
+                    appendLink(neighbour, l, row);
+                }
+                if (links[neighbour][l][0] > capacity(l)) {
+                    shrinkLinks(graph, neighbour, l);
+                }
+            }
+            if (links[row][l][0] > capacity(l)) {
+                shrinkLinks(graph, row, l);
+            }
+            entry = candidates[0];
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = row;
+        }
+    }
+
+    /**
+     * Walks to the neighbour with the best score until no neighbour improves on the current node.
+     */
+    private int greedyClosest(Graph graph, float[] query, double queryNorm, int entry, int level) {
+        double bestScore = graph.score(query, queryNorm, entry);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int[] neighbours = links[entry][level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                double score = graph.score(query, queryNorm, neighbours[i]);
+                if (score > bestScore) {
+                    bestScore = score;
+                    entry = neighbours[i];
+                    improved = true;
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Beam search on one layer: expands the best unexpanded candidate until none of the
+     * candidates can beat the worst of the {@code ef} results collected so far.
+     */
+    private TopKHeap searchLayer(Graph graph, float[] query, double queryNorm, int entry, double entryScore, int ef, int level) {
+        BitSet visited = new BitSet(links.length);
+        visited.set(entry);
+        CandidateQueue candidates = new CandidateQueue(ef);
+        candidates.push(entry, entryScore);
+        TopKHeap results = new TopKHeap(ef);
+        results.offer(entry, entryScore);
+
+        while (!candidates.isEmpty()) {
+            if (candidates.peekScore() < results.threshold()) {
+                break;
+            }
+            int current = candidates.peekRow();
+            candidates.pop();
+
+            int[] neighbours = links[current][level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                int neighbour = neighbours[i];
+                if (visited.get(neighbour)) {
+                    continue;
+                }
+                visited.set(neighbour);
+                double score = graph.score(query, queryNorm, neighbour);
+                if (score > results.threshold()) {
+                    candidates.push(neighbour, score);
+                    results.offer(neighbour, score);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Neighbour selection heuristic from the HNSW paper: a candidate is kept only if it is closer
+     * to the base node than to every neighbour kept so far, which spreads links across clusters.
+     * Remaining slots are filled with the best pruned candidates.
+     *
+     * @param candidates candidate rows, best first
+     * @param scores     their scores relative to the base node
+     */
+    private int[] selectNeighbours(Graph graph, int[] candidates, double[] scores, int limit) {
+        int[] selected = new int[Math.min(limit, candidates.length)];
+        int count = 0;
+        boolean[] pruned = new boolean[candidates.length];
+        for (int i = 0; i < candidates.length && count < selected.length; i++) {
+            boolean diverse = true;
+            for (int j = 0; j < count && diverse; j++) {
+                diverse = graph.score(candidates[i], selected[j]) < scores[i];
+            }
+            if (diverse) {
+                selected[count++] = candidates[i];
+            } else {
+                pruned[i] = true;
+            }
+        }
+        for (int i = 0; i < candidates.length && count < selected.length; i++) {
+            if (pruned[i]) {
+                selected[count++] = candidates[i];
+            }
+        }
+        return selected;
+    }
+
+    private void shrinkLinks(Graph graph, int row, int level) {
+        int[] current = links[row][level];
+        TopKHeap ranked = new TopKHeap(current[0]);
+        for (int i = 1; i <= current[0]; i++) {
+            ranked.offer(current[i], graph.score(row, current[i]));
+        }
+        int[] kept = selectNeighbours(graph, ranked.sortedRows(), ranked.sortedScores(), capacity(level));
+        int[] shrunk = newLinkList(level);
+        shrunk[0] = kept.length;
+        System.arraycopy(kept, 0, shrunk, 1, kept.length);
+        links[row][level] = shrunk;
+    }
+
+    // Slot 0 holds the count, and one spare slot lets a list overflow briefly before it is shrunk
+    private int[] newLinkList(int level) {
+        return new int[capacity(level) + 2];
+    }
+
+    private boolean hasLink(int row, int level, int neighbour) {
+        int[] list = links[row][level];
+        for (int i = 1; i <= list[0]; i++) {
+            if (list[i] == neighbour) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void appendLink(int row, int level, int neighbour) {
+        int[] list = links[row][level];
+        if (list[0] + 1 == list.length) {
+            list = Arrays.copyOf(list, list.length + 1);
+            links[row][level] = list;
+        }
+        list[++list[0]] = neighbour;
+    }
+
+    private int capacity(int level) {
+        return level == 0 ? maxBottomLinks : m;
+    }
+
+    private int randomLevel() {
+        return (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+    }
+
+    private void ensureCapacity(int requiredRows) {
+        if (requiredRows > links.length) {
+            links = Arrays.copyOf(links, Math.max(requiredRows, links.length + (links.length >> 1) + 16));
+        }
+    }
+
+    /**
+     * Scoring helpers bound to the matrix the store handed out for the current operation.
+     */
+    private record Graph(float[] matrix, float[] norms, int dimension, SimilarityMetric metric) {
+
+        double score(float[] query, double queryNorm, int row) {
+            double dot = VectorMath.dot(query, 0, matrix, row * dimension, dimension);
+            return metric.rankScore(dot, queryNorm, norms[row]);
+        }
+
+        double score(int a, int b) {
+            double dot = VectorMath.dot(matrix, a * dimension, matrix, b * dimension, dimension);
+            return metric.rankScore(dot, norms[a], norms[b]);
+        }
+    }
+}
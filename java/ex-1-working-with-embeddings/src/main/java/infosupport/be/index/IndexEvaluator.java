@@ -0,0 +1,83 @@
+package infosupport.be.index;
+
+import infosupport.be.util.FlatEmbeddingStore;
+import infosupport.be.util.TopKHeap;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Measures how close an approximate index gets to the exact scan, and how much faster it is.
+ * Queries are stored terms picked at random; each query excludes its own row, just like
+ * {@code findTopKClosest(term, k)} does.
+ */
+public final class IndexEvaluator {
+
+    private IndexEvaluator() {
+    }
+
+    public static RecallReport evaluate(FlatEmbeddingStore store, VectorIndex index,
+                                        int queryCount, int k, int... searchWidths) {
+        ExactIndex exact = new ExactIndex(store, index.metric());
+        // Rows freed by evictions hold no term, so only stored rows are picked
+        int[] storedRows = IntStream.range(0, store.size()).filter(row -> store.termAt(row) != null).toArray();
+        int vocabularySize = storedRows.length;
+        List<float[]> queries = new ArrayList<>();
+        List<BitSet> exclusions = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 0; i < Math.min(queryCount, vocabularySize); i++) {
+            int row = storedRows[random.nextInt(vocabularySize)];
+            queries.add(store.row(row));
+            BitSet excluded = new BitSet();
+            excluded.set(row);
+            exclusions.add(excluded);
+        }
+
+        // Ground truth, and the baseline latency
+        List<int[]> truth = new ArrayList<>(queries.size());
+        long start = System.nanoTime();
+        for (int i = 0; i < queries.size(); i++) {
+            truth.add(exact.search(queries.get(i), k, exclusions.get(i)).sortedRows());
+        }
+        double exactMillis = millisPerQuery(start, queries.size());
+
+        List<RecallReport.Point> points = new ArrayList<>();
+        for (int width : searchWidths) {
+            double recallSum = 0;
+            start = System.nanoTime();
+            List<TopKHeap> results = new ArrayList<>(queries.size());
+            for (int i = 0; i < queries.size(); i++) {
+                results.add(index.search(queries.get(i), k, exclusions.get(i), width));
+            }
+            double indexMillis = millisPerQuery(start, queries.size());
+            for (int i = 0; i < queries.size(); i++) {
+                recallSum += recall(truth.get(i), results.get(i).sortedRows());
+            }
+            points.add(new RecallReport.Point(width, recallSum / Math.max(1, queries.size()), indexMillis));
+        }
+        return new RecallReport(index.name(), vocabularySize, queries.size(), k, exactMillis, points);
+    }
+
+    private static double recall(int[] expected, int[] actual) {
+        if (expected.length == 0) {
+            return 1;
+        }
+        int hits = 0;
+        for (int row : actual) {
+            for (int wanted : expected) {
+                if (row == wanted) {
+                    hits++;
+                    break;
+                }
+            }
+        }
+        return hits / (double) expected.length;
+    }
+
+    private static double millisPerQuery(long startNanos, int queries) {
+        return (System.nanoTime() - startNanos) / 1e6 / Math.max(1, queries);
+    }
+}
@@ -0,0 +1,12 @@
+package infosupport.be.index;
+
+/**
+ * Runtime statistics of a {@link VectorIndex}, served next to the store stats and logged at shutdown.
+ */
+public interface IndexStats {
+
+    /**
+     * Renders the stats as a single line, e.g. for the log.
+     */
+    String format();
+}
@@ -0,0 +1,465 @@
+package infosupport.be.index;
+
+import infosupport.be.util.FlatEmbeddingStore;
+import infosupport.be.util.SimilarityMetric;
+import infosupport.be.util.TopKHeap;
+import infosupport.be.util.VectorMath;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * Inverted-file index: the rows are partitioned around coarse centroids, and a query only scans
+ * the rows of the {@code nprobe} partitions whose centroids are closest to it. Apart from the
+ * centroids it stores just one int per row, far less than a graph index's neighbour lists.
+ * <p>
+ * The centroids are trained with mini-batch k-means (Sculley, 2010): every iteration assigns a
+ * random batch of rows in parallel and moves each centroid towards its rows with a per-centroid
+ * learning rate, so training never holds more than one batch of vectors. With the default
+ * partition count of {@code sqrt(rows)} a query scans about {@code nprobe / sqrt(rows)} of the store.
+ * <p>
+ * The first build happens once the store holds {@code trainingRows} rows, until then searches are
+ * answered by an exact scan. New rows go into the partition of their nearest centroid; once the
+ * store has grown by {@code rebuildGrowth} since the last build, the partitions are rebuilt on a
+ * background thread while queries keep using the old ones, and swapped in when done.
+ * Removed rows leave their partition, and are assigned again when the store reuses them; rows removed
+ * or reused while a rebuild runs are recorded and assigned again in the new partitions before the swap.
+ * Free rows are left out of training and of the partitions.
+ */
+@Slf4j
+public class IvfIndex implements VectorIndex {
+    private static final int BATCH_SIZE = 1024;
+    private static final int ITERATIONS = 50;
+    private static final int ASSIGN_BLOCK = 4096;
+    // Queries whose probe and scan counts are kept for the percentiles in the stats
+    private static final int RECENT_QUERIES = 1024;
+
+    private final FlatEmbeddingStore store;
+    private final SimilarityMetric metric;
+    private final SimilarityMetric coarseMetric;
+    private final ExactIndex exactIndex;
+    private final int partitionCount;
+    private final int nprobe;
+    private final int trainingRows;
+    private final double rebuildGrowth;
+    private final Random random = new Random(42);
+
+    private final AtomicReference<Partitions> current = new AtomicReference<>();
+    // Guards appends to the current partitions; rebuilds work on a private copy until the swap
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    // Rows removed or reused while a rebuild runs, replayed on its partitions before the swap; guarded by the lock
+    private BitSet changedDuringRebuild;
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder probedPartitions = new LongAdder();
+    private final LongAdder scannedRows = new LongAdder();
+    // Ring buffers of the last RECENT_QUERIES queries, indexed by query number
+    private final AtomicLong recentQueries = new AtomicLong();
+    private final AtomicIntegerArray recentProbes = new AtomicIntegerArray(RECENT_QUERIES);
+    private final AtomicIntegerArray recentScannedRows = new AtomicIntegerArray(RECENT_QUERIES);
+    private final LongAdder rebuilds = new LongAdder();
+
+    /**
+     * @param partitionCount number of partitions, or 0 for {@code sqrt(rows)} at every build
+     * @param nprobe         partitions scanned per query by default
+     * @param trainingRows   rows to collect before the first build
+     * @param rebuildGrowth  rebuild once the store is this many times larger than at the last build, or 0 to never rebuild
+     */
+    public IvfIndex(FlatEmbeddingStore store, SimilarityMetric metric, int partitionCount, int nprobe,
+                    int trainingRows, double rebuildGrowth) {
+        if (store.isOffHeap()) {
+            throw new IllegalArgumentException("The ivf index scans the store's matrix, it needs an on-heap store");
+        }
+        this.store = store;
+        this.metric = metric;
+        // Dot-product centroids would pull every row towards the longest one, so only cosine keeps its own metric
+        this.coarseMetric = metric == SimilarityMetric.COSINE ? SimilarityMetric.COSINE : SimilarityMetric.EUCLIDEAN;
+        this.exactIndex = new ExactIndex(store, metric);
+        this.partitionCount = Math.max(0, partitionCount);
+        this.nprobe = Math.max(1, nprobe);
+        this.trainingRows = Math.max(1, trainingRows);
+        this.rebuildGrowth = rebuildGrowth;
+    }
+
+    @Override
+    public String name() {
+        return "ivf";
+    }
+
+    @Override
+    public SimilarityMetric metric() {
+        return metric;
+    }
+
+    @Override
+    public void add(int row) {
+        lock.writeLock().lock();
+        try {
+            if (changedDuringRebuild != null) {
+                changedDuringRebuild.set(row);
+            }
+            Partitions partitions = current.get();
+            if (partitions != null) {
+                if (row < partitions.assignedRows) {
+                    // A row freed by an eviction and reused for a new term
+                    partitions.detach(row);
+                    partitions.append(partitions.nearest(coarseMetric, store.row(row), 0, store.norm(row)), row);
+                }
+                // Catch up on every row stored so far, concurrent writers may add rows out of order
+                assignNewRows(partitions);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (needsRebuild()) {
+            rebuildInBackground();
+        }
+    }
+
+    @Override
+    public void remove(int row) {
+        lock.writeLock().lock();
+        try {
+            if (changedDuringRebuild != null) {
+                changedDuringRebuild.set(row);
+            }
+            Partitions partitions = current.get();
+            if (partitions != null) {
+                partitions.detach(row);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public TopKHeap search(float[] query, int k, BitSet excluded) {
+        return search(query, k, excluded, nprobe);
+    }
+
+    /**
+     * @param searchWidth number of partitions to probe
+     */
+    @Override
+    public TopKHeap search(float[] query, int k, BitSet excluded, int searchWidth) {
+        if (current.get() == null) {
+            return exactIndex.search(query, k, excluded);
+        }
+        lock.readLock().lock();
+        try {
+            Partitions partitions = current.get();
+            BitSet skip = store.excludeFree(excluded);
+            double queryNorm = VectorMath.norm(query);
+            TopKHeap closest = new TopKHeap(Math.min(Math.max(1, searchWidth), partitions.count));
+            for (int c = 0; c < partitions.count; c++) {
+                double dot = VectorMath.dot(query, 0, partitions.centroids, c * partitions.dimension, partitions.dimension);
+                closest.offer(c, coarseMetric.rankScore(dot, queryNorm, partitions.centroidNorms[c]));
+            }
+            int[] probed = closest.sortedRows();
+
+            int scanned = 0;
+            for (int c : probed) {
+                scanned += partitions.sizes[c];
+            }
+            queries.increment();
+            probedPartitions.add(probed.length);
+            scannedRows.add(scanned);
+            int slot = (int) (recentQueries.getAndIncrement() % RECENT_QUERIES);
+            recentProbes.set(slot, probed.length);
+            recentScannedRows.set(slot, scanned);
+
+            return store.read((matrix, norms, rows, dimension) -> IntStream.of(probed).parallel()
+                    .mapToObj(c -> scanPartition(partitions, c, matrix, norms, dimension, query, queryNorm, k, skip))
+                    .reduce((left, right) -> {
+                        left.merge(right);
+                        return left;
+                    })
+                    .orElseGet(() -> new TopKHeap(k)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the current partition sizes, the average probes and scanned rows per query so far,
+     * and their percentiles over the last {@value #RECENT_QUERIES} queries
+     */
+    @Override
+    public IvfStats stats() {
+        lock.readLock().lock();
+        try {
+            Partitions partitions = current.get();
+            long queryCount = queries.sum();
+            int recent = (int) Math.min(recentQueries.get(), RECENT_QUERIES);
+            int[] probes = new int[recent];
+            int[] scanned = new int[recent];
+            for (int i = 0; i < recent; i++) {
+                probes[i] = recentProbes.get(i);
+                scanned[i] = recentScannedRows.get(i);
+            }
+            return new IvfStats(
+                    partitions == null ? 0 : partitions.count,
+                    partitions == null ? new int[0] : Arrays.copyOf(partitions.sizes, partitions.count),
+                    nprobe,
+                    queryCount,
+                    queryCount == 0 ? 0 : probedPartitions.sum() / (double) queryCount,
+                    queryCount == 0 ? 0 : scannedRows.sum() / (double) queryCount,
+                    IvfStats.Distribution.of(probes),
+                    IvfStats.Distribution.of(scanned),
+                    rebuilds.sum());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Trains new centroids on the current rows and partitions the store around them, then swaps the
+     * result in. Searches keep using the previous partitions until then. One rebuild runs at a time.
+     */
+    public synchronized void rebuild() {
+        long start = System.nanoTime();
+        lock.writeLock().lock();
+        try {
+            changedDuringRebuild = new BitSet();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            int rows = store.size();
+            int dimension = store.dimension();
+            // Rows freed before this point hold zeroes; rows reused later are recorded in changedDuringRebuild
+            BitSet free = store.excludeFree(null);
+            int[] storedRows = IntStream.range(0, rows).filter(row -> free == null || !free.get(row)).toArray();
+            if (storedRows.length == 0) {
+                return;
+            }
+            int count = Math.min(storedRows.length,
+                    partitionCount > 0 ? partitionCount : Math.max(1, (int) Math.round(Math.sqrt(storedRows.length))));
+            float[] centroids = train(storedRows, dimension, count);
+            Partitions partitions = new Partitions(centroids, centroidNorms(centroids, count, dimension), count, dimension);
+
+            // Assign every row in parallel blocks, then bucket the rows by partition
+            int[] assignment = new int[rows];
+            int blocks = (rows + ASSIGN_BLOCK - 1) / ASSIGN_BLOCK;
+            IntStream.range(0, blocks).parallel().forEach(b -> {
+                int from = b * ASSIGN_BLOCK;
+                int blockRows = Math.min(ASSIGN_BLOCK, rows - from);
+                float[] block = new float[blockRows * dimension];
+                float[] blockNorms = new float[blockRows];
+                store.copyRows(from, blockRows, block, blockNorms);
+                for (int i = 0; i < blockRows; i++) {
+                    boolean isFree = free != null && free.get(from + i);
+                    assignment[from + i] = isFree ? -1 : partitions.nearest(coarseMetric, block, i * dimension, blockNorms[i]);
+                }
+            });
+            for (int row = 0; row < rows; row++) {
+                if (assignment[row] >= 0) {
+                    partitions.append(assignment[row], row);
+                }
+            }
+            partitions.assignedRows = rows;
+            partitions.builtRows = storedRows.length;
+
+            lock.writeLock().lock();
+            try {
+                // The copies above may predate these rows' removal or their new term
+                BitSet changed = changedDuringRebuild;
+                for (int row = changed.nextSetBit(0); row >= 0 && row < rows; row = changed.nextSetBit(row + 1)) {
+                    partitions.detach(row);
+                    if (store.termAt(row) != null) {
+                        partitions.append(partitions.nearest(coarseMetric, store.row(row), 0, store.norm(row)), row);
+                    }
+                }
+                assignNewRows(partitions);
+                current.set(partitions);
+                rebuilds.increment();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            log.info("Built ivf index over {} rows in {} ms: {}", storedRows.length, (System.nanoTime() - start) / 1_000_000,
+                    stats().format());
+        } finally {
+            lock.writeLock().lock();
+            try {
+                changedDuringRebuild = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private boolean needsRebuild() {
+        Partitions partitions = current.get();
+        // Stored terms, as free rows are not partitioned
+        int rows = store.termCount();
+        return partitions == null
+                ? rows >= trainingRows
+                : rebuildGrowth > 0 && rows >= partitions.builtRows * rebuildGrowth;
+    }
+
+    private void rebuildInBackground() {
+        if (!rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        Thread.ofPlatform().name("ivf-rebuild").daemon().start(() -> {
+            try {
+                // Rows stored while building may already have grown the store past the next threshold
+                do {
+                    rebuild();
+                } while (needsRebuild());
+            } catch (RuntimeException e) {
+                log.warn("Rebuilding the ivf index failed, searches keep using the current partitions: {}", e.getMessage());
+            } finally {
+                rebuilding.set(false);
+            }
+        });
+    }
+
+    /**
+     * Mini-batch k-means over the given rows, seeded with distinct random ones.
+     */
+    private float[] train(int[] rows, int dimension, int count) {
+        float[] centroids = new float[count * dimension];
+        int[] seeds = random.ints(0, rows.length).distinct().limit(count).map(i -> rows[i]).toArray();
+        for (int c = 0; c < count; c++) {
+            System.arraycopy(store.row(seeds[c]), 0, centroids, c * dimension, dimension);
+        }
+
+        int batchRows = Math.min(BATCH_SIZE, rows.length);
+        float[] batch = new float[batchRows * dimension];
+        float[] batchNorms = new float[batchRows];
+        int[] counts = new int[count];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            for (int i = 0; i < batchRows; i++) {
+                int row = rows[random.nextInt(rows.length)];
+                System.arraycopy(store.row(row), 0, batch, i * dimension, dimension);
+                batchNorms[i] = store.norm(row);
+            }
+            Partitions snapshot = new Partitions(centroids, centroidNorms(centroids, count, dimension), count, dimension);
+            int[] assignment = IntStream.range(0, batchRows).parallel()
+                    .map(i -> snapshot.nearest(coarseMetric, batch, i * dimension, batchNorms[i]))
+                    .toArray();
+
+            // Move each centroid towards its rows with learning rate 1 / (rows it has seen so far)
+            for (int i = 0; i < batchRows; i++) {
+                int c = assignment[i];
+                float rate = 1f / ++counts[c];
+                for (int d = 0; d < dimension; d++) {
+                    centroids[c * dimension + d] += rate * (batch[i * dimension + d] - centroids[c * dimension + d]);
+                }
+            }
+        }
+        return centroids;
+    }
+
+    // Caller holds the write lock, or owns partitions that are not published yet
+    private void assignNewRows(Partitions partitions) {
+        int rows = store.size();
+        for (int row = partitions.assignedRows; row < rows; row++) {
+            float[] vector = store.row(row);
+            partitions.append(partitions.nearest(coarseMetric, vector, 0, store.norm(row)), row);
+        }
+        partitions.assignedRows = Math.max(partitions.assignedRows, rows);
+    }
+
+    private TopKHeap scanPartition(Partitions partitions, int partition, float[] matrix, float[] norms, int dimension,
+                                   float[] query, double queryNorm, int k, BitSet excluded) {
+        TopKHeap heap = new TopKHeap(k);
+        int[] members = partitions.members[partition];
+        for (int i = 0; i < partitions.sizes[partition]; i++) {
+            int row = members[i];
+            if (excluded != null && excluded.get(row)) {
+                continue;
+            }
+            double dot = VectorMath.dot(query, 0, matrix, row * dimension, dimension);
+            heap.offer(row, metric.rankScore(dot, queryNorm, norms[row]));
+        }
+        return heap;
+    }
+
+    private static float[] centroidNorms(float[] centroids, int count, int dimension) {
+        float[] norms = new float[count];
+        for (int c = 0; c < count; c++) {
+            norms[c] = (float) VectorMath.norm(centroids, c * dimension, dimension);
+        }
+        return norms;
+    }
+
+    /**
+     * Centroids plus the rows assigned to each of them.
+     */
+    private static final class Partitions {
+        final float[] centroids;
+        final float[] centroidNorms;
+        final int count;
+        final int dimension;
+        final int[][] members;
+        final int[] sizes;
+        // The partition of every row, -1 for rows that are not in one
+        int[] partitionOf = new int[0];
+        int assignedRows;
+        int builtRows;
+
+        Partitions(float[] centroids, float[] centroidNorms, int count, int dimension) {
+            this.centroids = centroids;
+            this.centroidNorms = centroidNorms;
+            this.count = count;
+            this.dimension = dimension;
+            this.members = new int[count][];
+            this.sizes = new int[count];
+            Arrays.fill(members, new int[0]);
+        }
+
+        int nearest(SimilarityMetric coarseMetric, float[] vector, int offset, double norm) {
+            int best = 0;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int c = 0; c < count; c++) {
+                double dot = VectorMath.dot(vector, offset, centroids, c * dimension, dimension);
+                double score = coarseMetric.rankScore(dot, norm, centroidNorms[c]);
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = c;
+                }
+            }
+            return best;
+        }
+
+        void append(int partition, int row) {
+            if (sizes[partition] == members[partition].length) {
+                members[partition] = Arrays.copyOf(members[partition], Math.max(16, sizes[partition] * 2));
+            }
+            members[partition][sizes[partition]++] = row;
+            if (row >= partitionOf.length) {
+                int previous = partitionOf.length;
+                partitionOf = Arrays.copyOf(partitionOf, Math.max(row + 1, previous + (previous >> 1) + 16));
+                Arrays.fill(partitionOf, previous, partitionOf.length, -1);
+            }
+            partitionOf[row] = partition;
+        }
+
+        // Swaps the row with the last member of its partition and drops it
+        void detach(int row) {
+            int partition = row < partitionOf.length ? partitionOf[row] : -1;
+            if (partition < 0) {
+                return;
+            }
+            int[] list = members[partition];
+            for (int i = 0; i < sizes[partition]; i++) {
+                if (list[i] == row) {
+                    list[i] = list[--sizes[partition]];
+                    break;
+                }
+            }
+            partitionOf[row] = -1;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package infosupport.be.index;
+
+import java.util.Arrays;
+
+/**
+ * Partition sizes and probe counts of an {@link IvfIndex}.
+ *
+ * @param partitions          number of partitions, 0 before the first build
+ * @param partitionSizes      rows per partition
+ * @param nprobe              partitions probed per query by default
+ * @param queries             queries answered by the partitions so far
+ * @param averageProbes       partitions probed per query, on average
+ * @param averageScannedRows  rows scored per query, on average
+ * @param recentProbes        partitions probed by each of the most recent queries
+ * @param recentScannedRows   rows scored by each of the most recent queries
+ * @param rebuilds            number of times the partitions were (re)built
+ */
+public record IvfStats(int partitions, int[] partitionSizes, int nprobe, long queries,
+                       double averageProbes, double averageScannedRows,
+                       Distribution recentProbes, Distribution recentScannedRows, long rebuilds) implements IndexStats {
+
+    /**
+     * Percentiles of a per-query count over the most recent queries.
+     *
+     * @param queries number of queries the percentiles are taken over
+     */
+    public record Distribution(int queries, int median, int p95, int p99, int max) {
+
+        static Distribution of(int[] values) {
+            int[] sorted = values.clone();
+            Arrays.sort(sorted);
+            return sorted.length == 0
+                    ? new Distribution(0, 0, 0, 0, 0)
+                    : new Distribution(sorted.length, percentile(sorted, 0.5), percentile(sorted, 0.95),
+                    percentile(sorted, 0.99), sorted[sorted.length - 1]);
+        }
+
+        private static int percentile(int[] sorted, double fraction) {
+            return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+        }
+    }
+
+    /**
+     * Renders the stats as a single line, e.g. for the log.
+     */
+    @Override
+    public String format() {
+        int[] sorted = partitionSizes.clone();
+        Arrays.sort(sorted);
+        int rows = Arrays.stream(sorted).sum();
+        return String.format("%d partitions (rows min %d / median %d / max %d), nprobe %d, %d queries "
+                        + "probing %.1f partitions and scanning %.0f rows (%.1f%%) on average; "
+                        + "last %d queries scanned median %d / p95 %d / p99 %d / max %d rows, %d builds",
+                partitions,
+                sorted.length == 0 ? 0 : sorted[0],
+                sorted.length == 0 ? 0 : sorted[sorted.length / 2],
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1],
+                nprobe, queries, averageProbes, averageScannedRows,
+                rows == 0 ? 0 : 100 * averageScannedRows / rows,
+                recentScannedRows.queries(), recentScannedRows.median(), recentScannedRows.p95(),
+                recentScannedRows.p99(), recentScannedRows.max(), rebuilds);
+    }
+}
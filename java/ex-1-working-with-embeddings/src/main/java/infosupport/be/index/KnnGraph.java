@@ -0,0 +1,608 @@
+package infosupport.be.index;
+
+import infosupport.be.util.FlatEmbeddingStore;
+import infosupport.be.util.SimilarityMetric;
+import infosupport.be.util.TopKHeap;
+import infosupport.be.util.VectorMath;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * Precomputed exact top-{@code k} neighbours of every stored term, so "nearest neighbours of term X"
+ * is answered with {@code k} array reads instead of a scan over the whole store.
+ * <p>
+ * The graph is built in the background with a blocked sweep: rows are taken as queries
+ * {@value #QUERY_BLOCK} at a time and answered together by {@link ExactIndex#searchAll}, which
+ * parallelizes over the store. The result is persisted as an adjacency file next to the embedding
+ * cache, keyed by a hash of each row's term, and reused on the next start if the rows still match.
+ * <p>
+ * Terms added later are merged in incrementally, {@value #QUERY_BLOCK} rows at a time: the batch is
+ * answered by one {@link ExactIndex#searchAll} sweep, which gives the new rows their neighbours, and one
+ * more pass over the store, reading the rows in place, puts the new rows into the lists they now belong in.
+ * Removed terms are dropped from the lists they appear in, and a row the store reuses is merged again.
+ * When more than a quarter of the graph's size is added at once (e.g. a vocabulary load),
+ * the graph is marked stale and rebuilt in the background instead, so the store is not held up.
+ * Until the graph is ready, {@link #neighbours} returns {@code null} and callers search as usual.
+ * <p>
+ * File layout (little-endian):
+ * <pre>
+ * header: magic "KNNG" | version | metric ordinal | k | rows
+ * body:   rows term hashes (long) | rows * k neighbour rows (int, -1 when empty) | rows * k scores (float)
+ * </pre>
+ */
+@Slf4j
+public class KnnGraph {
+    private static final int MAGIC = 0x474E4E4B; // "KNNG" read as a little-endian int
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 5 * Integer.BYTES;
+    private static final int QUERY_BLOCK = 256;
+    private static final int SCAN_BLOCK = 4096;
+    private static final double REBUILD_FRACTION = 0.25;
+
+    private final FlatEmbeddingStore store;
+    private final SimilarityMetric metric;
+    private final ExactIndex exactIndex;
+    private final int k;
+    private final Path file;
+    private final boolean enabled;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // neighbours[row * k ..] holds the row's neighbours from best to worst, scores[] their rank scores
+    private int[] neighbours = new int[0];
+    private float[] scores = new float[0];
+    private long[] termHashes = new long[0];
+    private int rows;
+    private boolean ready;
+    private boolean building;
+    // Set by writers under the write lock, cleared by save() under the read lock
+    private volatile boolean dirty;
+    // Rows added, reused or removed that the next catch-up merges; collects them while the graph is built
+    private final BitSet pending = new BitSet();
+    // Rows whose list lost a neighbour to a removal, so its free slots are not the next best rows
+    private final BitSet incomplete = new BitSet();
+
+    /**
+     * @param file adjacency file to load from and save to, or {@code null} to keep the graph in memory only
+     */
+    public KnnGraph(FlatEmbeddingStore store, SimilarityMetric metric, int k, Path file) {
+        this(store, metric, k, file, true);
+    }
+
+    private KnnGraph(FlatEmbeddingStore store, SimilarityMetric metric, int k, Path file, boolean enabled) {
+        this.store = store;
+        this.metric = metric;
+        this.exactIndex = new ExactIndex(store, metric);
+        this.k = Math.max(1, k);
+        this.file = file;
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return a graph that is never built, so every lookup falls back to a search
+     */
+    public static KnnGraph disabled() {
+        return new KnnGraph(null, SimilarityMetric.COSINE, 1, null, false);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isReady() {
+        lock.readLock().lock();
+        try {
+            return ready;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Loads the adjacency file, or builds the graph if there is no usable file, on a background thread.
+     */
+    public void startInBackground() {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            building = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Thread.ofPlatform().name("knn-graph").daemon().start(() -> {
+            try {
+                if (!load()) {
+                    build();
+                    save();
+                }
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        });
+    }
+
+    // Caller holds the write lock
+    private void rebuildInBackground() {
+        ready = false;
+        building = true;
+        Thread.ofPlatform().name("knn-graph").daemon().start(() -> {
+            try {
+                build();
+                save();
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        });
+    }
+
+    private void failed(RuntimeException e) {
+        lock.writeLock().lock();
+        try {
+            building = false;
+            pending.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.warn("Building the kNN graph failed, lookups keep using the index: {}", e.getMessage());
+    }
+
+    /**
+     * Looks up the precomputed neighbours of a row.
+     *
+     * @return a heap with at most {@code amount} neighbours, or {@code null} if the graph cannot answer
+     * (not ready yet, row not in the graph, or more neighbours asked than were precomputed)
+     */
+    public TopKHeap neighbours(int row, int amount) {
+        lock.readLock().lock();
+        try {
+            if (!ready || row < 0 || row >= rows || amount > k) {
+                return null;
+            }
+            TopKHeap heap = new TopKHeap(Math.max(amount, 1));
+            for (int i = 0; i < amount && neighbours[row * k + i] >= 0; i++) {
+                heap.offer(neighbours[row * k + i], scores[row * k + i]);
+            }
+            // A list that lost neighbours to removals is short, unless the store holds no more terms
+            if (heap.size() < amount && heap.size() < store.termCount() - 1) {
+                return null;
+            }
+            return heap;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Merges the stored rows, and every other row the store holds beyond the graph, into it. Called after
+     * rows are stored; rows stored while the graph is being built are merged once it is ready. A batch
+     * that would grow the graph by more than a quarter of its size triggers a rebuild.
+     */
+    public void add(int... storedRows) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (int row : storedRows) {
+                pending.set(row);
+            }
+            if (!ready) {
+                if (!building) {
+                    pending.clear();
+                }
+                return;
+            }
+            int backlog = pending.get(0, rows).cardinality() + Math.max(0, store.size() - rows);
+            if (backlog > Math.max(QUERY_BLOCK, rows * REBUILD_FRACTION)) {
+                log.info("{} rows to merge into the kNN graph of {} terms, rebuilding it in the background", backlog, rows);
+                rebuildInBackground();
+                return;
+            }
+            catchUp();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops a row that was removed from the store: its own list is cleared, and it is taken out of the
+     * lists it appears in. Those lists are one neighbour short until the graph is rebuilt, and lookups that
+     * need the missing neighbour search instead. Rows merged later only join such a list if they rank
+     * above its worst neighbour, since the neighbour it lost may have ranked above them.
+     */
+    public void remove(int row) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (!ready) {
+                if (building) {
+                    pending.set(row);
+                }
+                return;
+            }
+            if (row < rows) {
+                removeLocked(row);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Caller holds the write lock
+    private void removeLocked(int row) {
+        Arrays.fill(neighbours, row * k, (row + 1) * k, -1);
+        termHashes[row] = 0;
+        for (int other = 0; other < rows; other++) {
+            int base = other * k;
+            for (int i = 0; i < k && neighbours[base + i] >= 0; i++) {
+                if (neighbours[base + i] == row) {
+                    System.arraycopy(neighbours, base + i + 1, neighbours, base + i, k - i - 1);
+                    System.arraycopy(scores, base + i + 1, scores, base + i, k - i - 1);
+                    neighbours[base + k - 1] = -1;
+                    incomplete.set(other);
+                    break;
+                }
+            }
+        }
+        incomplete.clear(row);
+        dirty = true;
+    }
+
+    /**
+     * Computes every row's neighbours with a blocked, parallel sweep over the store.
+     */
+    public void build() {
+        long start = System.nanoTime();
+        int total = store.size();
+        int dimension = Math.max(store.dimension(), 0);
+        int[] builtNeighbours = new int[total * k];
+        float[] builtScores = new float[total * k];
+        Arrays.fill(builtNeighbours, -1);
+
+        float[] block = new float[QUERY_BLOCK * dimension];
+        float[] blockNorms = new float[QUERY_BLOCK];
+        int nextProgress = total / 10;
+        for (int from = 0; from < total; from += QUERY_BLOCK) {
+            int count = store.copyRows(from, Math.min(QUERY_BLOCK, total - from), block, blockNorms);
+            float[][] queries = new float[count][];
+            BitSet[] excluded = new BitSet[count];
+            for (int q = 0; q < count; q++) {
+                queries[q] = Arrays.copyOfRange(block, q * dimension, (q + 1) * dimension);
+                excluded[q] = new BitSet();
+                excluded[q].set(from + q);
+            }
+            TopKHeap[] heaps = exactIndex.searchAll(queries, k, excluded);
+            for (int q = 0; q < count; q++) {
+                int[] found = heaps[q].sortedRows();
+                double[] foundScores = heaps[q].sortedScores();
+                for (int i = 0; i < found.length; i++) {
+                    // Rows stored after the build started are merged in by catchUp
+                    if (found[i] < total) {
+                        builtNeighbours[(from + q) * k + i] = found[i];
+                        builtScores[(from + q) * k + i] = (float) foundScores[i];
+                    }
+                }
+            }
+            if (from >= nextProgress && total >= 10_000) {
+                log.info("kNN graph: {} of {} rows", from, total);
+                nextProgress += total / 10;
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            neighbours = builtNeighbours;
+            scores = builtScores;
+            termHashes = new long[total];
+            for (int row = 0; row < total; row++) {
+                termHashes[row] = termHash(store.termAt(row));
+            }
+            rows = total;
+            incomplete.clear();
+            ready = true;
+            building = false;
+            dirty = true;
+            catchUp();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Built the kNN graph (k={}) of {} terms in {} ms", k, total, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Writes the graph to the adjacency file, if it changed since it was loaded or last saved.
+     * Synchronized, so concurrent saves (shutdown and a background build) don't share the temporary file.
+     */
+    public synchronized void save() {
+        if (file == null) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            if (!ready || !dirty) {
+                return;
+            }
+            long size = HEADER_BYTES + (long) rows * Long.BYTES + 2L * rows * k * Integer.BYTES;
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(metric.ordinal()).putInt(k).putInt(rows);
+                buffer.asLongBuffer().put(termHashes, 0, rows);
+                buffer.position(buffer.position() + rows * Long.BYTES);
+                buffer.asIntBuffer().put(neighbours, 0, rows * k);
+                buffer.position(buffer.position() + rows * k * Integer.BYTES);
+                buffer.asFloatBuffer().put(scores, 0, rows * k);
+                buffer.force();
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+            log.info("Saved the kNN graph of {} terms to {}", rows, file);
+        } catch (IOException e) {
+            log.warn("Failed to save the kNN graph to {}: {}", file, e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Loads the adjacency file if it was built with the same metric and k, for rows holding the same terms.
+     * Rows stored since the file was written are merged in.
+     *
+     * @return {@code true} if the graph is ready
+     */
+    private boolean load() {
+        if (file == null || !Files.exists(file)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getInt() != metric.ordinal() || buffer.getInt() != k) {
+                log.info("kNN graph {} was built with other settings, rebuilding it", file);
+                return false;
+            }
+            int storedRows = buffer.getInt();
+            if (storedRows > store.size() || buffer.remaining() < (long) storedRows * (Long.BYTES + 2L * k * Integer.BYTES)) {
+                log.info("kNN graph {} does not match the embedding store, rebuilding it", file);
+                return false;
+            }
+            long[] hashes = new long[storedRows];
+            buffer.asLongBuffer().get(hashes);
+            for (int row = 0; row < storedRows; row++) {
+                if (hashes[row] != termHash(store.termAt(row))) {
+                    log.info("kNN graph {} does not match the embedding store, rebuilding it", file);
+                    return false;
+                }
+            }
+            buffer.position(buffer.position() + storedRows * Long.BYTES);
+            int[] loadedNeighbours = new int[storedRows * k];
+            buffer.asIntBuffer().get(loadedNeighbours);
+            buffer.position(buffer.position() + storedRows * k * Integer.BYTES);
+            float[] loadedScores = new float[storedRows * k];
+            buffer.asFloatBuffer().get(loadedScores);
+
+            lock.writeLock().lock();
+            try {
+                neighbours = loadedNeighbours;
+                scores = loadedScores;
+                termHashes = hashes;
+                rows = storedRows;
+                incomplete.clear();
+                ready = true;
+                building = false;
+                catchUp();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            log.info("Loaded the kNN graph of {} terms from {}", storedRows, file);
+            return true;
+        } catch (IOException e) {
+            log.warn("Failed to load the kNN graph {}, rebuilding it: {}", file, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Merges the pending rows and the rows the store holds beyond the graph, {@value #QUERY_BLOCK} at a time.
+     * Caller holds the write lock.
+     */
+    private void catchUp() {
+        int total = store.size();
+        if (total > rows) {
+            ensureCapacity(total);
+            Arrays.fill(neighbours, rows * k, total * k, -1);
+            pending.set(rows, total);
+            rows = total;
+        }
+        pending.clear(total, Math.max(total, pending.length()));
+        if (pending.isEmpty()) {
+            return;
+        }
+        BitSet free = store.excludeFree(null);
+        int[] batch = new int[QUERY_BLOCK];
+        while (!pending.isEmpty()) {
+            int count = 0;
+            for (int row = pending.nextSetBit(0); row >= 0 && count < batch.length; row = pending.nextSetBit(row + 1)) {
+                pending.clear(row);
+                if (free != null && free.get(row)) {
+                    removeLocked(row);
+                } else {
+                    batch[count++] = row;
+                }
+            }
+            if (count > 0) {
+                merge(Arrays.copyOf(batch, count), free, total);
+            }
+        }
+        dirty = true;
+    }
+
+    /**
+     * Merges a batch of rows into the graph, which holds rows {@code [0, total)}. First the batch is answered
+     * by one sweep over the store, which gives the rows their neighbours among each other and the merged rows.
+     * Then every merged row is scored against the batch, reading the store in place, and takes the batch
+     * rows that beat its worst neighbour. Rows still pending are left out of both; they see this batch
+     * when they are merged themselves.
+     */
+    private void merge(int[] batch, BitSet free, int total) {
+        int dimension = Math.max(store.dimension(), 0);
+        float[][] queries = new float[batch.length][];
+        float[] batchVectors = new float[batch.length * dimension];
+        float[] batchNorms = new float[batch.length];
+        for (int q = 0; q < batch.length; q++) {
+            queries[q] = store.row(batch[q]);
+            System.arraycopy(queries[q], 0, batchVectors, q * dimension, dimension);
+            batchNorms[q] = store.norm(batch[q]);
+        }
+
+        // The batch's own lists: one extra neighbour, as each query finds itself
+        BitSet[] excluded = pending.isEmpty() ? null : new BitSet[batch.length];
+        if (excluded != null) {
+            Arrays.fill(excluded, pending);
+        }
+        TopKHeap[] heaps = exactIndex.searchAll(queries, k + 1, excluded);
+        for (int q = 0; q < batch.length; q++) {
+            int row = batch[q];
+            termHashes[row] = termHash(store.termAt(row));
+            Arrays.fill(neighbours, row * k, (row + 1) * k, -1);
+            incomplete.clear(row);
+            int[] found = heaps[q].sortedRows();
+            double[] foundScores = heaps[q].sortedScores();
+            for (int i = 0, position = row * k; i < found.length && position < (row + 1) * k; i++) {
+                // Rows stored after this catch-up started are merged by the next one
+                if (found[i] != row && found[i] < total) {
+                    neighbours[position] = found[i];
+                    scores[position++] = (float) foundScores[i];
+                }
+            }
+        }
+
+        // The merged rows' lists: each block of rows is only written by the thread that scores it
+        BitSet skip = (BitSet) pending.clone();
+        if (free != null) {
+            skip.or(free);
+        }
+        for (int row : batch) {
+            skip.set(row);
+        }
+        int blocks = (total + SCAN_BLOCK - 1) / SCAN_BLOCK;
+        if (store.isOffHeap()) {
+            IntStream.range(0, blocks).parallel().forEach(b -> {
+                int from = b * SCAN_BLOCK;
+                float[] block = new float[SCAN_BLOCK * dimension];
+                float[] blockNorms = new float[SCAN_BLOCK];
+                int count = store.copyRows(from, Math.min(SCAN_BLOCK, total - from), block, blockNorms);
+                insertBatch(block, blockNorms, from, 0, count, dimension, batch, batchVectors, batchNorms, skip);
+            });
+        } else {
+            store.read((matrix, norms, storeRows, storeDimension) -> {
+                int limit = Math.min(total, storeRows);
+                IntStream.range(0, blocks).parallel().forEach(b -> {
+                    int from = b * SCAN_BLOCK;
+                    insertBatch(matrix, norms, from, from, Math.min(SCAN_BLOCK, limit - from), dimension,
+                            batch, batchVectors, batchNorms, skip);
+                });
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Offers the batch rows to the lists of {@code count} consecutive rows starting at {@code firstRow},
+     * whose vectors start at row {@code offset} of {@code matrix}.
+     */
+    private void insertBatch(float[] matrix, float[] norms, int firstRow, int offset, int count, int dimension,
+                             int[] batch, float[] batchVectors, float[] batchNorms, BitSet skip) {
+        for (int i = 0; i < count; i++) {
+            int other = firstRow + i;
+            if (skip.get(other)) {
+                continue;
+            }
+            for (int q = 0; q < batch.length; q++) {
+                double dot = VectorMath.dot(matrix, (offset + i) * dimension, batchVectors, q * dimension, dimension);
+                insert(other, batch[q], (float) metric.rankScore(dot, norms[offset + i], batchNorms[q]));
+            }
+        }
+    }
+
+    // Inserts the neighbour into the row's sorted list if it beats the current worst entry, replacing an older entry
+    private void insert(int row, int neighbour, float score) {
+        int base = row * k;
+        int last = base + k - 1;
+        for (int i = base; i <= last && neighbours[i] >= 0; i++) {
+            if (neighbours[i] == neighbour) {
+                System.arraycopy(neighbours, i + 1, neighbours, i, last - i);
+                System.arraycopy(scores, i + 1, scores, i, last - i);
+                neighbours[last] = -1;
+                break;
+            }
+        }
+        if (neighbours[last] >= 0 && scores[last] >= score) {
+            return;
+        }
+        if (incomplete.get(row)) {
+            // The free slot belonged to a removed neighbour; only a row ranking above the worst one is certain to fit
+            if (neighbours[base] < 0) {
+                return;
+            }
+            int worst = base;
+            while (worst < last && neighbours[worst + 1] >= 0) {
+                worst++;
+            }
+            if (scores[worst] > score) {
+                return;
+            }
+        }
+        int position = last;
+        while (position > base && (neighbours[position - 1] < 0 || scores[position - 1] < score)) {
+            neighbours[position] = neighbours[position - 1];
+            scores[position] = scores[position - 1];
+            position--;
+        }
+        neighbours[position] = neighbour;
+        scores[position] = score;
+    }
+
+    private void ensureCapacity(int requiredRows) {
+        if (requiredRows > termHashes.length) {
+            int capacity = Math.max(requiredRows, termHashes.length + (termHashes.length >> 1) + 16);
+            termHashes = Arrays.copyOf(termHashes, capacity);
+            neighbours = Arrays.copyOf(neighbours, capacity * k);
+            scores = Arrays.copyOf(scores, capacity * k);
+        }
+    }
+
+    // FNV-1a over the UTF-8 bytes: stable across JVMs, unlike String.hashCode() it is not limited to 32 bits
+    private static long termHash(String term) {
+        if (term == null) {
+            return 0;
+        }
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : term.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+}
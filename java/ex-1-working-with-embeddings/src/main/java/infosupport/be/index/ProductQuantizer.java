@@ -0,0 +1,176 @@
+package infosupport.be.index;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Product quantization (Jégou et al., 2011): the vector is cut into subspaces of
+ * {@code subspaceDimension} dimensions, and each slice is replaced by the index of its nearest
+ * centroid out of 256, trained with k-means per subspace. With 4 dimensions per subspace a
+ * vector shrinks 16x.
+ * <p>
+ * A query is scored with asymmetric distance computation: the dot product of every query
+ * slice with every centroid is put in a lookup table once, after which scoring a code is one
+ * table lookup per subspace.
+ */
+final class ProductQuantizer implements Quantizer {
+    private static final int CENTROIDS = 256;
+    private static final int ITERATIONS = 8;
+
+    private final int subspaceDimension;
+    private int dimension;
+    private int subspaces;
+    private int centroidCount;
+    // centroids[s] holds centroidCount rows of length(s) floats
+    private float[][] centroids;
+    private float[][] centroidNorms;
+
+    ProductQuantizer(int subspaceDimension) {
+        if (subspaceDimension < 1) {
+            throw new IllegalArgumentException("PQ subspace dimension must be at least 1, got " + subspaceDimension);
+        }
+        this.subspaceDimension = subspaceDimension;
+    }
+
+    @Override
+    public String name() {
+        return "pq";
+    }
+
+    @Override
+    public int codeSize() {
+        return subspaces;
+    }
+
+    @Override
+    public void train(float[] sample, int rows, int dimension) {
+        this.dimension = dimension;
+        this.subspaces = (dimension + subspaceDimension - 1) / subspaceDimension;
+        this.centroidCount = Math.min(CENTROIDS, rows);
+        this.centroids = new float[subspaces][];
+        this.centroidNorms = new float[subspaces][];
+        // Subspaces are independent, so they train in parallel
+        IntStream.range(0, subspaces).parallel().forEach(s -> trainSubspace(s, sample, rows));
+    }
+
+    @Override
+    public void encode(float[] vector, int offset, byte[] codes, int codeOffset) {
+        for (int s = 0; s < subspaces; s++) {
+            codes[codeOffset + s] = (byte) nearest(s, vector, offset + start(s));
+        }
+    }
+
+    @Override
+    public CodeScorer scorer(float[] query) {
+        float[] table = new float[subspaces * CENTROIDS];
+        for (int s = 0; s < subspaces; s++) {
+            int length = length(s);
+            for (int c = 0; c < centroidCount; c++) {
+                table[s * CENTROIDS + c] = dot(query, start(s), centroids[s], c * length, length);
+            }
+        }
+        return (codes, offset) -> {
+            float sum = 0;
+            for (int s = 0; s < subspaces; s++) {
+                sum += table[s * CENTROIDS + (codes[offset + s] & 0xFF)];
+            }
+            return sum;
+        };
+    }
+
+    /**
+     * Lloyd's k-means on one slice of the sample, seeded with distinct random sample rows.
+     */
+    private void trainSubspace(int subspace, float[] sample, int rows) {
+        int start = start(subspace);
+        int length = length(subspace);
+        Random random = new Random(42 + subspace);
+        float[] current = new float[centroidCount * length];
+        centroids[subspace] = current;
+
+        int[] order = IntStream.range(0, rows).toArray();
+        for (int c = 0; c < centroidCount; c++) {
+            int pick = c + random.nextInt(rows - c);
+            int row = order[pick];
+            order[pick] = order[c];
+            order[c] = row;
+            System.arraycopy(sample, row * dimension + start, current, c * length, length);
+        }
+
+        int[] assignment = new int[rows];
+        double[] sums = new double[centroidCount * length];
+        int[] counts = new int[centroidCount];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            centroidNorms[subspace] = squaredNorms(current, length);
+            for (int row = 0; row < rows; row++) {
+                assignment[row] = nearest(subspace, sample, row * dimension + start);
+            }
+
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int row = 0; row < rows; row++) {
+                int c = assignment[row];
+                counts[c]++;
+                for (int i = 0; i < length; i++) {
+                    sums[c * length + i] += sample[row * dimension + start + i];
+                }
+            }
+            for (int c = 0; c < centroidCount; c++) {
+                if (counts[c] == 0) {
+                    // Re-seed an empty cluster with a random sample row
+                    System.arraycopy(sample, random.nextInt(rows) * dimension + start, current, c * length, length);
+                    continue;
+                }
+                for (int i = 0; i < length; i++) {
+                    current[c * length + i] = (float) (sums[c * length + i] / counts[c]);
+                }
+            }
+        }
+        centroidNorms[subspace] = squaredNorms(current, length);
+    }
+
+    /**
+     * @return the centroid closest in L2 distance, using |x - c|^2 = |x|^2 - 2 x.c + |c|^2 without the constant |x|^2
+     */
+    private int nearest(int subspace, float[] vector, int offset) {
+        int length = length(subspace);
+        float[] current = centroids[subspace];
+        float[] norms = centroidNorms[subspace];
+        int best = 0;
+        float bestDistance = Float.POSITIVE_INFINITY;
+        for (int c = 0; c < centroidCount; c++) {
+            float distance = norms[c] - 2 * dot(vector, offset, current, c * length, length);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private float[] squaredNorms(float[] rows, int length) {
+        float[] norms = new float[centroidCount];
+        for (int c = 0; c < centroidCount; c++) {
+            norms[c] = dot(rows, c * length, rows, c * length, length);
+        }
+        return norms;
+    }
+
+    private int start(int subspace) {
+        return subspace * subspaceDimension;
+    }
+
+    private int length(int subspace) {
+        return Math.min(subspaceDimension, dimension - start(subspace));
+    }
+
+    // Subspaces are only a few floats long, too short to benefit from the vector kernel
+    private static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+}
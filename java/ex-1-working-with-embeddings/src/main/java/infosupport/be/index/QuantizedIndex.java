@@ -0,0 +1,284 @@
+package infosupport.be.index;
+
+import infosupport.be.util.FlatEmbeddingStore;
+import infosupport.be.util.SimilarityMetric;
+import infosupport.be.util.TopKHeap;
+import infosupport.be.util.VectorMath;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * Scans compact quantized codes instead of full-precision vectors, then re-ranks the best
+ * candidates exactly. Meant for an off-heap {@link FlatEmbeddingStore}: the heap only holds the
+ * codes and one norm per row (4x smaller with int8, 16x with 4-dimensional PQ subspaces), while
+ * the full-precision rows are only copied out of direct memory for the few candidates that are re-ranked.
+ * <p>
+ * The quantizer is trained once the store holds {@code trainingRows} terms, on a sample of the rows
+ * that hold a term. Training and encoding the store run on a background thread, and searches are
+ * answered by an exact scan until the codes are swapped in. Rows added after training are encoded
+ * with the trained parameters, and so are rows the store reuses after a removal; rows added or reused
+ * while the training thread encodes are recorded and encoded again before the swap.
+ */
+@Slf4j
+public class QuantizedIndex implements VectorIndex {
+    private static final int PARTITION_ROWS = 16384;
+    private static final int ENCODE_BLOCK_ROWS = 1024;
+
+    private final FlatEmbeddingStore store;
+    private final SimilarityMetric metric;
+    private final Quantizer quantizer;
+    private final ExactIndex exactIndex;
+    private final int rerankFactor;
+    private final int trainingRows;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean training = new AtomicBoolean();
+
+    // Written by the training thread alone until trained is set, under the lock after that
+    private byte[] codes = new byte[0];
+    private float[] norms = new float[0];
+    private int codeSize;
+    private int encodedRows;
+    private boolean trained;
+    // Rows added or reused while the training thread encodes, encoded again before the swap; guarded by the lock
+    private BitSet changedDuringTraining;
+
+    QuantizedIndex(FlatEmbeddingStore store, SimilarityMetric metric, Quantizer quantizer,
+                   int rerankFactor, int trainingRows) {
+        this.store = store;
+        this.metric = metric;
+        this.quantizer = quantizer;
+        this.exactIndex = new ExactIndex(store, metric);
+        this.rerankFactor = Math.max(1, rerankFactor);
+        this.trainingRows = Math.max(1, trainingRows);
+    }
+
+    /**
+     * Scalar quantization to one byte per dimension.
+     *
+     * @param rerankFactor candidates re-ranked at full precision, as a multiple of k
+     * @param trainingRows rows to collect before training, and the training sample size
+     */
+    public static QuantizedIndex int8(FlatEmbeddingStore store, SimilarityMetric metric,
+                                      int rerankFactor, int trainingRows) {
+        return new QuantizedIndex(store, metric, new ScalarQuantizer(), rerankFactor, trainingRows);
+    }
+
+    /**
+     * Product quantization to one byte per {@code subspaceDimension} dimensions.
+     *
+     * @param rerankFactor candidates re-ranked at full precision, as a multiple of k
+     * @param trainingRows rows to collect before training, and the training sample size
+     */
+    public static QuantizedIndex productQuantized(FlatEmbeddingStore store, SimilarityMetric metric,
+                                                  int subspaceDimension, int rerankFactor, int trainingRows) {
+        return new QuantizedIndex(store, metric, new ProductQuantizer(subspaceDimension), rerankFactor, trainingRows);
+    }
+
+    @Override
+    public String name() {
+        return quantizer.name();
+    }
+
+    @Override
+    public SimilarityMetric metric() {
+        return metric;
+    }
+
+    @Override
+    public void add(int row) {
+        boolean untrained;
+        lock.writeLock().lock();
+        try {
+            untrained = !trained;
+            if (untrained) {
+                if (changedDuringTraining != null) {
+                    changedDuringTraining.set(row);
+                }
+            } else if (row >= encodedRows) {
+                // Catch up on every row stored so far, concurrent writers may add rows out of order
+                int rows = store.size();
+                encodeRows(encodedRows, rows);
+                encodedRows = rows;
+            } else {
+                // A row freed by an eviction and reused for a new term
+                encodeRows(row, row + 1);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // Stored terms, as free rows are not sampled
+        if (untrained && store.termCount() >= trainingRows) {
+            trainInBackground();
+        }
+    }
+
+    @Override
+    public TopKHeap search(float[] query, int k, BitSet excluded) {
+        return search(query, k, excluded, k * rerankFactor);
+    }
+
+    /**
+     * @param searchWidth number of candidates from the code scan that are re-ranked at full precision
+     */
+    @Override
+    public TopKHeap search(float[] query, int k, BitSet excluded, int searchWidth) {
+        lock.readLock().lock();
+        try {
+            if (!trained) {
+                return exactIndex.search(query, k, excluded);
+            }
+            BitSet skip = store.excludeFree(excluded);
+            double queryNorm = VectorMath.norm(query);
+            Quantizer.CodeScorer scorer = quantizer.scorer(query);
+            int candidateCount = Math.max(searchWidth, k);
+            int partitions = (encodedRows + PARTITION_ROWS - 1) / PARTITION_ROWS;
+            TopKHeap candidates = IntStream.range(0, partitions).parallel()
+                    .mapToObj(p -> scanCodes(scorer, queryNorm, candidateCount, skip,
+                            p * PARTITION_ROWS, Math.min(encodedRows, (p + 1) * PARTITION_ROWS)))
+                    .reduce((left, right) -> {
+                        left.merge(right);
+                        return left;
+                    })
+                    .orElseGet(() -> new TopKHeap(candidateCount));
+
+            // Re-rank the candidates against the full-precision rows
+            TopKHeap result = new TopKHeap(k);
+            for (int row : candidates.sortedRows()) {
+                double dot = VectorMath.dot(query, store.row(row));
+                result.offer(row, metric.rankScore(dot, queryNorm, norms[row]));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private TopKHeap scanCodes(Quantizer.CodeScorer scorer, double queryNorm, int candidateCount,
+                               BitSet excluded, int from, int to) {
+        TopKHeap heap = new TopKHeap(candidateCount);
+        for (int row = from; row < to; row++) {
+            if (excluded != null && excluded.get(row)) {
+                continue;
+            }
+            double dot = scorer.dot(codes, row * codeSize);
+            heap.offer(row, metric.rankScore(dot, queryNorm, norms[row]));
+        }
+        return heap;
+    }
+
+    /**
+     * Trains the quantizer on a random sample of the rows that hold a term, encodes every row in the store,
+     * and then switches searches from the exact scan to the codes. Does nothing once trained; one training
+     * runs at a time.
+     */
+    public synchronized void train() {
+        long start = System.nanoTime();
+        lock.writeLock().lock();
+        try {
+            if (trained) {
+                return;
+            }
+            changedDuringTraining = new BitSet();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            int rows = store.size();
+            int dimension = store.dimension();
+            // Rows freed before this point hold zeroes; rows reused later are recorded in changedDuringTraining
+            BitSet free = store.excludeFree(null);
+            int[] storedRows = IntStream.range(0, rows).filter(row -> free == null || !free.get(row)).toArray();
+            if (storedRows.length == 0) {
+                return;
+            }
+            int sampleRows = Math.min(storedRows.length, trainingRows);
+            int[] sampled = new Random(42).ints(0, storedRows.length).distinct().limit(sampleRows)
+                    .map(i -> storedRows[i]).toArray();
+            float[] sample = new float[sampleRows * dimension];
+            for (int i = 0; i < sampleRows; i++) {
+                System.arraycopy(store.row(sampled[i]), 0, sample, i * dimension, dimension);
+            }
+            quantizer.train(sample, sampleRows, dimension);
+            codeSize = quantizer.codeSize();
+            encodeRows(0, rows);
+
+            lock.writeLock().lock();
+            try {
+                // The copies above may predate these rows' new term
+                BitSet changed = changedDuringTraining;
+                for (int row = changed.nextSetBit(0); row >= 0 && row < rows; row = changed.nextSetBit(row + 1)) {
+                    encodeRows(row, row + 1);
+                }
+                // Catch up on the rows stored while encoding
+                int stored = store.size();
+                encodeRows(rows, stored);
+                encodedRows = stored;
+                trained = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            int fullBytes = dimension * Float.BYTES;
+            log.info("Trained {} quantizer on {} of {} terms in {} ms: {} bytes per row instead of {} ({}x smaller)",
+                    quantizer.name(), sampleRows, storedRows.length, (System.nanoTime() - start) / 1_000_000,
+                    codeSize, fullBytes, String.format("%.1f", fullBytes / (double) codeSize));
+        } finally {
+            lock.writeLock().lock();
+            try {
+                changedDuringTraining = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void trainInBackground() {
+        if (!training.compareAndSet(false, true)) {
+            return;
+        }
+        Thread.ofPlatform().name(quantizer.name() + "-training").daemon().start(() -> {
+            try {
+                train();
+            } catch (RuntimeException e) {
+                log.warn("Training the {} quantizer failed, searches keep scanning exactly: {}", quantizer.name(), e.getMessage());
+            } finally {
+                training.set(false);
+            }
+        });
+    }
+
+    /**
+     * Encodes the rows {@code [from, to)}, copying them out of the store a block at a time.
+     */
+    private void encodeRows(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        ensureCapacity(to);
+        int dimension = store.dimension();
+        float[] block = new float[Math.min(ENCODE_BLOCK_ROWS, to - from) * dimension];
+        float[] blockNorms = new float[block.length / dimension];
+        for (int start = from; start < to; start += blockNorms.length) {
+            int copied = store.copyRows(start, Math.min(blockNorms.length, to - start), block, blockNorms);
+            int first = start;
+            IntStream.range(0, copied).parallel().forEach(i -> {
+                quantizer.encode(block, i * dimension, codes, (first + i) * codeSize);
+                norms[first + i] = blockNorms[i];
+            });
+        }
+    }
+
+    private void ensureCapacity(int requiredRows) {
+        if (requiredRows > norms.length) {
+            int capacity = Math.max(requiredRows, norms.length + (norms.length >> 1) + 16);
+            codes = Arrays.copyOf(codes, capacity * codeSize);
+            norms = Arrays.copyOf(norms, capacity);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package infosupport.be.index;
+
+/**
+ * Lossy compression of vectors into byte codes that can still be scored against a full-precision query.
+ * A quantizer is trained once on a sample of the vocabulary; vectors added later are encoded with
+ * the same parameters.
+ */
+interface Quantizer {
+
+    String name();
+
+    /**
+     * @return bytes per encoded vector
+     */
+    int codeSize();
+
+    /**
+     * @param sample row-major sample vectors
+     */
+    void train(float[] sample, int rows, int dimension);
+
+    void encode(float[] vector, int offset, byte[] codes, int codeOffset);
+
+    /**
+     * Precomputes whatever the query needs, so scoring a code is a cheap loop over its bytes.
+     */
+    CodeScorer scorer(float[] query);
+
+    @FunctionalInterface
+    interface CodeScorer {
+        /**
+         * @return the approximate dot product between the query and the encoded vector
+         */
+        double dot(byte[] codes, int offset);
+    }
+}
@@ -0,0 +1,40 @@
+package infosupport.be.index;
+
+import java.util.List;
+
+/**
+ * Recall-vs-latency measurements of an index against the exact scan, one point per search width.
+ *
+ * @param index                the evaluated index
+ * @param vocabularySize       number of rows in the store
+ * @param queries              number of sampled queries
+ * @param k                    results per query
+ * @param exactMillisPerQuery  average latency of the exact scan
+ * @param points               one measurement per search width
+ */
+public record RecallReport(String index, int vocabularySize, int queries, int k,
+                           double exactMillisPerQuery, List<Point> points) {
+
+    /**
+     * @param searchWidth     the search width used (e.g. efSearch)
+     * @param recall          average fraction of the exact top-k that the index returned
+     * @param millisPerQuery  average latency of the index
+     */
+    public record Point(int searchWidth, double recall, double millisPerQuery) {
+    }
+
+    /**
+     * Renders the report as a small table, e.g. for the log.
+     */
+    public String format() {
+        StringBuilder table = new StringBuilder();
+        table.append(String.format("Recall@%d of '%s' over %d terms (%d queries), exact scan: %.3f ms/query%n",
+                k, index, vocabularySize, queries, exactMillisPerQuery));
+        table.append(String.format("%8s %8s %10s %8s%n", "width", "recall", "ms/query", "speedup"));
+        for (Point point : points) {
+            table.append(String.format("%8d %8.3f %10.3f %7.1fx%n", point.searchWidth(), point.recall(),
+                    point.millisPerQuery(), exactMillisPerQuery / Math.max(point.millisPerQuery(), 1e-9)));
+        }
+        return table.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package infosupport.be.index;
+
+import java.util.Arrays;
+
+/**
+ * Scalar (int8) quantization: every dimension is mapped linearly from its trained
+ * {@code [min, max]} range onto 256 levels, which shrinks a vector 4x.
+ * <p>
+ * The dot product with a query is computed directly on the codes: with
+ * {@code x[i] ~ min[i] + (code[i] + 128) * step[i]}, it splits into a per-query constant
+ * plus {@code sum(query[i] * step[i] * code[i])}.
+ */
+final class ScalarQuantizer implements Quantizer {
+    private float[] min;
+    private float[] step;
+
+    @Override
+    public String name() {
+        return "int8";
+    }
+
+    @Override
+    public int codeSize() {
+        return min.length;
+    }
+
+    @Override
+    public void train(float[] sample, int rows, int dimension) {
+        min = new float[dimension];
+        step = new float[dimension];
+        float[] max = new float[dimension];
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+        for (int row = 0; row < rows; row++) {
+            for (int i = 0; i < dimension; i++) {
+                float value = sample[row * dimension + i];
+                min[i] = Math.min(min[i], value);
+                max[i] = Math.max(max[i], value);
+            }
+        }
+        for (int i = 0; i < dimension; i++) {
+            step[i] = Math.max((max[i] - min[i]) / 255f, Float.MIN_NORMAL);
+        }
+    }
+
+    @Override
+    public void encode(float[] vector, int offset, byte[] codes, int codeOffset) {
+        for (int i = 0; i < min.length; i++) {
+            // Values outside the trained range are clamped to its edges
+            int level = Math.round((vector[offset + i] - min[i]) / step[i]);
+            codes[codeOffset + i] = (byte) (Math.clamp(level, 0, 255) - 128);
+        }
+    }
+
+    @Override
+    public CodeScorer scorer(float[] query) {
+        float[] scaledQuery = new float[min.length];
+        double constant = 0;
+        for (int i = 0; i < min.length; i++) {
+            scaledQuery[i] = query[i] * step[i];
+            constant += query[i] * (min[i] + 128 * step[i]);
+        }
+        double queryConstant = constant;
+        return (codes, offset) -> {
+            float sum = 0;
+            for (int i = 0; i < scaledQuery.length; i++) {
+                sum += scaledQuery[i] * codes[offset + i];
+            }
+            return queryConstant + sum;
+        };
+    }
+}
@@ -0,0 +1,74 @@
+package infosupport.be.index;
+
+import infosupport.be.util.SimilarityMetric;
+import infosupport.be.util.TopKHeap;
+
+import java.util.BitSet;
+
+/**
+ * Search structure over the rows of a {@link infosupport.be.util.FlatEmbeddingStore}.
+ * The store owns the vectors; an index only keeps whatever it needs to find rows quickly
+ * and is told about new rows through {@link #add(int)}.
+ */
+public interface VectorIndex {
+
+    /**
+     * Short name used in logs and reports.
+     */
+    String name();
+
+    SimilarityMetric metric();
+
+    /**
+     * Makes a row that was just written to the store searchable. Adding a row twice is a no-op,
+     * unless it was {@link #remove(int) removed} in between.
+     */
+    void add(int row);
+
+    /**
+     * Forgets a row that was removed from the store. The store may hand the row to a new term later,
+     * which is then passed to {@link #add(int)} again. Searches skip free rows either way.
+     */
+    default void remove(int row) {
+    }
+
+    /**
+     * Runtime statistics of the index, e.g. the partition sizes and probe counts of an ivf index.
+     *
+     * @return the stats, or {@code null} if the index keeps none
+     */
+    default IndexStats stats() {
+        return null;
+    }
+
+    /**
+     * Finds the {@code k} best rows for the query using the index's default search width.
+     *
+     * @param excluded rows that must not be returned, or {@code null}
+     * @return a heap with at most {@code k} rows, scored with {@link SimilarityMetric#rankScore}
+     */
+    TopKHeap search(float[] query, int k, BitSet excluded);
+
+    /**
+     * Same as {@link #search(float[], int, BitSet)}, but with an explicit search width
+     * (e.g. efSearch for HNSW). Indexes without such a knob ignore it.
+     */
+    default TopKHeap search(float[] query, int k, BitSet excluded, int searchWidth) {
+        return search(query, k, excluded);
+    }
+
+    /**
+     * Searches a batch of queries at once. Indexes that can share work between queries
+     * (e.g. a single pass over the matrix) override this; the default searches them one by one.
+     *
+     * @param excluded rows to skip per query, or {@code null}
+     * @return one heap per query, in query order
+     */
+    default TopKHeap[] searchAll(float[][] queries, int k, BitSet[] excluded) {
+        TopKHeap[] results = new TopKHeap[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            results[q] = search(queries[q], k, excluded == null ? null : excluded[q]);
+        }
+        return results;
+    }
+}
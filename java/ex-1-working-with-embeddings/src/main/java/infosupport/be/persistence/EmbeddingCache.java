@@ -0,0 +1,272 @@
+package infosupport.be.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Durable on-disk cache of term embeddings, one append-only file per embedding model.
+ * <p>
+ * File layout (little-endian):
+ * <pre>
+ * header: magic "EMBC" | version | dimension | model name length | model name (UTF-8) | padding to 4 bytes
+ * record: term length | term (UTF-8) | padding to 4 bytes | dimension floats
+ * </pre>
+ * Loading maps the file read-only and bulk-copies each vector straight out of the mapping,
+ * so a warm start costs a memory copy instead of an embedding call per term. A record that
+ * was only partially written (e.g. the process was killed mid-append) is truncated away.
+ * <p>
+ * Every term is written once: a bounded store may evict a term and embed it again later, but the
+ * cache remembers which terms it holds and skips them, so the file never grows beyond the vocabulary.
+ * Files written before that may hold duplicates; only the first record of a term is loaded.
+ */
+@Slf4j
+public class EmbeddingCache {
+    private static final int MAGIC = 0x434D4245; // "EMBC" read as a little-endian int
+    private static final int VERSION = 1;
+    private static final int LOAD_BATCH = 4096;
+
+    private final Path file;
+    private final String modelName;
+    private FileChannel channel;
+    private long appendPosition;
+    private int dimension = -1;
+    // Terms that have a record in the file
+    private final Set<String> persisted = new HashSet<>();
+
+    /**
+     * Receives cached embeddings in batches while the cache is loaded.
+     */
+    @FunctionalInterface
+    public interface BatchConsumer {
+        void accept(List<String> terms, List<float[]> vectors);
+    }
+
+    /**
+     * @param directory directory that holds one cache file per model
+     * @param modelName embedding model the vectors come from; part of the file name and verified on load
+     */
+    public EmbeddingCache(Path directory, String modelName) {
+        this.modelName = modelName;
+        this.file = directory == null ? null : directory.resolve(modelName.replaceAll("[^A-Za-z0-9._-]", "_") + ".emb");
+    }
+
+    /**
+     * @return a cache that never loads or stores anything
+     */
+    public static EmbeddingCache disabled() {
+        return new EmbeddingCache(null, "disabled");
+    }
+
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    /**
+     * Streams every cached embedding into the consumer and opens the file for appending.
+     *
+     * @return the number of records that were loaded
+     */
+    public synchronized int load(BatchConsumer consumer) {
+        if (!isEnabled()) {
+            return 0;
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            appendPosition = channel.size();
+            if (appendPosition == 0) {
+                return 0;
+            }
+
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (!readHeader(mapped)) {
+                log.warn("Embedding cache {} belongs to another model or format, starting a new one", file);
+                dimension = -1;
+                discardFrom(0);
+                return 0;
+            }
+
+            int loaded = 0;
+            int duplicates = 0;
+            int recordSize = dimension * Float.BYTES;
+            List<String> terms = new ArrayList<>(LOAD_BATCH);
+            List<float[]> vectors = new ArrayList<>(LOAD_BATCH);
+            int validEnd = mapped.position();
+            while (mapped.remaining() >= Integer.BYTES) {
+                int termLength = mapped.getInt();
+                int vectorStart = align(mapped.position() + termLength);
+                if (termLength <= 0 || vectorStart + recordSize > mapped.limit()) {
+                    break;
+                }
+                byte[] termBytes = new byte[termLength];
+                mapped.get(termBytes);
+                float[] vector = new float[dimension];
+                FloatBuffer floats = mapped.slice(vectorStart, recordSize).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                floats.get(vector);
+                mapped.position(vectorStart + recordSize);
+                validEnd = mapped.position();
+
+                String term = new String(termBytes, StandardCharsets.UTF_8);
+                if (!persisted.add(term)) {
+                    duplicates++;
+                    continue;
+                }
+                terms.add(term);
+                vectors.add(vector);
+                loaded++;
+                if (terms.size() == LOAD_BATCH) {
+                    consumer.accept(terms, vectors);
+                    terms = new ArrayList<>(LOAD_BATCH);
+                    vectors = new ArrayList<>(LOAD_BATCH);
+                }
+            }
+            if (!terms.isEmpty()) {
+                consumer.accept(terms, vectors);
+            }
+            if (duplicates > 0) {
+                log.info("Embedding cache {} holds {} duplicate records, skipped them", file, duplicates);
+            }
+
+            if (validEnd < channel.size()) {
+                log.warn("Embedding cache {} ends with an incomplete record, discarding {} bytes",
+                        file, channel.size() - validEnd);
+                discardFrom(validEnd);
+            }
+            return loaded;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load embedding cache " + file, e);
+        }
+    }
+
+    /**
+     * Appends embeddings to the cache file, skipping terms it already holds. Does nothing until
+     * {@link #load} has opened the file.
+     */
+    public synchronized void append(List<String> terms, List<float[]> vectors) {
+        if (channel == null || terms.isEmpty()) {
+            return;
+        }
+        List<String> newTerms = new ArrayList<>(terms.size());
+        List<float[]> newVectors = new ArrayList<>(terms.size());
+        for (int i = 0; i < terms.size(); i++) {
+            if (!persisted.contains(terms.get(i))) {
+                newTerms.add(terms.get(i));
+                newVectors.add(vectors.get(i));
+            }
+        }
+        if (!newTerms.isEmpty()) {
+            write(newTerms, newVectors);
+        }
+    }
+
+    private void write(List<String> terms, List<float[]> vectors) {
+        try {
+            if (dimension < 0) {
+                dimension = vectors.get(0).length;
+                ByteBuffer header = header();
+                appendPosition = header.remaining();
+                channel.write(header, 0);
+            }
+            int size = 0;
+            List<byte[]> encoded = new ArrayList<>(terms.size());
+            for (String term : terms) {
+                byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                size += align(Integer.BYTES + bytes.length) + dimension * Float.BYTES;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < terms.size(); i++) {
+                byte[] bytes = encoded.get(i);
+                buffer.putInt(bytes.length).put(bytes);
+                buffer.position(align(buffer.position()));
+                buffer.asFloatBuffer().put(vectors.get(i), 0, dimension);
+                buffer.position(buffer.position() + dimension * Float.BYTES);
+            }
+            buffer.flip();
+
+            while (buffer.hasRemaining()) {
+                appendPosition += channel.write(buffer, appendPosition);
+            }
+            persisted.addAll(terms);
+        } catch (IOException e) {
+            // The cache is an optimization: losing a write only costs a re-embed on the next start
+            log.warn("Failed to append {} terms to embedding cache {}: {}", terms.size(), file, e.getMessage());
+        }
+    }
+
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close embedding cache {}: {}", file, e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Makes the next append start at the given position. Truncation can fail while the file is
+     * still mapped (on Windows), in which case the next appends simply overwrite the stale bytes.
+     */
+    private void discardFrom(long position) {
+        appendPosition = position;
+        try {
+            channel.truncate(position);
+        } catch (IOException e) {
+            log.debug("Could not truncate embedding cache {}: {}", file, e.getMessage());
+        }
+    }
+
+    private boolean readHeader(ByteBuffer buffer) {
+        if (buffer.remaining() < 4 * Integer.BYTES || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return false;
+        }
+        int storedDimension = buffer.getInt();
+        int nameLength = buffer.getInt();
+        if (nameLength < 0 || nameLength > buffer.remaining()) {
+            return false;
+        }
+        byte[] name = new byte[nameLength];
+        buffer.get(name);
+        buffer.position(align(buffer.position()));
+        if (!modelName.equals(new String(name, StandardCharsets.UTF_8))) {
+            return false;
+        }
+        dimension = storedDimension;
+        return true;
+    }
+
+    private ByteBuffer header() {
+        byte[] name = modelName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(align(4 * Integer.BYTES + name.length)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(dimension).putInt(name.length).put(name);
+        return header.clear();
+    }
+
+    // Keeps every vector 4-byte aligned inside the mapping
+    private static int align(int position) {
+        return (position + 3) & ~3;
+    }
+}
@@ -1,6 +1,7 @@
 package infosupport.be.plot;
 
 import infosupport.be.util.EmbeddingManager;
+import infosupport.be.util.VectorMath;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Component;
 
@@ -11,17 +12,32 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.stream.IntStream;
 
 /**
  * Generates a 2D plot of word embeddings on custom axes (X and Y)
  * and saves it as a PNG image. Uses midpoint-based centering for each axis.
+ * <p>
+ * Scales to tens of thousands of words: the words are projected in parallel straight from the
+ * embedding store, the points are rendered into horizontal tiles concurrently, and labels that
+ * would overlap an earlier label are left out so the plot stays readable.
+ * <p>
+ * Besides axes defined by anchor words, an overview of the whole vocabulary can be plotted on its
+ * principal components or a random projection, see {@link EmbeddingProjector}.
  */
 @Component
 @RequiredArgsConstructor
 public class EmbeddingPlotter {
+    private static final Font LABEL_FONT = new Font("SansSerif", Font.PLAIN, 12);
+    // Side of a cell in the label collision grid, in pixels
+    private static final int LABEL_CELL = 4;
+    private static final int MIN_TILE_HEIGHT = 100;
+    private static final int DENSE_PLOT_POINTS = 2000;
 
     private final EmbeddingManager embeddingManager;
+    private final EmbeddingProjector embeddingProjector;
 
     /**
      * Renders a 2D scatter plot of the given words onto the provided anchors
@@ -59,15 +75,63 @@ public class EmbeddingPlotter {
         float[] yMid = averageVectors(yBottomVec, yTopVec);
         float[] yDir = normalize(subtract(yTopVec, yBottomVec));
 
-        // 2) Project each word by subtracting midpoints and dotting with each axis
-        List<Point2D> points = new ArrayList<>();
-        for (String word : words) {
-            float[] wVec = embeddingManager.valueOf(word).vector();
-            double xVal = dot(subtract(wVec, xMid), xDir);
-            double yVal = dot(subtract(wVec, yMid), yDir);
-            points.add(new Point2D(word, xVal, yVal));
+        // 2) Project every word in parallel: (w - mid) . dir == w . dir - mid . dir, so no difference vectors are needed
+        double[][] projected = embeddingManager.project(words, xDir, yDir);
+        double xOffset = dot(xMid, xDir);
+        double yOffset = dot(yMid, yDir);
+        List<Point2D> points = new ArrayList<>(words.size());
+        for (int i = 0; i < words.size(); i++) {
+            points.add(new Point2D(words.get(i), projected[0][i] - xOffset, projected[1][i] - yOffset));
         }
 
+        String title = String.format("Word Embeddings Plot: %s-%s vs %s-%s",
+                xLabelLeft, xLabelRight, yLabelBottom, yLabelTop);
+        render(points, title, width, height, xLabelLeft, xLabelRight, yLabelBottom, yLabelTop, outputFile);
+    }
+
+    /**
+     * Renders every term in the store on two unsupervised axes, for an overview of the whole vocabulary,
+     * and saves the result as a PNG. The projection is cached until terms are added to the store.
+     *
+     * @param mode       principal components, or a random projection
+     * @param width      image width (pixels)
+     * @param height     image height (pixels)
+     * @param outputFile path to the PNG output
+     */
+    public void plotOverviewToImage(EmbeddingProjector.Mode mode, int width, int height, Path outputFile) {
+        EmbeddingProjector.Projection projection = embeddingProjector.project(mode);
+        List<Point2D> points = new ArrayList<>(projection.terms().length);
+        for (int row = 0; row < projection.terms().length; row++) {
+            // Rows freed by evictions have no term and no coordinates
+            if (projection.terms()[row] == null || Float.isNaN(projection.x()[row])) {
+                continue;
+            }
+            points.add(new Point2D(projection.terms()[row], projection.x()[row], projection.y()[row]));
+        }
+
+        String xAxis = mode == EmbeddingProjector.Mode.PCA ? "PC1" : "R1";
+        String yAxis = mode == EmbeddingProjector.Mode.PCA ? "PC2" : "R2";
+        String xShare = Double.isNaN(projection.xVariance()) ? "" : String.format(" (%.1f%%)", 100 * projection.xVariance());
+        String yShare = Double.isNaN(projection.yVariance()) ? "" : String.format(" (%.1f%%)", 100 * projection.yVariance());
+        String title = String.format("Word Embeddings Overview: %s of %d terms", mode, points.size());
+        render(points, title, width, height, "-" + xAxis, "+" + xAxis + xShare, "-" + yAxis, "+" + yAxis + yShare,
+                outputFile);
+    }
+
+    /**
+     * Draws the points with their axes and labels and saves the plot as a PNG.
+     */
+    private void render(
+            List<Point2D> points,
+            String title,
+            int width,
+            int height,
+            String xLabelLeft,
+            String xLabelRight,
+            String yLabelBottom,
+            String yLabelTop,
+            Path outputFile
+    ) {
         // 3) Find min/max for plotting
         double minX = points.stream().mapToDouble(Point2D::x).min().orElse(0.0);
         double maxX = points.stream().mapToDouble(Point2D::x).max().orElse(1.0);
@@ -93,30 +157,24 @@ public class EmbeddingPlotter {
         final int MARGIN = 50;
         g.setColor(Color.BLACK);
         g.setFont(new Font("SansSerif", Font.BOLD, 16));
-        String title = String.format("Word Embeddings Plot: %s-%s vs %s-%s",
-                xLabelLeft, xLabelRight, yLabelBottom, yLabelTop);
         g.drawString(title, MARGIN, MARGIN - 10);
 
         // 5) Draw numeric axes with ticks
         drawAxesAndTicks(g, width, height, minX, maxX, minY, maxY);
 
-        // 6) Plot the points
-        g.setFont(new Font("SansSerif", Font.PLAIN, 12));
-        for (Point2D p : points) {
-            int xPix = transformXToPixel(p.x(), width, minX, maxX);
-            int yPix = transformYToPixel(p.y(), height, minY, maxY);
-            g.setColor(new Color(0, 100, 0)); // dark green
-            g.fillOval(xPix - 4, yPix - 4, 8, 8);
-            g.drawString(p.label(), xPix - 4, yPix - 9);
-        }
+        // 6) Place the points, keeping only the labels that do not overlap an earlier one
+        List<Marker> markers = placeMarkers(points, g.getFontMetrics(LABEL_FONT), width, height, minX, maxX, minY, maxY);
+
+        // 7) Render the markers into horizontal tiles concurrently, then composite the tiles
+        drawMarkersInTiles(g, markers, width, height);
 
-        // 7) Add axis labels at the margins
+        // 8) Add axis labels at the margins
         drawAxisLabels(g, width, height, minX, maxX, minY, maxY,
                 xLabelLeft, xLabelRight, yLabelBottom, yLabelTop);
 
         g.dispose();
 
-        // 8) Save to PNG
+        // 9) Save to PNG
         try {
             ImageIO.write(image, "png", outputFile.toFile());
         } catch (IOException e) {
@@ -124,6 +182,84 @@ public class EmbeddingPlotter {
         }
     }
 
+    /**
+     * Converts the points to pixels and decides which labels to draw. Labels are placed in the order
+     * of the words, and a label is dropped when its box overlaps one that was already placed.
+     * Occupied space is tracked in a coarse grid, so each check only looks at the cells under the box.
+     */
+    private List<Marker> placeMarkers(List<Point2D> points, FontMetrics metrics, int width, int height,
+                                      double minX, double maxX, double minY, double maxY) {
+        int columns = width / LABEL_CELL + 1;
+        int rows = height / LABEL_CELL + 1;
+        BitSet occupied = new BitSet(columns * rows);
+        int labelHeight = metrics.getAscent() + metrics.getDescent();
+
+        List<Marker> markers = new ArrayList<>(points.size());
+        for (Point2D p : points) {
+            int xPix = transformXToPixel(p.x(), width, minX, maxX);
+            int yPix = transformYToPixel(p.y(), height, minY, maxY);
+            int labelWidth = metrics.stringWidth(p.label());
+
+            // The label's box, drawn with its baseline at (xPix - 4, yPix - 9)
+            int left = Math.max(0, (xPix - 4) / LABEL_CELL);
+            int right = Math.min(columns - 1, (xPix - 4 + labelWidth) / LABEL_CELL);
+            int top = Math.max(0, (yPix - 9 - metrics.getAscent()) / LABEL_CELL);
+            int bottom = Math.min(rows - 1, (yPix - 9 - metrics.getAscent() + labelHeight) / LABEL_CELL);
+
+            boolean free = left <= right && top <= bottom;
+            for (int row = top; row <= bottom && free; row++) {
+                int next = occupied.nextSetBit(row * columns + left);
+                free = next < 0 || next > row * columns + right;
+            }
+            if (free) {
+                for (int row = top; row <= bottom; row++) {
+                    occupied.set(row * columns + left, row * columns + right + 1);
+                }
+            }
+            markers.add(new Marker(xPix, yPix, free ? p.label() : null));
+        }
+        return markers;
+    }
+
+    /**
+     * Draws the markers into one transparent image per horizontal band, on parallel threads,
+     * then draws the bands onto the plot. A marker that straddles a band border is drawn into
+     * both bands and clipped by each.
+     */
+    private void drawMarkersInTiles(Graphics2D g, List<Marker> markers, int width, int height) {
+        int tiles = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), height / MIN_TILE_HEIGHT));
+        int tileHeight = (height + tiles - 1) / tiles;
+        // Dense plots get smaller dots, so the points do not merge into a solid blob
+        int radius = markers.size() > DENSE_PLOT_POINTS ? 2 : 4;
+
+        BufferedImage[] rendered = new BufferedImage[tiles];
+        IntStream.range(0, tiles).parallel().forEach(t -> {
+            int top = t * tileHeight;
+            int bottom = Math.min(height, top + tileHeight);
+            BufferedImage tile = new BufferedImage(width, bottom - top, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D tg = tile.createGraphics();
+            tg.translate(0, -top);
+            tg.setFont(LABEL_FONT);
+            tg.setColor(new Color(0, 100, 0)); // dark green
+            int ascent = tg.getFontMetrics().getAscent();
+            int descent = tg.getFontMetrics().getDescent();
+            for (Marker m : markers) {
+                if (m.yPix() + radius >= top && m.yPix() - radius < bottom) {
+                    tg.fillOval(m.xPix() - radius, m.yPix() - radius, 2 * radius, 2 * radius);
+                }
+                int baseline = m.yPix() - 9;
+                if (m.label() != null && baseline + descent >= top && baseline - ascent < bottom) {
+                    tg.drawString(m.label(), m.xPix() - 4, baseline);
+                }
+            }
+            tg.dispose();
+            rendered[t] = tile;
+        });
+        for (int t = 0; t < tiles; t++) {
+            g.drawImage(rendered[t], 0, t * tileHeight, null);
+        }
+    }
+
     /**
      * Draws X and Y axes (with numeric ticks) according to the data range.
      */
@@ -238,45 +374,27 @@ public class EmbeddingPlotter {
 
     // --- Vector math helpers ---
     private float[] subtract(float[] a, float[] b) {
-        float[] out = new float[a.length];
-        for (int i = 0; i < a.length; i++) {
-            out[i] = a[i] - b[i];
-        }
-        return out;
+        return VectorMath.subtract(a, b);
     }
 
     private float[] averageVectors(float[] a, float[] b) {
         float[] out = new float[a.length];
-        for (int i = 0; i < a.length; i++) {
-            out[i] = 0.5f * (a[i] + b[i]);
-        }
+        VectorMath.scaleAdd(out, 0.5f, a, 0);
+        VectorMath.scaleAdd(out, 0.5f, b, 0);
         return out;
     }
 
     private float[] normalize(float[] v) {
-        double normSq = 0;
-        for (float val : v) {
-            normSq += val * val;
-        }
-        double norm = Math.sqrt(normSq);
-        if (norm < 1e-12) {
-            return v; // avoid divide-by-zero
-        }
-        float[] out = new float[v.length];
-        for (int i = 0; i < v.length; i++) {
-            out[i] = (float) (v[i] / norm);
-        }
-        return out;
+        return VectorMath.normalize(v);
     }
 
     private double dot(float[] a, float[] b) {
-        double sum = 0;
-        for (int i = 0; i < a.length; i++) {
-            sum += a[i] * b[i];
-        }
-        return sum;
+        return VectorMath.dot(a, b);
     }
 
     // Data structure to hold each plotted point
     private record Point2D(String label, double x, double y) {}
+
+    // A point in pixels, with its label or null when the label would collide with another one
+    private record Marker(int xPix, int yPix, String label) {}
 }
@@ -0,0 +1,377 @@
+package infosupport.be.plot;
+
+import infosupport.be.util.FlatEmbeddingStore;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Projects every stored embedding onto two unsupervised axes, for an overview plot of the whole
+ * vocabulary. The projection is computed in parallel blocks straight from the store and cached
+ * per {@link FlatEmbeddingStore#version() store version}, so plotting again costs nothing until
+ * terms are added.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class EmbeddingProjector {
+    private static final int BLOCK_ROWS = 1024;
+    private static final int COMPONENTS = 2;
+    // Extra random directions and power iterations of the randomized PCA, see Halko et al. (2011)
+    private static final int OVERSAMPLING = 6;
+    private static final int POWER_ITERATIONS = 3;
+
+    private final FlatEmbeddingStore embeddingStore;
+    private final Map<Mode, Projection> cache = new EnumMap<>(Mode.class);
+
+    public enum Mode {
+        /**
+         * The top two principal components, computed with a randomized block power method:
+         * a few parallel passes over the store, each multiplying it with a d x 8 matrix.
+         */
+        PCA,
+        /**
+         * A sparse random (Johnson-Lindenstrauss) projection: a single parallel pass, no training.
+         * Preserves distances less faithfully than PCA in two dimensions, but is the cheapest overview.
+         */
+        RANDOM;
+
+        /**
+         * Case-insensitive lookup, so the property can be written as {@code pca}.
+         */
+        public static Mode fromName(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * The coordinates of every row that was in the store at {@code version}.
+     *
+     * @param terms     the term of each row, or {@code null} for a free row
+     * @param x         the first coordinate of each row, or NaN for a free row
+     * @param y         the second coordinate of each row, or NaN for a free row
+     * @param xVariance share of the total variance along the first axis
+     * @param yVariance share of the total variance along the second axis
+     */
+    public record Projection(Mode mode, long version, String[] terms, float[] x, float[] y,
+                             double xVariance, double yVariance) {
+    }
+
+    /**
+     * @return the projection of the current store, computed again only if the store changed since the last call
+     */
+    public synchronized Projection project(Mode mode) {
+        long version = embeddingStore.version();
+        Projection cached = cache.get(mode);
+        if (cached != null && cached.version() == version) {
+            return cached;
+        }
+        long start = System.nanoTime();
+        Projection projection = compute(mode, version);
+        cache.put(mode, projection);
+        log.info("Projected {} terms with {} in {} ms", embeddingStore.termCount(), mode,
+                (System.nanoTime() - start) / 1_000_000);
+        return projection;
+    }
+
+    private Projection compute(Mode mode, long version) {
+        int rows = embeddingStore.size();
+        int dimension = Math.max(embeddingStore.dimension(), 0);
+        String[] terms = new String[rows];
+        for (int row = 0; row < rows; row++) {
+            terms[row] = embeddingStore.termAt(row);
+        }
+        // Free rows are zeroed, so the statistics average over the stored terms only
+        int stored = embeddingStore.termCount();
+        if (stored == 0) {
+            float[] unset = new float[rows];
+            Arrays.fill(unset, Float.NaN);
+            return new Projection(mode, version, terms, unset, unset.clone(), 0, 0);
+        }
+
+        double[] mean = new double[dimension];
+        double[] axes;
+        double[] variances = new double[COMPONENTS];
+        if (mode == Mode.PCA) {
+            double totalVariance = meanAndVariance(rows, stored, dimension, mean);
+            axes = principalComponents(rows, stored, dimension, mean, variances);
+            for (int c = 0; c < COMPONENTS; c++) {
+                variances[c] = totalVariance == 0 ? 0 : variances[c] / totalVariance;
+            }
+        } else {
+            axes = randomDirections(dimension);
+            variances[0] = Double.NaN;
+            variances[1] = Double.NaN;
+        }
+
+        // Final pass: the coordinates of every stored row
+        float[] x = new float[rows];
+        float[] y = new float[rows];
+        forEachBlock(rows, dimension, (from, count, block, norms) -> {
+            for (int i = 0; i < count; i++) {
+                if (norms[i] == 0) {
+                    x[from + i] = Float.NaN;
+                    y[from + i] = Float.NaN;
+                    continue;
+                }
+                double px = 0;
+                double py = 0;
+                for (int d = 0; d < dimension; d++) {
+                    double centered = block[i * dimension + d] - mean[d];
+                    px += centered * axes[d * COMPONENTS];
+                    py += centered * axes[d * COMPONENTS + 1];
+                }
+                x[from + i] = (float) px;
+                y[from + i] = (float) py;
+            }
+            return null;
+        });
+        return new Projection(mode, version, terms, x, y, variances[0], variances[1]);
+    }
+
+    /**
+     * Fills in the mean of the {@code stored} rows that hold a term.
+     *
+     * @return the total variance, the mean squared distance of the stored rows to the mean
+     */
+    private double meanAndVariance(int rows, int stored, int dimension, double[] mean) {
+        double[] sums = forEachBlock(rows, dimension, (from, count, block, norms) -> {
+            // The sum of every dimension, followed by the sum of the squared norms
+            double[] partial = new double[dimension + 1];
+            for (int i = 0; i < count; i++) {
+                if (norms[i] == 0) {
+                    continue;
+                }
+                for (int d = 0; d < dimension; d++) {
+                    float value = block[i * dimension + d];
+                    partial[d] += value;
+                    partial[dimension] += value * value;
+                }
+            }
+            return partial;
+        });
+        double squaredMeanNorm = 0;
+        for (int d = 0; d < dimension; d++) {
+            mean[d] = sums[d] / stored;
+            squaredMeanNorm += mean[d] * mean[d];
+        }
+        return sums[dimension] / stored - squaredMeanNorm;
+    }
+
+    /**
+     * Randomized block power iteration on the covariance matrix, without ever forming it: every pass
+     * computes {@code Z = Xc^T (Xc Q)} for the centered rows {@code Xc} and re-orthonormalizes it into Q.
+     * The last pass also yields {@code T = (Xc Q)^T (Xc Q)}, whose eigenvectors rotate Q onto the
+     * principal components (Rayleigh-Ritz).
+     *
+     * @param variances receives the variance along each returned component
+     * @return the components as a {@code dimension x COMPONENTS} row-major matrix
+     */
+    private double[] principalComponents(int rows, int stored, int dimension, double[] mean, double[] variances) {
+        int width = Math.min(COMPONENTS + OVERSAMPLING, dimension);
+        Random random = new Random(42);
+        double[] q = new double[dimension * width];
+        for (int i = 0; i < q.length; i++) {
+            q[i] = random.nextGaussian();
+        }
+        orthonormalize(q, dimension, width);
+
+        double[] t = null;
+        for (int iteration = 0; iteration < POWER_ITERATIONS; iteration++) {
+            double[] basis = q;
+            // Z (dimension x width) followed by T (width x width)
+            double[] sums = forEachBlock(rows, dimension, (from, count, block, norms) -> {
+                double[] partial = new double[dimension * width + width * width];
+                double[] centered = new double[dimension];
+                double[] projected = new double[width];
+                for (int i = 0; i < count; i++) {
+                    if (norms[i] == 0) {
+                        continue;
+                    }
+                    Arrays.fill(projected, 0);
+                    for (int d = 0; d < dimension; d++) {
+                        centered[d] = block[i * dimension + d] - mean[d];
+                        for (int j = 0; j < width; j++) {
+                            projected[j] += centered[d] * basis[d * width + j];
+                        }
+                    }
+                    for (int d = 0; d < dimension; d++) {
+                        for (int j = 0; j < width; j++) {
+                            partial[d * width + j] += centered[d] * projected[j];
+                        }
+                    }
+                    for (int a = 0; a < width; a++) {
+                        for (int b = 0; b < width; b++) {
+                            partial[dimension * width + a * width + b] += projected[a] * projected[b];
+                        }
+                    }
+                }
+                return partial;
+            });
+            t = Arrays.copyOfRange(sums, dimension * width, sums.length);
+            if (iteration < POWER_ITERATIONS - 1) {
+                q = Arrays.copyOf(sums, dimension * width);
+                orthonormalize(q, dimension, width);
+            }
+        }
+
+        double[] eigenvalues = new double[width];
+        double[] eigenvectors = symmetricEigen(t, width, eigenvalues);
+        Integer[] order = IntStream.range(0, width).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, (a, b) -> Double.compare(eigenvalues[b], eigenvalues[a]));
+
+        double[] components = new double[dimension * COMPONENTS];
+        for (int c = 0; c < Math.min(COMPONENTS, width); c++) {
+            int e = order[c];
+            variances[c] = eigenvalues[e] / stored;
+            for (int d = 0; d < dimension; d++) {
+                double value = 0;
+                for (int j = 0; j < width; j++) {
+                    value += q[d * width + j] * eigenvectors[j * width + e];
+                }
+                components[d * COMPONENTS + c] = value;
+            }
+        }
+        return components;
+    }
+
+    /**
+     * Two sparse random directions (Achlioptas, 2003): each entry is +1 or -1 with probability 1/6,
+     * and 0 otherwise, scaled so the directions have unit length on average.
+     */
+    private static double[] randomDirections(int dimension) {
+        Random random = new Random(42);
+        double scale = Math.sqrt(3.0 / dimension);
+        double[] directions = new double[dimension * COMPONENTS];
+        for (int i = 0; i < directions.length; i++) {
+            int draw = random.nextInt(6);
+            directions[i] = draw == 0 ? scale : draw == 1 ? -scale : 0;
+        }
+        return directions;
+    }
+
+    /**
+     * Modified Gram-Schmidt on the columns of a row-major {@code rows x columns} matrix.
+     */
+    private static void orthonormalize(double[] matrix, int rows, int columns) {
+        for (int c = 0; c < columns; c++) {
+            for (int previous = 0; previous < c; previous++) {
+                double dot = 0;
+                for (int r = 0; r < rows; r++) {
+                    dot += matrix[r * columns + c] * matrix[r * columns + previous];
+                }
+                for (int r = 0; r < rows; r++) {
+                    matrix[r * columns + c] -= dot * matrix[r * columns + previous];
+                }
+            }
+            double norm = 0;
+            for (int r = 0; r < rows; r++) {
+                norm += matrix[r * columns + c] * matrix[r * columns + c];
+            }
+            norm = Math.sqrt(norm);
+            for (int r = 0; r < rows; r++) {
+                matrix[r * columns + c] = norm == 0 ? 0 : matrix[r * columns + c] / norm;
+            }
+        }
+    }
+
+    /**
+     * Cyclic Jacobi eigenvalue algorithm for a small symmetric matrix.
+     *
+     * @param eigenvalues receives the eigenvalues
+     * @return the eigenvectors as the columns of a row-major {@code size x size} matrix
+     */
+    private static double[] symmetricEigen(double[] symmetric, int size, double[] eigenvalues) {
+        double[] a = symmetric.clone();
+        double[] v = new double[size * size];
+        for (int i = 0; i < size; i++) {
+            v[i * size + i] = 1;
+        }
+        for (int sweep = 0; sweep < 50; sweep++) {
+            double offDiagonal = 0;
+            for (int p = 0; p < size; p++) {
+                for (int r = p + 1; r < size; r++) {
+                    offDiagonal += a[p * size + r] * a[p * size + r];
+                }
+            }
+            if (offDiagonal < 1e-22) {
+                break;
+            }
+            for (int p = 0; p < size; p++) {
+                for (int r = p + 1; r < size; r++) {
+                    double apr = a[p * size + r];
+                    if (Math.abs(apr) < 1e-300) {
+                        continue;
+                    }
+                    double theta = (a[r * size + r] - a[p * size + p]) / (2 * apr);
+                    double tangent = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) {
+                        tangent = 1;
+                    }
+                    double cos = 1 / Math.sqrt(tangent * tangent + 1);
+                    double sin = tangent * cos;
+                    for (int k = 0; k < size; k++) {
+                        double akp = a[k * size + p];
+                        double akr = a[k * size + r];
+                        a[k * size + p] = cos * akp - sin * akr;
+                        a[k * size + r] = sin * akp + cos * akr;
+                    }
+                    for (int k = 0; k < size; k++) {
+                        double apk = a[p * size + k];
+                        double ark = a[r * size + k];
+                        a[p * size + k] = cos * apk - sin * ark;
+                        a[r * size + k] = sin * apk + cos * ark;
+                    }
+                    for (int k = 0; k < size; k++) {
+                        double vkp = v[k * size + p];
+                        double vkr = v[k * size + r];
+                        v[k * size + p] = cos * vkp - sin * vkr;
+                        v[k * size + r] = sin * vkp + cos * vkr;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            eigenvalues[i] = a[i * size + i];
+        }
+        return v;
+    }
+
+    @FunctionalInterface
+    private interface BlockFunction {
+        double[] apply(int from, int count, float[] block, float[] norms);
+    }
+
+    /**
+     * Copies the rows out of the store in blocks, runs the function on the blocks in parallel,
+     * and sums the arrays it returns element-wise. Free rows are copied too; their norm is 0,
+     * so the function skips them.
+     */
+    private double[] forEachBlock(int rows, int dimension, BlockFunction function) {
+        int blocks = (rows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        return IntStream.range(0, blocks).parallel()
+                .mapToObj(b -> {
+                    int from = b * BLOCK_ROWS;
+                    float[] block = new float[Math.min(BLOCK_ROWS, rows - from) * dimension];
+                    float[] norms = new float[block.length / Math.max(dimension, 1)];
+                    int count = embeddingStore.copyRows(from, norms.length, block, norms);
+                    return function.apply(from, count, block, norms);
+                })
+                .filter(Objects::nonNull)
+                .reduce((left, right) -> {
+                    for (int i = 0; i < left.length; i++) {
+                        left[i] += right[i];
+                    }
+                    return left;
+                })
+                .orElse(null);
+    }
+}
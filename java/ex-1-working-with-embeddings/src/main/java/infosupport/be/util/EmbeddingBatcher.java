@@ -0,0 +1,167 @@
+package infosupport.be.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.embedding.EmbeddingModel;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces embedding requests from concurrent callers into batched model calls.
+ * <p>
+ * The first missing term opens a window; every term submitted before the window closes
+ * (or until {@code maxBatchSize} terms are queued) is embedded with a single
+ * {@link EmbeddingModel#embed(List)} call. A term that is already in flight is not queued
+ * again, its callers share the same future. Each batch is handed to the listener before
+ * the futures complete, so a caller that joins its future can rely on the listener's side
+ * effects (e.g. the term being stored). Once the batcher is closed, the futures of terms that
+ * were not embedded yet fail instead of waiting forever.
+ */
+@Slf4j
+public class EmbeddingBatcher implements AutoCloseable {
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(10);
+
+    private final EmbeddingModel embeddingModel;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final BatchListener listener;
+    private final BlockingQueue<String> pending = new LinkedBlockingQueue<>();
+    private final Map<String, CompletableFuture<float[]>> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService embedCalls = Executors.newVirtualThreadPerTaskExecutor();
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    /**
+     * Called once per embedded batch, before the futures of its terms complete.
+     */
+    @FunctionalInterface
+    public interface BatchListener {
+        void onEmbedded(List<String> terms, List<float[]> vectors);
+    }
+
+    public EmbeddingBatcher(EmbeddingModel embeddingModel, Duration window, int maxBatchSize, BatchListener listener) {
+        this.embeddingModel = embeddingModel;
+        this.windowNanos = window.toNanos();
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.listener = listener;
+        this.dispatcher = Thread.ofPlatform().name("embedding-batcher").daemon().start(this::dispatch);
+    }
+
+    /**
+     * Queues the term for the next batch.
+     *
+     * @return a future completed with the term's embedding
+     */
+    public CompletableFuture<float[]> submit(String term) {
+        CompletableFuture<float[]> future = new CompletableFuture<>();
+        CompletableFuture<float[]> existing = inFlight.putIfAbsent(term, future);
+        if (existing != null) {
+            return existing;
+        }
+        pending.add(term);
+        // Checked after queueing: a close() in between may already have drained the queue for the last time
+        if (!running) {
+            failPending(closed());
+        }
+        return future;
+    }
+
+    /**
+     * Stops batching and waits up to {@link #CLOSE_TIMEOUT} for the model calls in progress,
+     * so their terms still reach the listener. Terms not embedded by then fail.
+     */
+    @Override
+    public void close() {
+        running = false;
+        dispatcher.interrupt();
+        embedCalls.shutdown();
+        try {
+            if (!embedCalls.awaitTermination(CLOSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                log.warn("Embedding calls still running after {} s, abandoning them", CLOSE_TIMEOUT.toSeconds());
+                embedCalls.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            embedCalls.shutdownNow();
+        }
+        // Queued terms, and the terms of abandoned calls
+        failPending(closed());
+        fail(List.copyOf(inFlight.keySet()), closed());
+    }
+
+    private void dispatch() {
+        while (running) {
+            List<String> batch = new ArrayList<>(maxBatchSize);
+            try {
+                batch.add(pending.take());
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    String next = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                // Embed on a separate thread, so the next window can already start collecting
+                embedCalls.execute(() -> embed(batch));
+            } catch (InterruptedException e) {
+                // The terms taken so far are no longer in the queue, failPending would miss them
+                Thread.currentThread().interrupt();
+                fail(batch, closed());
+                break;
+            } catch (RejectedExecutionException e) {
+                // Closed while the window was open
+                fail(batch, closed());
+                break;
+            }
+        }
+        failPending(closed());
+    }
+
+    private void embed(List<String> batch) {
+        try {
+            List<float[]> vectors = embeddingModel.embed(batch);
+            log.debug("Embedded a batch of {} terms", batch.size());
+            listener.onEmbedded(batch, vectors);
+            for (int i = 0; i < batch.size(); i++) {
+                // Null when close() gave up on this call
+                CompletableFuture<float[]> future = inFlight.remove(batch.get(i));
+                if (future != null) {
+                    future.complete(vectors.get(i));
+                }
+            }
+        } catch (RuntimeException e) {
+            fail(batch, e);
+        }
+    }
+
+    private void failPending(RuntimeException reason) {
+        List<String> leftovers = new ArrayList<>();
+        pending.drainTo(leftovers);
+        fail(leftovers, reason);
+    }
+
+    private void fail(List<String> terms, RuntimeException reason) {
+        for (String term : terms) {
+            CompletableFuture<float[]> future = inFlight.remove(term);
+            if (future != null) {
+                future.completeExceptionally(reason);
+            }
+        }
+    }
+
+    private static IllegalStateException closed() {
+        return new IllegalStateException("Embedding batcher is closed");
+    }
+}
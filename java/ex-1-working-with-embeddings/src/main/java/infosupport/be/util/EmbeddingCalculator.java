@@ -7,6 +7,7 @@ import org.springframework.stereotype.Component;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * This class is responsible for:
@@ -21,58 +22,103 @@ import java.util.regex.Pattern;
 @Slf4j
 public class EmbeddingCalculator {
 
+    /**
+     * Tokens: quoted substrings (group(1) if "some text"), parentheses, plus or minus signs,
+     * and any sequence of non-whitespace that isn't +, -, or parentheses.
+     */
+    private static final Pattern TOKEN_PATTERN = Pattern.compile("\"([^\"]*)\"|\\(|\\)|\\+|-|[^\\s+\\-()]+");
+    private static final Pattern ALLOWED_CHARS = Pattern.compile("^[a-zA-Z0-9\"+\\-()_\\s]*$");
+    private static final Set<String> OPERATORS = Set.of("+", "-", "(", ")");
+    private static final int MAX_CACHED_PLANS = 1024;
+
     private final EmbeddingManager embeddingManager;
 
+    /**
+     * Compiled plans by input expression, least recently used evicted first.
+     */
+    private final Map<String, ExpressionPlan> planCache = Collections.synchronizedMap(
+            new LinkedHashMap<>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ExpressionPlan> eldest) {
+                    return size() > MAX_CACHED_PLANS;
+                }
+            });
+
     /**
      * Main entry point for computing the top-5 nearest terms for a given expression.
      * Steps:
-     * Validate the raw input to ensure it contains only allowed characters.
-     * Parse the expression and compute the resulting {@link EmbeddingVector}.
-     * Gather terms used in the expression (to exclude them in similarity calculation).
-     * Compute top-5 similar terms using {@link EmbeddingManager#findTopKClosest(EmbeddingVector, int, List)}.
+     * Compile the expression into a cached {@link ExpressionPlan} (validating it on first use).
+     * Embed all terms the plan needs that are still missing, in one batch.
+     * Evaluate the plan's linear combination into a single accumulator.
+     * Compute top-5 similar terms using {@link EmbeddingManager#findTopKClosest(EmbeddingVector, int, Set)},
+     * excluding the terms used in the expression.
      *
      * @param input The arithmetic expression (e.g., "king - (man - woman)").
-     * @return A list of up to 5 entries (term -> similarity), or {@code null} if expression invalid.
-     * @throws IllegalArgumentException if the input contains disallowed characters.
+     * @return A list of up to 5 entries (term -> similarity).
+     * @throws IllegalArgumentException if the input contains disallowed characters or cannot be parsed.
      */
     public List<Map.Entry<String, Double>> calculate(String input) {
-        // 1) Validate the input
-        validateInput(input);
+        // 1) Compile (or look up) the plan for this expression
+        final ExpressionPlan plan = compile(input);
 
-        // 2) Parse expression and compute the resulting EmbeddingVector
-        final EmbeddingVector result = parseAndComputeExpression(input);
-        if (result == null) {
-            throw new IllegalArgumentException("Could not parse expression: [" + input + "]");
-        }
+        // 2) Fetch every missing term with a single batched embedding call
+        embeddingManager.ensureEmbedded(plan.terms());
 
-        // 3) Collect distinct terms used in the expression (for excluding them from results)
-        final Set<String> usedTerms = extractDistinctTerms(input);
+        // 3) Evaluate the linear combination in one fused pass
+        final EmbeddingVector result = embeddingManager.linearCombination(plan.terms(), plan.coefficients());
 
         // 4) Find the top-5 similar terms
-        return embeddingManager.findTopKClosest(result, 5, new ArrayList<>(usedTerms));
+        return embeddingManager.findTopKClosest(result, 5, plan.usedTerms());
     }
 
     /**
-     * Parses the expression and returns an {@link EmbeddingVector} representing the result
-     * of any embedding arithmetic (e.g., king - (man - woman)).
+     * Computes the top-5 nearest terms for a batch of expressions.
+     * All expressions are compiled first (so an invalid one fails before any work is done),
+     * the missing terms of the whole batch are embedded together, and the nearest terms of all
+     * results are found in one pass over the vocabulary with
+     * {@link EmbeddingManager#findTopKClosestAll(List, int, List)}.
+     *
+     * @param inputs The arithmetic expressions.
+     * @return The results of each expression, in input order.
+     * @throws IllegalArgumentException if any input contains disallowed characters or cannot be parsed.
      */
-    private EmbeddingVector parseAndComputeExpression(String input) {
-        final List<String> tokens = tokenize(input);
-        return evaluateExpression(tokens);
+    public List<List<Map.Entry<String, Double>>> calculateAll(List<String> inputs) {
+        // 1) Compile (or look up) every plan
+        final List<ExpressionPlan> plans = inputs.stream().map(this::compile).toList();
+
+        // 2) Fetch the missing terms of the whole batch together
+        final Set<String> terms = new LinkedHashSet<>();
+        plans.forEach(plan -> terms.addAll(plan.terms()));
+        embeddingManager.ensureEmbedded(terms);
+
+        // 3) Evaluate each linear combination
+        final List<EmbeddingVector> results = plans.stream()
+                .map(plan -> embeddingManager.linearCombination(plan.terms(), plan.coefficients()))
+                .toList();
+
+        // 4) Find the top-5 similar terms for all results at once
+        return embeddingManager.findTopKClosestAll(results, 5, plans.stream().map(ExpressionPlan::usedTerms).toList());
     }
 
     /**
-     * Splits the input string into tokens while respecting quoted substrings.
-     * Regex captures:
-     * Quoted substrings (group(1) if "some text").
-     * Parentheses {@code ( )}.
-     * Plus or minus signs {@code +, -}.
-     * Any sequence of non-whitespace that isn't +, -, or parentheses.
+     * Returns the cached plan for the input, or validates, tokenizes and parses it once.
+     */
+    ExpressionPlan compile(String input) {
+        ExpressionPlan plan = planCache.get(input);
+        if (plan == null) {
+            validateInput(input);
+            plan = new Parser(tokenize(input)).parse();
+            planCache.put(input, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Splits the input string into tokens while respecting quoted substrings (see {@link #TOKEN_PATTERN}).
      */
     private List<String> tokenize(String input) {
         final List<String> result = new ArrayList<>();
-        final Pattern pattern = Pattern.compile("\"([^\"]*)\"|\\(|\\)|\\+|-|[^\\s+\\-()]+");
-        final Matcher matcher = pattern.matcher(input);
+        final Matcher matcher = TOKEN_PATTERN.matcher(input);
 
         while (matcher.find()) {
             // If group(1) is non-null, it's a quoted term:
@@ -92,8 +138,7 @@ public class EmbeddingCalculator {
      * letters, digits, quotes, plus, minus, parentheses, underscores, and whitespace.
      */
     private void validateInput(String input) {
-        final String allowedCharsRegex = "^[a-zA-Z0-9\"+\\-()_\\s]*$";
-        if (!input.matches(allowedCharsRegex)) {
+        if (!ALLOWED_CHARS.matcher(input).matches()) {
             throw new IllegalArgumentException(
                     "Input contains illegal characters. Only letters, digits, \"+-()_\", quotes, and spaces are allowed."
             );
@@ -101,89 +146,92 @@ public class EmbeddingCalculator {
     }
 
     /**
-     * Evaluates the list of tokens (already produced by {@link #tokenize(String)}).
-     * Uses a simple recursive descent parser to handle parentheses and +/-.
-     */
-    private EmbeddingVector evaluateExpression(List<String> tokens) {
-        return new Parser(tokens).parseExpression();
-    }
-
-    /**
-     * Extracts distinct terms from the expression, ignoring operators and parentheses.
-     */
-    private Set<String> extractDistinctTerms(String input) {
-        return tokenize(input).stream()
-                .filter(token -> !Set.of("+", "-", "(", ")").contains(token))
-                .collect(HashSet::new, HashSet::add, HashSet::addAll);
-    }
-
-    /**
-     * Helper method to fetch or compute the embedding for a single term.
+     * A compiled expression. Since expressions only add and subtract terms, every expression
+     * reduces to a linear combination: {@code king - (man - woman)} becomes
+     * {@code 1*king - 1*man + 1*woman}.
+     *
+     * @param terms        distinct terms of the combination, in order of first appearance
+     * @param coefficients coefficient per term (may be 0, e.g. for {@code king - king})
+     * @param usedTerms    every term mentioned in the expression, excluded from the results
      */
-    private EmbeddingVector embed(String term) {
-        return embeddingManager.valueOf(term);
+    record ExpressionPlan(List<String> terms, float[] coefficients, Set<String> usedTerms) {
     }
 
     /**
      * Inner class implementing a recursive descent parser over the token list.
+     * Instead of computing vectors, it accumulates a coefficient per term.
      */
-    private class Parser {
+    private static class Parser {
         private final List<String> tokens;
+        private final Map<String, Float> coefficients = new LinkedHashMap<>();
         private int position = 0;
 
         Parser(List<String> tokens) {
             this.tokens = Objects.requireNonNull(tokens);
         }
 
+        ExpressionPlan parse() {
+            parseExpression(1f);
+
+            final List<String> terms = new ArrayList<>(coefficients.keySet());
+            final float[] weights = new float[terms.size()];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = coefficients.get(terms.get(i));
+            }
+            // Like before, every non-operator token counts as used, even if parsing stopped early
+            final Set<String> usedTerms = tokens.stream()
+                    .filter(token -> !OPERATORS.contains(token))
+                    .collect(Collectors.toUnmodifiableSet());
+            return new ExpressionPlan(List.copyOf(terms), weights, usedTerms);
+        }
+
         /**
          * expression := term { ( '+' | '-' ) term }
          */
-        EmbeddingVector parseExpression() {
-            EmbeddingVector current = parseTerm();
+        void parseExpression(float sign) {
+            parseTerm(sign);
             while (hasNext()) {
                 final String op = peek();
                 if ("+".equals(op) || "-".equals(op)) {
                     nextToken(); // consume '+' or '-'
-                    final EmbeddingVector rhs = parseTerm();
-                    current = "+".equals(op) ? current.plus(rhs) : current.minus(rhs);
+                    parseTerm("+".equals(op) ? sign : -sign);
                 } else {
                     // Not a +/-, so we're done with the expression
                     break;
                 }
             }
-            return current;
         }
 
         /**
          * term := factor | '(' expression ')'
          */
-        EmbeddingVector parseTerm() {
+        void parseTerm(float sign) {
+            if (!hasNext()) {
+                throw new IllegalArgumentException("Unexpected end of expression.");
+            }
             final String token = peek();
             if ("(".equals(token)) {
                 // sub-expression in parentheses
                 nextToken(); // consume '('
-                final EmbeddingVector subExpr = parseExpression();
+                parseExpression(sign);
 
                 // Expect a closing ')'
                 if (!hasNext() || !")".equals(peek())) {
                     throw new IllegalArgumentException("Missing closing parenthesis in expression.");
                 }
                 nextToken(); // consume ')'
-                return subExpr;
+                return;
             }
-            return parseFactor();
+            parseFactor(sign);
         }
 
         /**
          * factor := single token (quoted or unquoted).
          * At this level, we assume it's a term to embed.
          */
-        EmbeddingVector parseFactor() {
-            if (!hasNext()) {
-                throw new IllegalArgumentException("Unexpected end of expression.");
-            }
+        void parseFactor(float sign) {
             final String term = nextToken();
-            return embed(term);
+            coefficients.merge(term, sign, Float::sum);
         }
 
         private String peek() {
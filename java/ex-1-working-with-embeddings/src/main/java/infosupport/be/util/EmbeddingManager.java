@@ -1,30 +1,137 @@
 package infosupport.be.util;
 
+import infosupport.be.index.IndexEvaluator;
+import infosupport.be.index.IndexStats;
+import infosupport.be.index.KnnGraph;
+import infosupport.be.index.RecallReport;
+import infosupport.be.index.VectorIndex;
+import infosupport.be.persistence.EmbeddingCache;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.embedding.EmbeddingModel;
-import org.springframework.ai.vectorstore.SimpleVectorStore;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @Component
 @Slf4j
 public class EmbeddingManager {
     private final EmbeddingModel embeddingModel;
-    private final ConcurrentHashMap<String, EmbeddingVector> embeddingsMap;
+    private final FlatEmbeddingStore embeddingStore;
+    private final VectorIndex vectorIndex;
+    private final EmbeddingCache embeddingCache;
+    private final KnnGraph knnGraph;
+    private final EvictionPolicy evictionPolicy;
+    private final EmbeddingBatcher embeddingBatcher;
+    // Held while rows are stored or evicted, so an evicted row is never reused halfway through an eviction
+    private final ReentrantLock storeLock = new ReentrantLock();
 
-    public EmbeddingManager(EmbeddingModel embeddingModel) {
+    public EmbeddingManager(EmbeddingModel embeddingModel, FlatEmbeddingStore embeddingStore,
+                            VectorIndex vectorIndex, EmbeddingCache embeddingCache, KnnGraph knnGraph,
+                            EvictionPolicy evictionPolicy,
+                            @Value("${embedding.batch.window-ms:5}") long batchWindowMillis,
+                            @Value("${embedding.batch.max-size:64}") int maxBatchSize) {
         this.embeddingModel = embeddingModel;
-        this.embeddingsMap = new ConcurrentHashMap<>();
+        this.embeddingStore = embeddingStore;
+        this.vectorIndex = vectorIndex;
+        this.embeddingCache = embeddingCache;
+        this.knnGraph = knnGraph;
+        this.evictionPolicy = evictionPolicy;
+        this.embeddingBatcher = new EmbeddingBatcher(embeddingModel, Duration.ofMillis(batchWindowMillis),
+                maxBatchSize, this::storeEmbedded);
     }
 
+    /**
+     * Loads every embedding from the on-disk cache into the store, so they need not be embedded again.
+     * Terms embedded afterwards are appended to the cache. Then loads or builds the kNN graph in the background.
+     */
+    @PostConstruct
+    public void loadCache() {
+        if (embeddingCache.isEnabled()) {
+            long start = System.nanoTime();
+            int loaded = embeddingCache.load((terms, embeddings) -> store(terms, embeddings, false));
+            log.info("Loaded {} cached embeddings from {} in {} ms",
+                    loaded, embeddingCache.file(), (System.nanoTime() - start) / 1_000_000);
+        }
+        knnGraph.startInBackground();
+    }
+
+    @PreDestroy
+    public void close() {
+        embeddingBatcher.close();
+        // After the batcher, whose last batches still append to the cache
+        embeddingCache.close();
+        knnGraph.save();
+        log.info("Embedding store: {}", storeStats().format());
+        IndexStats indexStats = indexStats();
+        if (indexStats != null) {
+            log.info("Vector index ({}): {}", vectorIndex.name(), indexStats.format());
+        }
+    }
+
+    /**
+     * Hit rate, size and evictions of the embedding store.
+     */
+    public EmbeddingStoreStats storeStats() {
+        return evictionPolicy.stats(embeddingStore.termCount());
+    }
+
+    /**
+     * Runtime statistics of the vector index, e.g. partition sizes and probe counts, or {@code null} if it keeps none.
+     */
+    public IndexStats indexStats() {
+        return vectorIndex.stats();
+    }
+
+    /**
+     * Exempts the given terms from eviction when the store is bounded. Terms that are not stored are ignored.
+     */
+    public void pin(Collection<String> terms) {
+        for (String term : terms) {
+            evictionPolicy.pin(embeddingStore.rowOf(term));
+        }
+    }
+
+    /**
+     * Returns the embedding of the term, embedding it first if it is unknown.
+     * Misses from concurrent callers are coalesced into batched model calls by the {@link EmbeddingBatcher}.
+     */
     public EmbeddingVector valueOf(String term) {
-        return embeddingsMap.computeIfAbsent(term, this::embedNewTerm);
+        float[] stored = lookup(term);
+        if (stored != null) {
+            return new EmbeddingVector(stored);
+        }
+        return new EmbeddingVector(join(embed(term)));
+    }
+
+    private float[] lookup(String term) {
+        float[] stored = embeddingStore.get(term);
+        if (stored != null) {
+            evictionPolicy.recordHit(embeddingStore.rowOf(term));
+        } else {
+            evictionPolicy.recordMiss();
+        }
+        return stored;
+    }
+
+    private CompletableFuture<float[]> embed(String term) {
+        // The batcher hands out the shared array, so give every caller its own copy
+        return embeddingBatcher.submit(term).thenApply(float[]::clone);
     }
 
     // Methods to perform vector addition
@@ -36,11 +143,7 @@ public class EmbeddingManager {
     }
 
     private float[] addVectors(float[] vecA, float[] vecB) {
-        float[] result = new float[vecA.length];
-        for (int i = 0; i < vecA.length; i++) {
-            result[i] = vecA[i] + vecB[i];
-        }
-        return result;
+        return VectorMath.add(vecA, vecB);
     }
     // </editor-fold>
 
@@ -63,33 +166,187 @@ public class EmbeddingManager {
     }
     // </editor-fold>
 
+    // Methods to evaluate linear combinations of terms
+    // <editor-fold desc="Linear combination methods">
+
+    /**
+     * Makes sure every term is embedded. All missing terms are submitted at once,
+     * so they end up in as few batched model calls as possible.
+     */
+    public void ensureEmbedded(Collection<String> terms) {
+        List<CompletableFuture<float[]>> pending = new ArrayList<>();
+        for (String term : terms) {
+            int row = embeddingStore.rowOf(term);
+            if (row >= 0) {
+                evictionPolicy.recordHit(row);
+            } else {
+                evictionPolicy.recordMiss();
+                pending.add(embeddingBatcher.submit(term));
+            }
+        }
+        join(CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)));
+    }
+
+    /**
+     * Computes {@code sum(coefficients[i] * vector(terms[i]))} in one pass into a single accumulator.
+     * Every term should already be embedded, see {@link #ensureEmbedded}; a term evicted since is embedded again.
+     */
+    public EmbeddingVector linearCombination(List<String> terms, float[] coefficients) {
+        float[] accumulator = new float[Math.max(embeddingStore.dimension(), 0)];
+        for (int i = 0; i < terms.size(); i++) {
+            // Copies the row, which also works when the store keeps its vectors off-heap
+            float[] vector = embeddingStore.get(terms.get(i));
+            if (vector == null) {
+                vector = valueOf(terms.get(i)).vector();
+            }
+            VectorMath.scaleAdd(accumulator, coefficients[i], vector, 0);
+        }
+        return new EmbeddingVector(accumulator);
+    }
+    // </editor-fold>
+
+    // Methods to project terms onto directions
+    // <editor-fold desc="Projection methods">
+
+    /**
+     * Computes the dot product of every term with every direction, embedding the missing terms first
+     * in as few batched model calls as possible. The terms are projected in parallel, straight from
+     * the stored rows, without copying them.
+     *
+     * @return {@code result[d][i]}: the projection of {@code terms[i]} onto {@code directions[d]}
+     */
+    public double[][] project(List<String> terms, float[]... directions) {
+        ensureEmbedded(terms);
+        double[][] result = new double[directions.length][terms.size()];
+        int[] rows;
+        // No row is evicted and reused for another term while it is being read
+        storeLock.lock();
+        try {
+            rows = terms.stream().mapToInt(embeddingStore::rowOf).toArray();
+            projectRows(rows, directions, result);
+        } finally {
+            storeLock.unlock();
+        }
+        // Terms a bounded store evicted since they were embedded
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i] < 0) {
+                float[] vector = valueOf(terms.get(i)).vector();
+                for (int d = 0; d < directions.length; d++) {
+                    result[d][i] = VectorMath.dot(directions[d], vector);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void projectRows(int[] rows, float[][] directions, double[][] result) {
+        if (embeddingStore.isOffHeap()) {
+            IntStream.range(0, rows.length).parallel().filter(i -> rows[i] >= 0).forEach(i -> {
+                float[] vector = embeddingStore.row(rows[i]);
+                for (int d = 0; d < directions.length; d++) {
+                    result[d][i] = VectorMath.dot(directions[d], vector);
+                }
+            });
+            return;
+        }
+        embeddingStore.read((matrix, norms, storedRows, dimension) -> {
+            IntStream.range(0, rows.length).parallel().filter(i -> rows[i] >= 0).forEach(i -> {
+                for (int d = 0; d < directions.length; d++) {
+                    result[d][i] = VectorMath.dot(directions[d], 0, matrix, rows[i] * dimension, dimension);
+                }
+            });
+            return result;
+        });
+    }
+    // </editor-fold>
+
     // Methods to find top K similar terms
     // <editor-fold desc="Top K similar terms methods">
     public List<Map.Entry<String, Double>> findTopKClosest(String term, int amount) {
+        // Stored terms are answered from the precomputed neighbours once the kNN graph is ready
+        int row = embeddingStore.rowOf(term);
+        TopKHeap precomputed = knnGraph.neighbours(row, amount);
+        if (precomputed != null) {
+            evictionPolicy.recordHit(row);
+            return toEntries(precomputed);
+        }
         EmbeddingVector queryVector = valueOf(term);
         return findTopKClosest(queryVector, amount, List.of(term));
     }
 
     public List<Map.Entry<String, Double>> findTopKClosest(EmbeddingVector queryVector, int amount) {
-        return findTopKClosest(queryVector, amount, null);
+        return findTopKClosest(queryVector, amount, Set.of());
     }
 
     public List<Map.Entry<String, Double>> findTopKClosest(EmbeddingVector queryVector, int amount, List<String> excludedTerms) {
-        Map<String, Double> similarityMap = new HashMap<>();
-        for (Map.Entry<String, EmbeddingVector> entry : embeddingsMap.entrySet()) {
-            String term = entry.getKey();
-            if (excludedTerms.contains(term)) {
-                continue;
+        return findTopKClosest(queryVector, amount, excludedTerms == null ? Set.of() : new HashSet<>(excludedTerms));
+    }
+
+    public List<Map.Entry<String, Double>> findTopKClosest(EmbeddingVector queryVector, int amount, Set<String> excludedTerms) {
+        // Resolve the excluded terms to rows once, so the search only tests a bit per row
+        BitSet excludedRows = new BitSet();
+        for (String term : excludedTerms) {
+            int row = embeddingStore.rowOf(term);
+            if (row >= 0) {
+                excludedRows.set(row);
+            }
+        }
+        return toEntries(vectorIndex.search(queryVector.vector(), amount, excludedRows));
+    }
+
+    /**
+     * Finds the top K terms for a batch of query vectors at once. With the exact index, all queries
+     * are scored in a single pass over the stored vectors instead of one pass per query.
+     *
+     * @param excludedTerms terms to leave out of each query's results, in query order
+     * @return the results of each query, in query order
+     */
+    public List<List<Map.Entry<String, Double>>> findTopKClosestAll(List<EmbeddingVector> queryVectors, int amount,
+                                                                    List<Set<String>> excludedTerms) {
+        float[][] queries = new float[queryVectors.size()][];
+        BitSet[] excludedRows = new BitSet[queryVectors.size()];
+        for (int q = 0; q < queries.length; q++) {
+            queries[q] = queryVectors.get(q).vector();
+            excludedRows[q] = new BitSet();
+            for (String term : excludedTerms.get(q)) {
+                int row = embeddingStore.rowOf(term);
+                if (row >= 0) {
+                    excludedRows[q].set(row);
+                }
+            }
+        }
+
+        TopKHeap[] heaps = vectorIndex.searchAll(queries, amount, excludedRows);
+        List<List<Map.Entry<String, Double>>> results = new ArrayList<>(heaps.length);
+        for (TopKHeap heap : heaps) {
+            results.add(toEntries(heap));
+        }
+        return results;
+    }
+
+    /**
+     * Compares the configured index against an exact scan over the current vocabulary.
+     *
+     * @param queries      number of random terms to query
+     * @param k            results per query
+     * @param searchWidths search widths to try (efSearch for HNSW)
+     */
+    public RecallReport evaluateIndex(int queries, int k, int... searchWidths) {
+        return IndexEvaluator.evaluate(embeddingStore, vectorIndex, queries, k, searchWidths);
+    }
+
+    private List<Map.Entry<String, Double>> toEntries(TopKHeap heap) {
+        int[] rows = heap.sortedRows();
+        double[] scores = heap.sortedScores();
+        List<Map.Entry<String, Double>> results = new ArrayList<>(rows.length);
+        for (int i = 0; i < rows.length; i++) {
+            String term = embeddingStore.termAt(rows[i]);
+            // Null when the row was evicted after the search found it
+            if (term != null) {
+                results.add(new AbstractMap.SimpleImmutableEntry<>(term, vectorIndex.metric().similarity(scores[i])));
             }
-            float[] embedding = entry.getValue().vector();
-            // TODO: Warning, cosine similarity can be misleading, see alternatives
-            //  https://www.shaped.ai/blog/cosine-similarity-not-the-silver-bullet-we-thought-it-was
-            double similarity = SimpleVectorStore.EmbeddingMath.cosineSimilarity(queryVector.vector(), embedding);
-            similarityMap.put(term, similarity);
         }
-        List<Map.Entry<String, Double>> sortedResults = new ArrayList<>(similarityMap.entrySet());
-        sortedResults.sort(Map.Entry.<String, Double>comparingByValue().reversed());
-        return sortedResults.stream().limit(amount).collect(Collectors.toList());
+        return results;
     }
     // </editor-fold>
 
@@ -100,6 +357,10 @@ public class EmbeddingManager {
         return new EmbeddingVector(embedding);
     }
 
+    /**
+     * Embeds and stores the terms that are not stored yet. All given terms are pinned: a bounded store
+     * never evicts them, only the terms that were embedded on demand.
+     */
     public void embedNewTerms(List<String> terms) {
         // 1) Detect duplicates in the given list and log a warning for each repeated term
         Map<String, Long> frequencyMap = terms.stream()
@@ -109,23 +370,72 @@ public class EmbeddingManager {
         frequencyMap.forEach((term, count) -> {
             if (count > 1) {
                 log.warn("Term '{}' is repeated {} times in the list. "
-                        + "Overwriting embeddings for duplicates.", term, count);
+                        + "Embedding it only once.", term, count);
             }
         });
 
-        // 2) Embed all terms at once for efficiency (assuming your model supports batch embedding)
-        List<float[]> embeddings = embeddingModel.embed(terms);
+        // 2) Skip terms that are already embedded (e.g. loaded from the cache), the model would return the same vector
+        List<String> newTerms = terms.stream()
+                .distinct()
+                .filter(term -> !embeddingStore.contains(term))
+                .toList();
+        if (newTerms.size() < frequencyMap.size()) {
+            log.debug("Skipping {} terms that are already embedded", frequencyMap.size() - newTerms.size());
+        }
+        pin(frequencyMap.keySet());
+        if (newTerms.isEmpty()) {
+            return;
+        }
 
-        // 3) Store them in the map, warning if a term already exists
-        for (int i = 0; i < terms.size(); i++) {
-            String term = terms.get(i);
+        // 3) Embed all new terms at once for efficiency (assuming your model supports batch embedding)
+        List<float[]> embeddings = embeddingModel.embed(newTerms);
+
+        // 4) Store them in the matrix and the cache
+        store(newTerms, embeddings, true);
+        embeddingCache.append(newTerms, embeddings);
+    }
+
+    private void storeEmbedded(List<String> terms, List<float[]> embeddings) {
+        store(terms, embeddings, false);
+        embeddingCache.append(terms, embeddings);
+    }
 
-            if (embeddingsMap.containsKey(term)) {
-                log.warn("Term '{}' is already present in the embeddings map. "
-                        + "Overwriting the existing embedding.", term);
+    // Unwraps the CompletionException, so callers see the original failure of the model call
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
             }
+            throw e;
+        }
+    }
+
+    private void store(List<String> terms, List<float[]> embeddings, boolean pinned) {
+        storeLock.lock();
+        try {
+            int[] rows = embeddingStore.putAll(terms, embeddings);
+            int dimension = embeddingStore.dimension();
+            for (int i = 0; i < rows.length; i++) {
+                vectorIndex.add(rows[i]);
+                evictionPolicy.recordInsert(rows[i], terms.get(i).hashCode(), pinned, dimension);
+            }
+            // As one batch, so the graph merges the rows in one sweep, or rebuilds itself if they are many
+            knnGraph.add(rows);
+            evict();
+        } finally {
+            storeLock.unlock();
+        }
+    }
 
-            embeddingsMap.put(term, new EmbeddingVector(embeddings.get(i)));
+    // Drops the terms the policy picks until the store is back within its bound; callers hold the store lock
+    private void evict() {
+        for (int row : evictionPolicy.selectVictims(embeddingStore.termCount())) {
+            String term = embeddingStore.termAt(row);
+            vectorIndex.remove(row);
+            knnGraph.remove(row);
+            embeddingStore.remove(term);
         }
     }
     // </editor-fold>
@@ -0,0 +1,30 @@
+package infosupport.be.util;
+
+/**
+ * Size, hit rate and evictions of the embedding store of an {@code EmbeddingManager}.
+ *
+ * @param policy    eviction policy, {@code lru} or {@code tiny_lfu}
+ * @param capacity  maximum number of terms, -1 when unbounded or 0 before the first term was stored
+ * @param entries   terms in the store
+ * @param pinned    terms that are never evicted
+ * @param hits      lookups answered from the store
+ * @param misses    lookups that had to call the embedding model
+ * @param evictions terms evicted so far
+ */
+public record EmbeddingStoreStats(String policy, int capacity, int entries, int pinned,
+                                  long hits, long misses, long evictions) {
+
+    public double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Renders the stats as a single line, e.g. for the log.
+     */
+    public String format() {
+        return String.format("%d terms (%d pinned) of %s, %d hits / %d misses (%.1f%% hit rate), %d evictions (%s)",
+                entries, pinned, capacity < 0 ? "unbounded" : String.valueOf(capacity),
+                hits, misses, 100 * hitRate(), evictions, policy);
+    }
+}
@@ -11,11 +11,7 @@ public record EmbeddingVector(float[] vector) {
      * @return The result of element-wise addition
      */
     public EmbeddingVector plus(EmbeddingVector other) {
-        float[] result = new float[vector.length];
-        for (int i = 0; i < vector.length; i++) {
-            result[i] = this.vector[i] + other.vector[i];
-        }
-        return new EmbeddingVector(result);
+        return new EmbeddingVector(VectorMath.add(this.vector, other.vector));
     }
 
     /**
@@ -24,10 +20,6 @@ public record EmbeddingVector(float[] vector) {
      * @return the result of element-wise subtraction
      */
     public EmbeddingVector minus(EmbeddingVector other) {
-        float[] result = new float[vector.length];
-        for (int i = 0; i < vector.length; i++) {
-            result[i] = this.vector[i] - other.vector[i];
-        }
-        return new EmbeddingVector(result);
+        return new EmbeddingVector(VectorMath.subtract(this.vector, other.vector));
     }
 }
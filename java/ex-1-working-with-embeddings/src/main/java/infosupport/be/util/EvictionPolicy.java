@@ -0,0 +1,343 @@
+package infosupport.be.util;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Decides which rows of a size-bounded {@link FlatEmbeddingStore} are evicted, either plain LRU or
+ * W-TinyLFU (Einziger et al., 2017, as used by Caffeine):
+ * <ul>
+ *     <li>new terms enter a small LRU window (1% of the capacity), so bursts of new terms are kept for a while;</li>
+ *     <li>terms leaving the window compete with the least recently used term of the main area, and the one
+ *     with the lower estimated access frequency is evicted. One-off lookups such as typos therefore rarely
+ *     push out terms that are used over and over;</li>
+ *     <li>the main area is a segmented LRU: terms hit again move from probation to a protected segment (80%).</li>
+ * </ul>
+ * Frequencies come from a count-min sketch of 4-bit counters over term hashes, halved periodically so
+ * old popularity fades. Pinned rows (e.g. the vocabulary) are never evicted, but count towards the capacity.
+ * <p>
+ * The lists are intrusive: {@code previous[row]} and {@code next[row]} link the rows of each segment, so
+ * recording an access never allocates. The capacity is a number of terms, or derived from a byte budget
+ * once the vector dimension is known. Thread-safe.
+ */
+public class EvictionPolicy {
+    private static final int NONE = -1;
+    private static final byte ABSENT = 0;
+    private static final byte WINDOW = 1;
+    private static final byte PROBATION = 2;
+    private static final byte PROTECTED = 3;
+    private static final byte PINNED = 4;
+    // Term string, map slots and norm next to the vector
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    public enum Kind {
+        LRU, TINY_LFU;
+
+        /**
+         * Case-insensitive lookup that accepts {@code lru}, {@code tinylfu} and {@code tiny-lfu}.
+         */
+        public static Kind fromName(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace("-", "").replace("TINYLFU", "TINY_LFU"));
+        }
+    }
+
+    private final Kind kind;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private int capacity = -1;
+    private int windowCapacity;
+    private int protectedCapacity;
+    private final int[] heads = {NONE, NONE, NONE, NONE};
+    private final int[] tails = {NONE, NONE, NONE, NONE};
+    private final int[] sizes = new int[4];
+    private int[] previous = new int[0];
+    private int[] next = new int[0];
+    private int[] hashes = new int[0];
+    private byte[] segment = new byte[0];
+    private int pinned;
+    private FrequencySketch sketch;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxEntries maximum number of terms, or 0
+     * @param maxBytes   maximum bytes of vectors plus overhead, or 0; the smaller bound wins if both are set
+     */
+    public EvictionPolicy(Kind kind, int maxEntries, long maxBytes) {
+        this.kind = kind;
+        this.maxEntries = Math.max(0, maxEntries);
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * @return a policy that never evicts, but still counts hits and misses
+     */
+    public static EvictionPolicy unbounded() {
+        return new EvictionPolicy(Kind.LRU, 0, 0);
+    }
+
+    public boolean isBounded() {
+        return maxEntries > 0 || maxBytes > 0;
+    }
+
+    public synchronized void recordHit(int row) {
+        hits++;
+        if (!isBounded() || row < 0 || row >= segment.length) {
+            return;
+        }
+        switch (segment[row]) {
+            case WINDOW -> moveToHead(row, WINDOW);
+            case PROBATION -> {
+                if (kind == Kind.LRU) {
+                    moveToHead(row, PROBATION);
+                } else {
+                    unlink(row);
+                    linkHead(row, PROTECTED);
+                    while (sizes[PROTECTED] > protectedCapacity) {
+                        int demoted = tails[PROTECTED];
+                        unlink(demoted);
+                        linkHead(demoted, PROBATION);
+                    }
+                }
+            }
+            case PROTECTED -> moveToHead(row, PROTECTED);
+            default -> {
+                return;
+            }
+        }
+        if (sketch != null) {
+            sketch.increment(hashes[row]);
+        }
+    }
+
+    public synchronized void recordMiss() {
+        misses++;
+    }
+
+    /**
+     * Tracks a row that was just stored.
+     *
+     * @param termHash hash of the term, for the frequency estimate
+     * @param pin      never evict the row
+     */
+    public synchronized void recordInsert(int row, int termHash, boolean pin, int dimension) {
+        if (!isBounded()) {
+            return;
+        }
+        ensureConfigured(dimension);
+        ensureCapacity(row + 1);
+        if (segment[row] != ABSENT) {
+            // Stored again (e.g. embedded once more after an eviction raced with a lookup)
+            if (pin) {
+                pin(row);
+            }
+            return;
+        }
+        hashes[row] = termHash;
+        if (sketch != null) {
+            sketch.increment(termHash);
+        }
+        if (pin) {
+            segment[row] = PINNED;
+            pinned++;
+            return;
+        }
+        if (kind == Kind.LRU) {
+            linkHead(row, PROBATION);
+            return;
+        }
+        linkHead(row, WINDOW);
+        // Terms leaving the window join the main area, where they compete with its victim on eviction
+        while (sizes[WINDOW] > windowCapacity) {
+            int candidate = tails[WINDOW];
+            unlink(candidate);
+            linkHead(candidate, PROBATION);
+        }
+    }
+
+    /**
+     * Makes the row exempt from eviction.
+     */
+    public synchronized void pin(int row) {
+        if (!isBounded() || row < 0 || row >= segment.length || segment[row] == ABSENT || segment[row] == PINNED) {
+            return;
+        }
+        unlink(row);
+        segment[row] = PINNED;
+        pinned++;
+    }
+
+    /**
+     * Picks the rows to evict so that at most {@code capacity} terms remain. Pinned rows are never picked,
+     * so the store can stay above its capacity if it holds more pinned terms than that.
+     * The picked rows are no longer tracked.
+     *
+     * @param storedTerms the number of terms in the store now
+     */
+    public synchronized int[] selectVictims(int storedTerms) {
+        if (!isBounded() || capacity < 0 || storedTerms <= capacity) {
+            return new int[0];
+        }
+        int[] victims = new int[storedTerms - capacity];
+        int count = 0;
+        while (count < victims.length) {
+            int victim = nextVictim();
+            if (victim == NONE) {
+                break;
+            }
+            unlink(victim);
+            segment[victim] = ABSENT;
+            victims[count++] = victim;
+        }
+        evictions += count;
+        return Arrays.copyOf(victims, count);
+    }
+
+    public synchronized EmbeddingStoreStats stats(int storedTerms) {
+        return new EmbeddingStoreStats(kind.name().toLowerCase(Locale.ROOT), isBounded() ? Math.max(0, capacity) : -1,
+                storedTerms, pinned, hits, misses, evictions);
+    }
+
+    private int nextVictim() {
+        int victim = tails[PROBATION];
+        if (kind == Kind.TINY_LFU && victim != NONE) {
+            // The most recent arrival from the window challenges the least recently used term of probation
+            int candidate = heads[PROBATION];
+            if (candidate != victim && sketch.frequency(hashes[candidate]) > sketch.frequency(hashes[victim])) {
+                return victim;
+            }
+            return candidate;
+        }
+        if (victim == NONE) {
+            victim = tails[PROTECTED];
+        }
+        if (victim == NONE) {
+            victim = tails[WINDOW];
+        }
+        return victim;
+    }
+
+    private void ensureConfigured(int dimension) {
+        if (capacity >= 0) {
+            return;
+        }
+        long byBytes = maxBytes > 0 ? maxBytes / ((long) dimension * Float.BYTES + ENTRY_OVERHEAD_BYTES) : Long.MAX_VALUE;
+        long byEntries = maxEntries > 0 ? maxEntries : Long.MAX_VALUE;
+        capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.min(byBytes, byEntries)));
+        windowCapacity = Math.max(1, capacity / 100);
+        protectedCapacity = (int) ((capacity - windowCapacity) * 0.8);
+        if (kind == Kind.TINY_LFU) {
+            sketch = new FrequencySketch(capacity);
+        }
+    }
+
+    private void ensureCapacity(int rows) {
+        if (rows > segment.length) {
+            int size = Math.max(rows, segment.length + (segment.length >> 1) + 16);
+            previous = Arrays.copyOf(previous, size);
+            next = Arrays.copyOf(next, size);
+            hashes = Arrays.copyOf(hashes, size);
+            segment = Arrays.copyOf(segment, size);
+        }
+    }
+
+    private void moveToHead(int row, byte list) {
+        unlink(row);
+        linkHead(row, list);
+    }
+
+    private void linkHead(int row, byte list) {
+        segment[row] = list;
+        previous[row] = NONE;
+        next[row] = heads[list];
+        if (heads[list] != NONE) {
+            previous[heads[list]] = row;
+        } else {
+            tails[list] = row;
+        }
+        heads[list] = row;
+        sizes[list]++;
+    }
+
+    private void unlink(int row) {
+        byte list = segment[row];
+        if (list == PINNED) {
+            pinned--;
+            segment[row] = ABSENT;
+            return;
+        }
+        if (list == ABSENT) {
+            return;
+        }
+        if (previous[row] != NONE) {
+            next[previous[row]] = next[row];
+        } else {
+            heads[list] = next[row];
+        }
+        if (next[row] != NONE) {
+            previous[next[row]] = previous[row];
+        } else {
+            tails[list] = previous[row];
+        }
+        sizes[list]--;
+        segment[row] = ABSENT;
+    }
+
+    /**
+     * Count-min sketch with four 4-bit counters per term, packed sixteen to a long.
+     * After {@code 10 * capacity} increments every counter is halved.
+     */
+    private static final class FrequencySketch {
+        private final long[] table;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            table = new long[Math.max(8, Integer.highestOneBit(Math.max(1, capacity) - 1) << 1)];
+            sampleSize = 10 * Math.max(1, capacity);
+        }
+
+        int frequency(int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                frequency = Math.min(frequency, counter(indexOf(hash, i), hash, i));
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                if (counter(index, hash, i) < 15) {
+                    table[index] += 1L << shift(hash, i);
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                // Halve every counter: shift right and drop the bit that crossed into the lower counter
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & 0x7777_7777_7777_7777L;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int counter(int index, int hash, int i) {
+            return (int) ((table[index] >>> shift(hash, i)) & 0xF);
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + (long) i * 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+            return (int) ((h ^ (h >>> 32)) & (table.length - 1));
+        }
+
+        // Counter i of a term is one of the four nibbles in the i-th quarter of its long
+        private static int shift(int hash, int i) {
+            return (i << 4) + (((hash >>> (i << 3)) & 3) << 2);
+        }
+    }
+}
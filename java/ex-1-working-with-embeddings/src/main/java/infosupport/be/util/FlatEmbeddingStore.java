@@ -0,0 +1,367 @@
+package infosupport.be.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Stores all term embeddings in one contiguous, row-major float matrix.
+ * Row {@code r} occupies {@code matrix[r * dimension .. (r + 1) * dimension)}, and a
+ * {@link TermIndex} maps each term to its row. Compared to one {@code float[]} per term,
+ * a similarity scan walks memory sequentially and the GC only tracks a handful of arrays.
+ * The L2 norm of every row is cached when it is written, so scans never recompute it.
+ * <p>
+ * The dimension is fixed by the first vector that is stored. Reads run concurrently,
+ * writes are exclusive.
+ * <p>
+ * An off-heap store keeps the matrix in direct memory instead (see {@link OffHeapMatrix}), for use
+ * with a quantized index that scans compact codes and only copies out rows to re-rank them.
+ * Such a store cannot hand out the raw matrix through {@link #read}.
+ * <p>
+ * Rows freed by {@link #remove} are zeroed and reused by later puts. Scans still walk them,
+ * so searches skip them with {@link #excludeFree}.
+ */
+public class FlatEmbeddingStore {
+    private static final int INITIAL_ROWS = 1024;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TermIndex index = new TermIndex(INITIAL_ROWS);
+    private final boolean offHeap;
+    private OffHeapMatrix offHeapMatrix;
+    private float[] matrix = new float[0];
+    private float[] norms = new float[0];
+    private String[] terms = new String[0];
+    private int dimension = -1;
+    private int rows;
+    private long version;
+    private final BitSet freeRows = new BitSet();
+
+    /**
+     * Callback that receives the raw matrix and the cached row norms while the store's read lock is held.
+     * Implementations must not keep a reference to the arrays after returning.
+     */
+    @FunctionalInterface
+    public interface MatrixReader<T> {
+        T read(float[] matrix, float[] norms, int rows, int dimension);
+    }
+
+    public FlatEmbeddingStore() {
+        this(false);
+    }
+
+    /**
+     * @param offHeap keep the vectors in direct memory instead of a heap array
+     */
+    public FlatEmbeddingStore(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Stores the vector for the given term, overwriting the existing row if the term is known.
+     *
+     * @return the row the vector was written to
+     */
+    public int put(String term, float[] vector) {
+        lock.writeLock().lock();
+        try {
+            return putLocked(term, vector);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stores a batch of vectors under a single write lock.
+     *
+     * @return the row each vector was written to, in input order
+     */
+    public int[] putAll(List<String> newTerms, List<float[]> vectors) {
+        lock.writeLock().lock();
+        try {
+            if (dimension < 0 && !vectors.isEmpty()) {
+                dimension = vectors.get(0).length;
+            }
+            ensureCapacity(rows + newTerms.size());
+            int[] written = new int[newTerms.size()];
+            for (int i = 0; i < newTerms.size(); i++) {
+                written[i] = putLocked(newTerms.get(i), vectors.get(i));
+            }
+            return written;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the term, freeing its row for a later put.
+     *
+     * @return the freed row, or -1 if the term is unknown
+     */
+    public int remove(String term) {
+        lock.writeLock().lock();
+        try {
+            int row = index.remove(term);
+            if (row < 0) {
+                return row;
+            }
+            terms[row] = null;
+            norms[row] = 0;
+            if (offHeap) {
+                offHeapMatrix.write(row, new float[dimension]);
+            } else {
+                Arrays.fill(matrix, row * dimension, (row + 1) * dimension, 0f);
+            }
+            freeRows.set(row);
+            version++;
+            return row;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the store's free rows to a search's excluded rows.
+     *
+     * @param excluded rows the search excludes already, or {@code null}; not modified
+     * @return {@code excluded} itself if no row is free, otherwise a copy that also holds the free rows
+     */
+    public BitSet excludeFree(BitSet excluded) {
+        lock.readLock().lock();
+        try {
+            if (freeRows.isEmpty()) {
+                return excluded;
+            }
+            BitSet union = excluded == null ? new BitSet() : (BitSet) excluded.clone();
+            union.or(freeRows);
+            return union;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the vector stored for the term, or {@code null} if the term is unknown.
+     */
+    public float[] get(String term) {
+        lock.readLock().lock();
+        try {
+            int row = index.get(term);
+            return row < 0 ? null : rowLocked(row);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String term) {
+        lock.readLock().lock();
+        try {
+            return index.get(term) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the row of the term, or -1 if the term is unknown.
+     */
+    public int rowOf(String term) {
+        lock.readLock().lock();
+        try {
+            return index.get(term);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the vector in the given row
+     */
+    public float[] row(int row) {
+        lock.readLock().lock();
+        try {
+            return rowLocked(row);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public float norm(int row) {
+        lock.readLock().lock();
+        try {
+            return norms[row];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies a block of consecutive rows and their norms under a single read lock.
+     * Works for heap and off-heap stores alike.
+     *
+     * @return the number of rows copied, less than {@code count} at the end of the store
+     */
+    public int copyRows(int from, int count, float[] vectorsInto, float[] normsInto) {
+        lock.readLock().lock();
+        try {
+            int copied = Math.max(0, Math.min(count, rows - from));
+            for (int i = 0; i < copied; i++) {
+                if (offHeap) {
+                    offHeapMatrix.read(from + i, vectorsInto, i * dimension);
+                } else {
+                    System.arraycopy(matrix, (from + i) * dimension, vectorsInto, i * dimension, dimension);
+                }
+            }
+            System.arraycopy(norms, from, normsInto, 0, copied);
+            return copied;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the term stored in the row, or {@code null} if the row is free
+     */
+    public String termAt(int row) {
+        lock.readLock().lock();
+        try {
+            return terms[row];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of stored terms, which is less than {@link #size()} while rows are free
+     */
+    public int termCount() {
+        lock.readLock().lock();
+        try {
+            return rows - freeRows.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of rows in use, including free rows, so every row index is below it
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return rows;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a counter that changes whenever a row is added or overwritten, so derived data
+     * (e.g. a projection of every row) can tell whether it is still up to date
+     */
+    public long version() {
+        lock.readLock().lock();
+        try {
+            return version;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the vector dimension, or -1 while the store is still empty.
+     */
+    public int dimension() {
+        lock.readLock().lock();
+        try {
+            return dimension;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Runs the reader against the raw matrix while holding the read lock,
+     * so scans can walk the rows sequentially without copying them.
+     *
+     * @throws IllegalStateException if the store keeps its vectors off-heap
+     */
+    public <T> T read(MatrixReader<T> reader) {
+        if (offHeap) {
+            throw new IllegalStateException("The embedding store keeps its vectors off-heap, "
+                    + "only a quantized index can search it");
+        }
+        lock.readLock().lock();
+        try {
+            return reader.read(matrix, norms, rows, Math.max(dimension, 0));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int putLocked(String term, float[] vector) {
+        if (dimension < 0) {
+            dimension = vector.length;
+        } else if (vector.length != dimension) {
+            throw new IllegalArgumentException("Embedding for '" + term + "' has dimension " + vector.length
+                    + ", expected " + dimension);
+        }
+
+        int row = index.get(term);
+        if (row < 0) {
+            row = freeRows.nextSetBit(0);
+            if (row >= 0) {
+                freeRows.clear(row);
+            } else {
+                ensureCapacity(rows + 1);
+                row = rows++;
+            }
+            terms[row] = term;
+            index.put(term, row);
+        }
+        if (offHeap) {
+            offHeapMatrix.write(row, vector);
+        } else {
+            System.arraycopy(vector, 0, matrix, row * dimension, dimension);
+        }
+        norms[row] = (float) VectorMath.norm(vector);
+        version++;
+        return row;
+    }
+
+    private float[] rowLocked(int row) {
+        if (!offHeap) {
+            return Arrays.copyOfRange(matrix, row * dimension, (row + 1) * dimension);
+        }
+        float[] vector = new float[dimension];
+        offHeapMatrix.read(row, vector, 0);
+        return vector;
+    }
+
+    private void ensureCapacity(int requiredRows) {
+        if (dimension < 0 || requiredRows <= terms.length) {
+            return;
+        }
+        int capacity = Math.max(INITIAL_ROWS, terms.length);
+        while (capacity < requiredRows) {
+            capacity += capacity >> 1;
+        }
+        if (offHeap) {
+            if (offHeapMatrix == null) {
+                offHeapMatrix = new OffHeapMatrix(dimension);
+            }
+            offHeapMatrix.ensureCapacity(capacity);
+        } else {
+            if ((long) capacity * dimension > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Embedding store cannot hold " + requiredRows + " rows of dimension " + dimension);
+            }
+            matrix = Arrays.copyOf(matrix, capacity * dimension);
+        }
+        norms = Arrays.copyOf(norms, capacity);
+        terms = Arrays.copyOf(terms, capacity);
+    }
+}
@@ -0,0 +1,120 @@
+package infosupport.be.util;
+
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Offline stand-in for a remote embedding model, for benchmarks and offline builds.
+ * <p>
+ * Every word contributes its hashed character n-grams (3 to 5 characters, with {@code <} and
+ * {@code >} marking the word boundaries, as in fastText) and the whole word, each as a random
+ * ±1 in one of the {@code dimension} slots, after which the vector is normalized. The result is
+ * deterministic, and texts that share words or word parts ("king", "kings", "kingdom") end up
+ * close to each other, which is enough to exercise search, caching and plotting realistically.
+ * An optional latency per call simulates the round trip to a remote model.
+ */
+public class HashingEmbeddingModel implements EmbeddingModel {
+    private static final int MIN_GRAM = 3;
+    private static final int MAX_GRAM = 5;
+    private static final float WORD_WEIGHT = 2f;
+
+    private final int dimension;
+    private final Duration latency;
+
+    public HashingEmbeddingModel(int dimension, Duration latency) {
+        if (dimension < 1) {
+            throw new IllegalArgumentException("Embedding dimension must be at least 1, got " + dimension);
+        }
+        this.dimension = dimension;
+        this.latency = latency;
+    }
+
+    /**
+     * @return a name that identifies the vectors this model produces, e.g. for cache files
+     */
+    public String modelName() {
+        return "local-ngram-" + dimension;
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        simulateLatency();
+        List<Embedding> embeddings = new ArrayList<>(request.getInstructions().size());
+        for (String text : request.getInstructions()) {
+            embeddings.add(new Embedding(vectorize(text), embeddings.size()));
+        }
+        return new EmbeddingResponse(embeddings);
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        simulateLatency();
+        return vectorize(document.getText());
+    }
+
+    @Override
+    public int dimensions() {
+        return dimension;
+    }
+
+    private float[] vectorize(String text) {
+        float[] vector = new float[dimension];
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            addFeature(vector, hash(word, 0, word.length(), 0x9E3779B97F4A7C15L), WORD_WEIGHT);
+
+            String marked = "<" + word + ">";
+            for (int n = MIN_GRAM; n <= MAX_GRAM; n++) {
+                for (int start = 0; start + n <= marked.length(); start++) {
+                    addFeature(vector, hash(marked, start, start + n, n), 1f);
+                }
+            }
+        }
+        return VectorMath.normalize(vector);
+    }
+
+    // The low bits pick the slot, the top bit the sign, so colliding features tend to cancel out
+    private void addFeature(float[] vector, long hash, float weight) {
+        int slot = (int) Long.remainderUnsigned(hash, dimension);
+        vector[slot] += hash < 0 ? -weight : weight;
+    }
+
+    /**
+     * FNV-1a over the characters, finished with the MurmurHash3 mixer. Unlike {@link String#hashCode()},
+     * the seed keeps n-grams of different lengths (and whole words) from sharing hashes.
+     */
+    private static long hash(String text, int from, int to, long seed) {
+        long hash = 0xCBF29CE484222325L ^ seed;
+        for (int i = from; i < to; i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private void simulateLatency() {
+        if (latency.isZero() || latency.isNegative()) {
+            return;
+        }
+        try {
+            Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while simulating embedding latency", e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package infosupport.be.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Row-major float matrix in direct (off-heap) memory, used by {@link FlatEmbeddingStore} when a
+ * quantized index keeps the compact codes on the heap and only needs full precision for re-ranking.
+ * <p>
+ * The rows live in fixed-size chunks, so growing never copies existing rows and the matrix is
+ * not limited by the 2 GB a single buffer can address. Not thread-safe, the store's lock guards it.
+ */
+final class OffHeapMatrix {
+    private static final int CHUNK_ROWS = 1024;
+
+    private final int dimension;
+    private final List<FloatBuffer> chunks = new ArrayList<>();
+
+    OffHeapMatrix(int dimension) {
+        this.dimension = dimension;
+    }
+
+    void ensureCapacity(int rows) {
+        while ((long) chunks.size() * CHUNK_ROWS < rows) {
+            chunks.add(ByteBuffer.allocateDirect(CHUNK_ROWS * dimension * Float.BYTES)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer());
+        }
+    }
+
+    void write(int row, float[] vector) {
+        chunks.get(row / CHUNK_ROWS).put((row % CHUNK_ROWS) * dimension, vector, 0, dimension);
+    }
+
+    void read(int row, float[] into, int offset) {
+        chunks.get(row / CHUNK_ROWS).get((row % CHUNK_ROWS) * dimension, into, offset, dimension);
+    }
+}
@@ -0,0 +1,38 @@
+package infosupport.be.util;
+
+/**
+ * Plain Java loops, used when the incubating Vector API is not available at runtime.
+ * The JIT may still auto-vectorize the element-wise loops, but not the reductions.
+ */
+class ScalarVectorKernel implements VectorKernel {
+
+    @Override
+    public void add(float[] a, float[] b, float[] out) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = a[i] + b[i];
+        }
+    }
+
+    @Override
+    public void subtract(float[] a, float[] b, float[] out) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = a[i] - b[i];
+        }
+    }
+
+    @Override
+    public void scaleAdd(float[] accumulator, float scale, float[] x, int xOffset) {
+        for (int i = 0; i < accumulator.length; i++) {
+            accumulator[i] += scale * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public double dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,66 @@
+package infosupport.be.util;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernel built on the incubating {@code jdk.incubator.vector} API. Each loop processes
+ * as many floats per instruction as the CPU supports (8 with AVX2, 16 with AVX-512)
+ * and finishes the remaining tail with scalar code.
+ * <p>
+ * Only loaded by {@link VectorMath} when the JVM runs with {@code --add-modules jdk.incubator.vector}.
+ */
+class SimdVectorKernel implements VectorKernel {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public void add(float[] a, float[] b, float[] out) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(out.length); i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, a, i).add(FloatVector.fromArray(SPECIES, b, i)).intoArray(out, i);
+        }
+        for (; i < out.length; i++) {
+            out[i] = a[i] + b[i];
+        }
+    }
+
+    @Override
+    public void subtract(float[] a, float[] b, float[] out) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(out.length); i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, a, i).sub(FloatVector.fromArray(SPECIES, b, i)).intoArray(out, i);
+        }
+        for (; i < out.length; i++) {
+            out[i] = a[i] - b[i];
+        }
+    }
+
+    @Override
+    public void scaleAdd(float[] accumulator, float scale, float[] x, int xOffset) {
+        FloatVector factor = FloatVector.broadcast(SPECIES, scale);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(accumulator.length); i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, x, xOffset + i)
+                    .fma(factor, FloatVector.fromArray(SPECIES, accumulator, i))
+                    .intoArray(accumulator, i);
+        }
+        for (; i < accumulator.length; i++) {
+            accumulator[i] += scale * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public double dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        FloatVector sum = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            sum = FloatVector.fromArray(SPECIES, a, aOffset + i).fma(FloatVector.fromArray(SPECIES, b, bOffset + i), sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            result += a[aOffset + i] * b[bOffset + i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,68 @@
+package infosupport.be.util;
+
+import java.util.Locale;
+
+/**
+ * Similarity metrics supported by the top-K search. Every metric is derived from the
+ * dot product plus the norms that {@link FlatEmbeddingStore} caches per row, so scoring
+ * a row costs one pass over its floats and no square root.
+ * <p>
+ * Cosine similarity can be misleading, see
+ * <a href="https://www.shaped.ai/blog/cosine-similarity-not-the-silver-bullet-we-thought-it-was">this article</a>
+ * for when the alternatives make more sense.
+ */
+public enum SimilarityMetric {
+    /**
+     * Angle between the vectors, ignoring their length. Ranges from -1 to 1.
+     */
+    COSINE {
+        @Override
+        public double rankScore(double dot, double queryNorm, double rowNorm) {
+            double norms = queryNorm * rowNorm;
+            return norms == 0 ? 0 : dot / norms;
+        }
+    },
+    /**
+     * Raw dot product, so longer vectors score higher.
+     */
+    DOT {
+        @Override
+        public double rankScore(double dot, double queryNorm, double rowNorm) {
+            return dot;
+        }
+    },
+    /**
+     * Euclidean distance, reported as {@code 1 / (1 + distance)} so that higher still means closer.
+     * Ranking uses the negated squared distance, which needs no square root.
+     */
+    EUCLIDEAN {
+        @Override
+        public double rankScore(double dot, double queryNorm, double rowNorm) {
+            return -(queryNorm * queryNorm + rowNorm * rowNorm - 2 * dot);
+        }
+
+        @Override
+        public double similarity(double rankScore) {
+            return 1 / (1 + Math.sqrt(Math.max(0, -rankScore)));
+        }
+    };
+
+    /**
+     * Scores a row from its dot product with the query and both norms. Higher scores rank first.
+     */
+    public abstract double rankScore(double dot, double queryNorm, double rowNorm);
+
+    /**
+     * Converts a rank score into the similarity reported to callers.
+     */
+    public double similarity(double rankScore) {
+        return rankScore;
+    }
+
+    /**
+     * Case-insensitive lookup, so the property can be written as {@code cosine}.
+     */
+    public static SimilarityMetric fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
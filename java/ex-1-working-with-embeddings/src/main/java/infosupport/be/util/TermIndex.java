@@ -0,0 +1,113 @@
+package infosupport.be.util;
+
+/**
+ * Open-addressing hash index from a term to its row in the {@link FlatEmbeddingStore}.
+ * Keys and rows live in two parallel arrays, so a lookup never allocates or boxes.
+ * Not thread-safe: the store guards every access with its own lock.
+ */
+class TermIndex {
+    private static final int NO_ROW = -1;
+
+    private String[] keys;
+    private int[] rows;
+    private int size;
+
+    TermIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+        this.keys = new String[capacity];
+        this.rows = new int[capacity];
+    }
+
+    /**
+     * @return the row of the given term, or -1 if the term is unknown.
+     */
+    int get(String term) {
+        int mask = keys.length - 1;
+        for (int slot = mix(term.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+            String key = keys[slot];
+            if (key == null) {
+                return NO_ROW;
+            }
+            if (key.equals(term)) {
+                return rows[slot];
+            }
+        }
+    }
+
+    /**
+     * Maps the term to the given row, replacing any previous mapping.
+     */
+    void put(String term, int row) {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length << 1);
+        }
+        int mask = keys.length - 1;
+        for (int slot = mix(term.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+            String key = keys[slot];
+            if (key == null) {
+                keys[slot] = term;
+                rows[slot] = row;
+                size++;
+                return;
+            }
+            if (key.equals(term)) {
+                rows[slot] = row;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the term's mapping. Later entries of the probe run are shifted back into the hole,
+     * so lookups can keep stopping at the first empty slot.
+     *
+     * @return the row the term was mapped to, or -1 if the term is unknown.
+     */
+    int remove(String term) {
+        int mask = keys.length - 1;
+        int hole = mix(term.hashCode()) & mask;
+        while (keys[hole] != null && !keys[hole].equals(term)) {
+            hole = (hole + 1) & mask;
+        }
+        if (keys[hole] == null) {
+            return NO_ROW;
+        }
+        int row = rows[hole];
+        keys[hole] = null;
+        size--;
+        for (int slot = (hole + 1) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            int home = mix(keys[slot].hashCode()) & mask;
+            // The entry may move into the hole if the hole lies between its home slot and its current slot
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                keys[hole] = keys[slot];
+                rows[hole] = rows[slot];
+                keys[slot] = null;
+                hole = slot;
+            }
+        }
+        return row;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldRows = rows;
+        keys = new String[capacity];
+        rows = new int[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                put(oldKeys[i], oldRows[i]);
+            }
+        }
+    }
+
+    // Spreads the higher bits of String.hashCode, which clusters badly for short words
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,136 @@
+package infosupport.be.util;
+
+import java.util.Arrays;
+
+/**
+ * Bounded min-heap that keeps the {@code k} highest scoring rows seen so far.
+ * The root is always the weakest of the kept rows, so a candidate only costs a
+ * single comparison unless it beats that score. Rows and scores are kept in
+ * primitive arrays to avoid boxing on the hot path.
+ */
+public class TopKHeap {
+    private final int capacity;
+    private final int[] rows;
+    private final double[] scores;
+    private int size;
+
+    public TopKHeap(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.rows = new int[this.capacity];
+        this.scores = new double[this.capacity];
+    }
+
+    /**
+     * Offers a candidate row; it is kept if the heap is not full yet or if it beats the current minimum.
+     */
+    public void offer(int row, double score) {
+        if (size < capacity) {
+            rows[size] = row;
+            scores[size] = score;
+            siftUp(size++);
+        } else if (capacity > 0 && score > scores[0]) {
+            rows[0] = row;
+            scores[0] = score;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * @return the score a candidate has to beat to enter the heap, or negative infinity while the heap is not full.
+     */
+    public double threshold() {
+        return size < capacity ? Double.NEGATIVE_INFINITY : scores[0];
+    }
+
+    /**
+     * Adds every entry of the other heap to this one.
+     */
+    public void merge(TopKHeap other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.rows[i], other.scores[i]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * @return the kept rows, ordered from highest to lowest score.
+     */
+    public int[] sortedRows() {
+        Integer[] order = sortedOrder();
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = rows[order[i]];
+        }
+        return result;
+    }
+
+    /**
+     * @return the kept scores, ordered from highest to lowest (matching {@link #sortedRows()}).
+     */
+    public double[] sortedScores() {
+        Integer[] order = sortedOrder();
+        double[] result = new double[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = scores[order[i]];
+        }
+        return result;
+    }
+
+    // k is small (typically 5), so boxing the indices for the sort is negligible
+    private Integer[] sortedOrder() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, this::compareDescending);
+        return order;
+    }
+
+    // Highest score first; ties are broken by row so results are deterministic
+    private int compareDescending(Integer a, Integer b) {
+        int byScore = Double.compare(scores[b], scores[a]);
+        return byScore != 0 ? byScore : Integer.compare(rows[a], rows[b]);
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (scores[parent] <= scores[index]) {
+                return;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int left = 2 * index + 1;
+            if (left >= size) {
+                return;
+            }
+            int smallest = left + 1 < size && scores[left + 1] < scores[left] ? left + 1 : left;
+            if (scores[index] <= scores[smallest]) {
+                return;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int row = rows[a];
+        rows[a] = rows[b];
+        rows[b] = row;
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
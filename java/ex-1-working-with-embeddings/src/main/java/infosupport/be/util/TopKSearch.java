@@ -0,0 +1,187 @@
+package infosupport.be.util;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Exhaustive top-K search over the rows of a {@link FlatEmbeddingStore} matrix.
+ * Large matrices are split into fork-join partitions, each partition fills its own
+ * bounded {@link TopKHeap}, and the partial heaps are merged on the way back up.
+ * Small matrices are scanned on the calling thread, where forking would only add overhead.
+ * <p>
+ * Row norms come precomputed from the store, so scoring a row is a single dot product
+ * followed by the {@link SimilarityMetric} formula.
+ */
+public final class TopKSearch {
+    // Rows per leaf task: 4096 rows of 1536 floats is ~24 MB, enough work to amortize a fork
+    private static final int PARTITION_ROWS = 4096;
+    // Rows scored against every query of a batch before moving on: 64 rows of 1536 floats (~384 KB) stay in L2
+    private static final int ROW_TILE = 64;
+
+    private TopKSearch() {
+    }
+
+    /**
+     * Finds the {@code k} rows with the highest similarity to the query.
+     *
+     * @param matrix    row-major matrix, as handed out by {@link FlatEmbeddingStore#read}
+     * @param norms     cached L2 norm per row
+     * @param rows      number of rows in use
+     * @param dimension vector dimension
+     * @param query     query vector
+     * @param k         number of results to keep
+     * @param excluded  rows to skip, or {@code null}
+     * @param metric    how to turn a dot product into a score
+     * @return a heap holding at most {@code k} rows, scored with {@link SimilarityMetric#rankScore}
+     */
+    public static TopKHeap search(float[] matrix, float[] norms, int rows, int dimension, float[] query, int k,
+                                  BitSet excluded, SimilarityMetric metric) {
+        double queryNorm = VectorMath.norm(query);
+        var task = new PartitionTask(matrix, norms, dimension, query, queryNorm, k, excluded, metric, 0, rows);
+        if (rows <= PARTITION_ROWS) {
+            return task.compute();
+        }
+        return ForkJoinPool.commonPool().invoke(task);
+    }
+
+    /**
+     * Finds the {@code k} best rows for each of a batch of queries in a single pass over the matrix.
+     * The rows are visited in small tiles, and every query is scored against a tile while it is
+     * still in cache, so the matrix is read from memory once per batch instead of once per query.
+     *
+     * @param excluded rows to skip per query, or {@code null}; individual entries may be {@code null} too
+     * @return one heap per query, in query order
+     * @see #search
+     */
+    public static TopKHeap[] searchAll(float[] matrix, float[] norms, int rows, int dimension, float[][] queries, int k,
+                                       BitSet[] excluded, SimilarityMetric metric) {
+        double[] queryNorms = new double[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            queryNorms[q] = VectorMath.norm(queries[q]);
+        }
+        var task = new BatchPartitionTask(matrix, norms, dimension, queries, queryNorms, k, excluded, metric, 0, rows);
+        if (rows <= PARTITION_ROWS) {
+            return task.compute();
+        }
+        return ForkJoinPool.commonPool().invoke(task);
+    }
+
+    private static final class PartitionTask extends RecursiveTask<TopKHeap> {
+        private final float[] matrix;
+        private final float[] norms;
+        private final int dimension;
+        private final float[] query;
+        private final double queryNorm;
+        private final int k;
+        private final BitSet excluded;
+        private final SimilarityMetric metric;
+        private final int from;
+        private final int to;
+
+        PartitionTask(float[] matrix, float[] norms, int dimension, float[] query, double queryNorm, int k,
+                      BitSet excluded, SimilarityMetric metric, int from, int to) {
+            this.matrix = matrix;
+            this.norms = norms;
+            this.dimension = dimension;
+            this.query = query;
+            this.queryNorm = queryNorm;
+            this.k = k;
+            this.excluded = excluded;
+            this.metric = metric;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TopKHeap compute() {
+            if (to - from <= PARTITION_ROWS) {
+                return scan();
+            }
+            int middle = (from + to) >>> 1;
+            var left = new PartitionTask(matrix, norms, dimension, query, queryNorm, k, excluded, metric, from, middle);
+            var right = new PartitionTask(matrix, norms, dimension, query, queryNorm, k, excluded, metric, middle, to);
+            left.fork();
+            TopKHeap merged = right.compute();
+            merged.merge(left.join());
+            return merged;
+        }
+
+        private TopKHeap scan() {
+            TopKHeap heap = new TopKHeap(k);
+            for (int row = from, offset = from * dimension; row < to; row++, offset += dimension) {
+                if (excluded != null && excluded.get(row)) {
+                    continue;
+                }
+                double dot = VectorMath.dot(query, 0, matrix, offset, dimension);
+                heap.offer(row, metric.rankScore(dot, queryNorm, norms[row]));
+            }
+            return heap;
+        }
+    }
+
+    private static final class BatchPartitionTask extends RecursiveTask<TopKHeap[]> {
+        private final float[] matrix;
+        private final float[] norms;
+        private final int dimension;
+        private final float[][] queries;
+        private final double[] queryNorms;
+        private final int k;
+        private final BitSet[] excluded;
+        private final SimilarityMetric metric;
+        private final int from;
+        private final int to;
+
+        BatchPartitionTask(float[] matrix, float[] norms, int dimension, float[][] queries, double[] queryNorms, int k,
+                           BitSet[] excluded, SimilarityMetric metric, int from, int to) {
+            this.matrix = matrix;
+            this.norms = norms;
+            this.dimension = dimension;
+            this.queries = queries;
+            this.queryNorms = queryNorms;
+            this.k = k;
+            this.excluded = excluded;
+            this.metric = metric;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TopKHeap[] compute() {
+            if (to - from <= PARTITION_ROWS) {
+                return scan();
+            }
+            int middle = (from + to) >>> 1;
+            var left = new BatchPartitionTask(matrix, norms, dimension, queries, queryNorms, k, excluded, metric, from, middle);
+            var right = new BatchPartitionTask(matrix, norms, dimension, queries, queryNorms, k, excluded, metric, middle, to);
+            left.fork();
+            TopKHeap[] merged = right.compute();
+            TopKHeap[] leftHeaps = left.join();
+            for (int q = 0; q < merged.length; q++) {
+                merged[q].merge(leftHeaps[q]);
+            }
+            return merged;
+        }
+
+        private TopKHeap[] scan() {
+            TopKHeap[] heaps = new TopKHeap[queries.length];
+            for (int q = 0; q < queries.length; q++) {
+                heaps[q] = new TopKHeap(k);
+            }
+            for (int tileStart = from; tileStart < to; tileStart += ROW_TILE) {
+                int tileEnd = Math.min(to, tileStart + ROW_TILE);
+                for (int q = 0; q < queries.length; q++) {
+                    BitSet skip = excluded == null ? null : excluded[q];
+                    for (int row = tileStart, offset = tileStart * dimension; row < tileEnd; row++, offset += dimension) {
+                        if (skip != null && skip.get(row)) {
+                            continue;
+                        }
+                        double dot = VectorMath.dot(queries[q], 0, matrix, offset, dimension);
+                        heaps[q].offer(row, metric.rankScore(dot, queryNorms[q], norms[row]));
+                    }
+                }
+            }
+            return heaps;
+        }
+    }
+}
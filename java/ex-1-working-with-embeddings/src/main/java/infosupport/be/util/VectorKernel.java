@@ -0,0 +1,36 @@
+package infosupport.be.util;
+
+/**
+ * Element-wise and reduction primitives used by all embedding arithmetic.
+ * Offsets allow rows of the {@link FlatEmbeddingStore} matrix to be used in place.
+ * Obtain the active implementation through {@link VectorMath}.
+ */
+interface VectorKernel {
+
+    /**
+     * {@code out[i] = a[i] + b[i]}
+     */
+    void add(float[] a, float[] b, float[] out);
+
+    /**
+     * {@code out[i] = a[i] - b[i]}
+     */
+    void subtract(float[] a, float[] b, float[] out);
+
+    /**
+     * Fused multiply-add into an accumulator: {@code accumulator[i] += scale * x[xOffset + i]}.
+     */
+    void scaleAdd(float[] accumulator, float scale, float[] x, int xOffset);
+
+    /**
+     * Dot product of {@code length} floats starting at the given offsets.
+     */
+    double dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /**
+     * L2 norm of {@code length} floats starting at the given offset.
+     */
+    default double norm(float[] a, int offset, int length) {
+        return Math.sqrt(dot(a, offset, a, offset, length));
+    }
+}
@@ -0,0 +1,86 @@
+package infosupport.be.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Shared entry point for vector arithmetic on embeddings.
+ * Uses the SIMD kernel when the {@code jdk.incubator.vector} module is present
+ * (start the JVM with {@code --add-modules jdk.incubator.vector}), and falls back
+ * to plain loops otherwise.
+ */
+@Slf4j
+public final class VectorMath {
+    private static final VectorKernel KERNEL = selectKernel();
+
+    private VectorMath() {
+    }
+
+    public static float[] add(float[] a, float[] b) {
+        float[] out = new float[a.length];
+        KERNEL.add(a, b, out);
+        return out;
+    }
+
+    public static float[] subtract(float[] a, float[] b) {
+        float[] out = new float[a.length];
+        KERNEL.subtract(a, b, out);
+        return out;
+    }
+
+    /**
+     * {@code accumulator[i] += scale * x[xOffset + i]} for every element of the accumulator.
+     */
+    public static void scaleAdd(float[] accumulator, float scale, float[] x, int xOffset) {
+        KERNEL.scaleAdd(accumulator, scale, x, xOffset);
+    }
+
+    public static double dot(float[] a, float[] b) {
+        return KERNEL.dot(a, 0, b, 0, a.length);
+    }
+
+    public static double dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        return KERNEL.dot(a, aOffset, b, bOffset, length);
+    }
+
+    public static double norm(float[] a) {
+        return KERNEL.norm(a, 0, a.length);
+    }
+
+    public static double norm(float[] a, int offset, int length) {
+        return KERNEL.norm(a, offset, length);
+    }
+
+    /**
+     * @return a unit-length copy of the vector, or the vector itself if its norm is (close to) zero.
+     */
+    public static float[] normalize(float[] v) {
+        double norm = norm(v);
+        if (norm < 1e-12) {
+            return v; // avoid divide-by-zero
+        }
+        float[] out = new float[v.length];
+        KERNEL.scaleAdd(out, (float) (1 / norm), v, 0);
+        return out;
+    }
+
+    /**
+     * @return {@code true} when the SIMD kernel is active.
+     */
+    public static boolean isVectorized() {
+        return !(KERNEL instanceof ScalarVectorKernel);
+    }
+
+    private static VectorKernel selectKernel() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                // Loaded reflectively so this class still links when the module is absent
+                return (VectorKernel) Class.forName(VectorMath.class.getPackageName() + ".SimdVectorKernel")
+                        .getDeclaredConstructor()
+                        .newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                log.warn("Vector API present but unusable, falling back to scalar math: {}", e.toString());
+            }
+        }
+        return new ScalarVectorKernel();
+    }
+}
@@ -0,0 +1,269 @@
+package infosupport.be.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streams a word list (one term per line, {@code #} starts a comment) into the {@link EmbeddingManager}.
+ * <p>
+ * The file is read lazily and embedded in batches, with at most {@code concurrency} batches in
+ * flight; the reader blocks until a slot frees up, so memory stays bounded by
+ * {@code batchSize * concurrency} terms regardless of the file size. After every batch the
+ * number of lines that are fully embedded (the contiguous prefix, since batches finish out of
+ * order) is written to a checkpoint file, and a new run resumes after that line.
+ * Resuming only saves work if the embeddings survive the restart, i.e. with the embedding cache enabled.
+ */
+@Component
+@Slf4j
+public class VocabularyLoader {
+    private static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(5);
+
+    private final EmbeddingManager embeddingManager;
+    private final int batchSize;
+    private final int concurrency;
+
+    public VocabularyLoader(EmbeddingManager embeddingManager,
+                            @Value("${embedding.vocabulary.batch-size:512}") int batchSize,
+                            @Value("${embedding.vocabulary.concurrency:4}") int concurrency) {
+        this.embeddingManager = embeddingManager;
+        this.batchSize = Math.max(1, batchSize);
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Summary of a (possibly resumed) load.
+     *
+     * @param linesRead      lines read during this run
+     * @param resumedAtLine  line the run started at, 0 for a fresh load
+     * @param elapsed        duration of this run
+     * @param termsPerSecond throughput of this run
+     */
+    public record LoadReport(long linesRead, long resumedAtLine, Duration elapsed, double termsPerSecond) {
+    }
+
+    /**
+     * Loads the word list, using {@code <wordList>.checkpoint} to resume an interrupted load.
+     */
+    public LoadReport load(Path wordList) {
+        return load(wordList, wordList.resolveSibling(wordList.getFileName() + ".checkpoint"));
+    }
+
+    public LoadReport load(Path wordList, Path checkpointFile) {
+        Checkpoint checkpoint = new Checkpoint(checkpointFile, fingerprint(wordList));
+        long startLine = checkpoint.read();
+        if (startLine > 0) {
+            log.info("Resuming vocabulary load of {} at line {}", wordList, startLine);
+        }
+
+        Progress progress = new Progress(checkpoint, startLine);
+        Semaphore slots = new Semaphore(concurrency);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        long line = startLine;
+        long start = System.nanoTime();
+
+        try (BufferedReader reader = Files.newBufferedReader(wordList, StandardCharsets.UTF_8);
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long skipped = 0; skipped < startLine && reader.readLine() != null; skipped++) {
+                // Skip lines that were embedded by a previous run
+            }
+
+            List<String> batch = new ArrayList<>(batchSize);
+            long batchStart = line;
+            String text;
+            while (failure.get() == null && (text = reader.readLine()) != null) {
+                line++;
+                String term = text.strip();
+                if (!term.isEmpty() && !term.startsWith("#")) {
+                    batch.add(term);
+                }
+                if (batch.size() == batchSize) {
+                    submit(executor, slots, progress, failure, batch, batchStart, line);
+                    batch = new ArrayList<>(batchSize);
+                    batchStart = line;
+                }
+            }
+            if (failure.get() == null) {
+                submit(executor, slots, progress, failure, batch, batchStart, line);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read word list " + wordList, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Vocabulary load interrupted at line " + progress.completedLine(), e);
+        }
+
+        if (failure.get() != null) {
+            throw new IllegalStateException("Vocabulary load failed, resume from line " + progress.completedLine()
+                    + " by running it again", failure.get());
+        }
+        checkpoint.delete();
+
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+        long linesRead = line - startLine;
+        LoadReport report = new LoadReport(linesRead, startLine, elapsed, perSecond(progress.terms(), elapsed));
+        log.info("Loaded {} lines of {} in {} s ({} terms/s)", linesRead, wordList,
+                elapsed.toSeconds(), String.format("%.0f", report.termsPerSecond()));
+        return report;
+    }
+
+    /**
+     * Waits for a free slot (backpressure on the reader), then embeds the batch asynchronously.
+     */
+    private void submit(ExecutorService executor, Semaphore slots, Progress progress,
+                        AtomicReference<RuntimeException> failure,
+                        List<String> batch, long fromLine, long toLine) throws InterruptedException {
+        slots.acquire();
+        long sequence = progress.register(toLine);
+        executor.execute(() -> {
+            try {
+                if (!batch.isEmpty()) {
+                    embeddingManager.embedNewTerms(batch);
+                }
+                progress.completed(sequence, batch.size());
+            } catch (RuntimeException e) {
+                log.warn("Embedding lines {}-{} failed: {}", fromLine + 1, toLine, e.getMessage());
+                failure.compareAndSet(null, e);
+            } finally {
+                slots.release();
+            }
+        });
+    }
+
+    private static double perSecond(long count, Duration elapsed) {
+        return count / Math.max(elapsed.toNanos() / 1e9, 1e-9);
+    }
+
+    // A checkpoint only applies to the exact file it was written for
+    private static String fingerprint(Path wordList) {
+        try {
+            return Files.size(wordList) + "-" + Files.getLastModifiedTime(wordList).toMillis();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read word list " + wordList, e);
+        }
+    }
+
+    /**
+     * Tracks finished batches and advances the checkpoint over the contiguous prefix of finished lines.
+     */
+    private static final class Progress {
+        private final Checkpoint checkpoint;
+        private final TreeMap<Long, Long> endLineBySequence = new TreeMap<>();
+        private final AtomicLong terms = new AtomicLong();
+        private final long startNanos = System.nanoTime();
+        private long nextSequence;
+        private long nextToComplete;
+        private long completedLine;
+        private long lastLogNanos = startNanos;
+
+        Progress(Checkpoint checkpoint, long startLine) {
+            this.checkpoint = checkpoint;
+            this.completedLine = startLine;
+        }
+
+        synchronized long register(long endLine) {
+            endLineBySequence.put(nextSequence, -endLine - 1); // negative: not finished yet
+            return nextSequence++;
+        }
+
+        synchronized void completed(long sequence, int batchTerms) {
+            terms.addAndGet(batchTerms);
+            endLineBySequence.computeIfPresent(sequence, (key, pending) -> -pending - 1);
+
+            boolean advanced = false;
+            Long endLine;
+            while ((endLine = endLineBySequence.get(nextToComplete)) != null && endLine >= 0) {
+                endLineBySequence.remove(nextToComplete++);
+                completedLine = endLine;
+                advanced = true;
+            }
+            if (advanced) {
+                checkpoint.write(completedLine);
+            }
+
+            long now = System.nanoTime();
+            if (now - lastLogNanos >= PROGRESS_INTERVAL.toNanos()) {
+                lastLogNanos = now;
+                log.info("Vocabulary load: {} terms embedded, line {} checkpointed, {} terms/s", terms.get(),
+                        completedLine, String.format("%.0f", perSecond(terms.get(), Duration.ofNanos(now - startNanos))));
+            }
+        }
+
+        synchronized long completedLine() {
+            return completedLine;
+        }
+
+        long terms() {
+            return terms.get();
+        }
+    }
+
+    /**
+     * Small properties file holding the word list fingerprint and the number of completed lines.
+     */
+    private record Checkpoint(Path file, String fingerprint) {
+
+        long read() {
+            if (!Files.exists(file)) {
+                return 0;
+            }
+            Properties properties = new Properties();
+            try (var in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                properties.load(in);
+            } catch (IOException e) {
+                log.warn("Ignoring unreadable checkpoint {}: {}", file, e.getMessage());
+                return 0;
+            }
+            if (!fingerprint.equals(properties.getProperty("fingerprint"))) {
+                log.info("Word list changed since checkpoint {} was written, starting over", file);
+                return 0;
+            }
+            return Long.parseLong(properties.getProperty("completedLines", "0"));
+        }
+
+        void write(long completedLines) {
+            Properties properties = new Properties();
+            properties.setProperty("fingerprint", fingerprint);
+            properties.setProperty("completedLines", Long.toString(completedLines));
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (var out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                properties.store(out, "Vocabulary load progress");
+            } catch (IOException e) {
+                log.warn("Failed to write checkpoint {}: {}", file, e.getMessage());
+                return;
+            }
+            try {
+                // Replace atomically, so an interrupted write never leaves a corrupt checkpoint
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.warn("Failed to replace checkpoint {}: {}", file, e.getMessage());
+            }
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Failed to delete checkpoint {}: {}", file, e.getMessage());
+            }
+        }
+    }
+}
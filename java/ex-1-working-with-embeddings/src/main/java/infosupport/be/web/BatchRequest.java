@@ -0,0 +1,9 @@
+package infosupport.be.web;
+
+import java.util.List;
+
+/**
+ * Body of {@code POST /api/embeddings/calculate}: the expressions to evaluate together.
+ */
+public record BatchRequest(List<String> expressions) {
+}
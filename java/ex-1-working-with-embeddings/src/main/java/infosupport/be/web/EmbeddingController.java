@@ -0,0 +1,186 @@
+package infosupport.be.web;
+
+import infosupport.be.util.EmbeddingCalculator;
+import infosupport.be.util.EmbeddingManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.WebRequest;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Serves embedding arithmetic and nearest-term lookups over HTTP, when {@code embedding.server.enabled=true}.
+ * <ul>
+ *     <li>{@code GET /api/embeddings/calculate?expression=king - (man - woman)}</li>
+ *     <li>{@code POST /api/embeddings/calculate} with {@code {"expressions": ["...", "..."]}}, evaluated as one batch</li>
+ *     <li>{@code GET /api/embeddings/closest?term=king&k=5}</li>
+ *     <li>{@code GET /api/embeddings/stats}: the store's hit rate and evictions, and the index's own stats</li>
+ * </ul>
+ * Requests run on virtual threads ({@code spring.threads.virtual.enabled}), so a request waiting for the
+ * embedding model holds no platform thread. Because virtual threads are unbounded, at most
+ * {@code max-concurrent-requests} requests compute at once; the others wait up to {@code queue-timeout-ms}
+ * and are then rejected with 503, instead of piling up behind the model and the index.
+ * Every response carries a {@code Server-Timing} header with the time spent waiting and computing, rejected
+ * and invalid requests included.
+ */
+@RestController
+@RequestMapping("/api/embeddings")
+@ConditionalOnProperty(name = "embedding.server.enabled", havingValue = "true")
+@Slf4j
+public class EmbeddingController {
+    private static final String SERVER_TIMING = "Server-Timing";
+
+    private final EmbeddingCalculator embeddingCalculator;
+    private final EmbeddingManager embeddingManager;
+    private final Semaphore permits;
+    private final long queueTimeoutMillis;
+    private final int maxBatchSize;
+    private final int maxK;
+
+    public EmbeddingController(EmbeddingCalculator embeddingCalculator, EmbeddingManager embeddingManager,
+                               @Value("${embedding.server.max-concurrent-requests:64}") int maxConcurrentRequests,
+                               @Value("${embedding.server.queue-timeout-ms:100}") long queueTimeoutMillis,
+                               @Value("${embedding.server.max-batch-size:256}") int maxBatchSize,
+                               @Value("${embedding.server.max-k:100}") int maxK) {
+        this.embeddingCalculator = embeddingCalculator;
+        this.embeddingManager = embeddingManager;
+        this.permits = new Semaphore(maxConcurrentRequests, true);
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.maxK = maxK;
+    }
+
+    @GetMapping("/calculate")
+    public ResponseEntity<List<SimilarTerm>> calculate(@RequestParam String expression) {
+        return serve(() -> SimilarTerm.of(embeddingCalculator.calculate(expression)));
+    }
+
+    @PostMapping("/calculate")
+    public ResponseEntity<List<List<SimilarTerm>>> calculateAll(@RequestBody BatchRequest request) {
+        List<String> expressions = request.expressions() == null ? List.of() : request.expressions();
+        return serve(() -> {
+            if (expressions.size() > maxBatchSize) {
+                throw new IllegalArgumentException("At most " + maxBatchSize + " expressions per batch, got " + expressions.size());
+            }
+        }, () -> embeddingCalculator.calculateAll(expressions).stream().map(SimilarTerm::of).toList());
+    }
+
+    @GetMapping("/closest")
+    public ResponseEntity<List<SimilarTerm>> closest(@RequestParam String term, @RequestParam(defaultValue = "5") int k) {
+        return serve(() -> {
+            if (k < 1 || k > maxK) {
+                throw new IllegalArgumentException("k must be between 1 and " + maxK + ", got " + k);
+            }
+        }, () -> SimilarTerm.of(embeddingManager.findTopKClosest(term, k)));
+    }
+
+    @GetMapping("/stats")
+    public EmbeddingStats stats() {
+        return new EmbeddingStats(embeddingManager.storeStats(), embeddingManager.indexStats());
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<Map<String, String>> badRequest(IllegalArgumentException e, WebRequest request) {
+        return error(ResponseEntity.badRequest(), e, request);
+    }
+
+    @ExceptionHandler(OverloadedException.class)
+    public ResponseEntity<Map<String, String>> overloaded(OverloadedException e, WebRequest request) {
+        return error(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header("Retry-After", "1"), e, request);
+    }
+
+    private static ResponseEntity<Map<String, String>> error(ResponseEntity.BodyBuilder response, RuntimeException e,
+                                                             WebRequest request) {
+        Object timing = request.getAttribute(SERVER_TIMING, RequestAttributes.SCOPE_REQUEST);
+        if (timing != null) {
+            response.header(SERVER_TIMING, (String) timing);
+        }
+        return response.body(Map.of("error", e.getMessage()));
+    }
+
+    private <T> ResponseEntity<T> serve(Supplier<T> handler) {
+        return serve(() -> {
+        }, handler);
+    }
+
+    /**
+     * Validates the request, runs the handler under a permit and reports the wait and compute time in a
+     * {@code Server-Timing} header. When the request fails, the timing up to the failure is left in a request
+     * attribute for the exception handlers.
+     */
+    private <T> ResponseEntity<T> serve(Runnable validation, Supplier<T> handler) {
+        Timing timing = new Timing();
+        try {
+            validation.run();
+            timing.queued = System.nanoTime();
+            try {
+                if (!permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new OverloadedException("Too many concurrent requests, retry later");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OverloadedException("Interrupted while waiting for a permit");
+            }
+            timing.acquired = System.nanoTime();
+            T body;
+            try {
+                body = handler.get();
+            } finally {
+                permits.release();
+            }
+            return ResponseEntity.ok().header(SERVER_TIMING, timing.header()).body(body);
+        } catch (RuntimeException e) {
+            RequestContextHolder.currentRequestAttributes()
+                    .setAttribute(SERVER_TIMING, timing.header(), RequestAttributes.SCOPE_REQUEST);
+            throw e;
+        }
+    }
+
+    /**
+     * The phases a request went through; a phase it never reached is left out of the header.
+     */
+    private static final class Timing {
+        private final long start = System.nanoTime();
+        private long queued = -1;
+        private long acquired = -1;
+
+        String header() {
+            long end = System.nanoTime();
+            StringBuilder header = new StringBuilder();
+            if (queued >= 0) {
+                header.append(String.format(Locale.ROOT, "queue;dur=%.3f, ", millis((acquired >= 0 ? acquired : end) - queued)));
+            }
+            if (acquired >= 0) {
+                header.append(String.format(Locale.ROOT, "compute;dur=%.3f, ", millis(end - acquired)));
+            }
+            return header.append(String.format(Locale.ROOT, "total;dur=%.3f", millis(end - start))).toString();
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1_000_000.0;
+        }
+    }
+
+    private static final class OverloadedException extends RuntimeException {
+        OverloadedException(String message) {
+            super(message);
+        }
+    }
+}
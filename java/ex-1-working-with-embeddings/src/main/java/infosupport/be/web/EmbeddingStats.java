@@ -0,0 +1,13 @@
+package infosupport.be.web;
+
+import infosupport.be.index.IndexStats;
+import infosupport.be.util.EmbeddingStoreStats;
+
+/**
+ * The response of {@code GET /api/embeddings/stats}.
+ *
+ * @param store hit rate, size and evictions of the embedding store
+ * @param index runtime statistics of the vector index, or {@code null} if it keeps none
+ */
+public record EmbeddingStats(EmbeddingStoreStats store, IndexStats index) {
+}
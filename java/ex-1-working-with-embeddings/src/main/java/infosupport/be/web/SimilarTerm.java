@@ -0,0 +1,14 @@
+package infosupport.be.web;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One result of a nearest-terms query, as returned by {@link EmbeddingController}.
+ */
+public record SimilarTerm(String term, double similarity) {
+
+    static List<SimilarTerm> of(List<Map.Entry<String, Double>> results) {
+        return results.stream().map(entry -> new SimilarTerm(entry.getKey(), entry.getValue())).toList();
+    }
+}
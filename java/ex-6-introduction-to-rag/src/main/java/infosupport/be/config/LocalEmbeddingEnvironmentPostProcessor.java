@@ -0,0 +1,30 @@
+package infosupport.be.config;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.env.EnvironmentPostProcessor;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.MapPropertySource;
+
+import java.util.Map;
+
+/**
+ * With {@code embedding.local.enabled=true}, switches off the embedding models of the Spring AI starters, so
+ * only {@link LocalEmbeddingModelConfig}'s model is created. A {@code @Primary} bean alone is not enough: the
+ * transformers auto-configuration would still create its model and download the ONNX file at startup.
+ * The OpenAI chat model stays, the assistant still needs it.
+ * <p>
+ * Registered in {@code META-INF/spring.factories}.
+ */
+public class LocalEmbeddingEnvironmentPostProcessor implements EnvironmentPostProcessor {
+
+    @Override
+    public void postProcessEnvironment(ConfigurableEnvironment environment, SpringApplication application) {
+        if (!environment.getProperty("embedding.local.enabled", Boolean.class, false)) {
+            return;
+        }
+        // First, so it wins over spring.ai.openai.embedding.enabled=true in application.properties
+        environment.getPropertySources().addFirst(new MapPropertySource("localEmbedding", Map.of(
+                "spring.ai.embedding.transformer.enabled", "false",
+                "spring.ai.openai.embedding.enabled", "false")));
+    }
+}
@@ -0,0 +1,293 @@
+package infosupport.be.ingestion;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.transformer.splitter.TextSplitter;
+import org.springframework.ai.vectorstore.VectorStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a vector store in sync with the files in a directory, embedding only what changed.
+ * <p>
+ * Every chunk gets an id derived from its file and its text ({@link UUID#nameUUIDFromBytes}), so an
+ * unchanged chunk keeps its id across edits and restarts of the sync. When a file changes it is split
+ * again: chunks with an id the store does not hold yet are embedded and added through the
+ * {@link IngestionPipeline}, and chunks that are gone from the file are deleted from the store. Editing one
+ * recipe in a file of thousands therefore costs a single embedding call. New chunks are added before
+ * vanished ones are deleted, so queries keep finding the file's content while it is updated.
+ * <p>
+ * Changes are picked up with a {@link WatchService} (subdirectories included) and handled on one
+ * background thread, after the directory has been quiet for a short while, so an editor saving a
+ * file in several writes triggers one sync. A file that exists but cannot be read keeps its chunks in
+ * the store and is read again after {@link #RETRY_DELAY}; only a file that no longer exists loses them.
+ */
+@Slf4j
+public class CorpusWatcher implements AutoCloseable {
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(10);
+
+    private final Path directory;
+    private final PathMatcher matcher;
+    private final TextSplitter splitter;
+    private final IngestionPipeline pipeline;
+    private final VectorStore vectorStore;
+    private final Duration quietPeriod;
+    // Ids of the chunks in the store, by file; only changed by the thread that syncs
+    private final Map<Path, Set<String>> chunkIds = new HashMap<>();
+    // Files whose last read failed, read again by the next sync; only changed by the thread that syncs
+    private final Set<Path> retry = new LinkedHashSet<>();
+    private WatchService watchService;
+    private Thread thread;
+
+    /**
+     * @param pattern     {@link java.nio.file.FileSystem#getPathMatcher} pattern for the files to ingest,
+     *                    matched against the path relative to the directory, e.g. {@code glob:**.txt}
+     * @param quietPeriod how long the directory must be unchanged before a sync starts
+     */
+    public CorpusWatcher(Path directory, String pattern, TextSplitter splitter, IngestionPipeline pipeline,
+                         VectorStore vectorStore, Duration quietPeriod) {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.matcher = FileSystems.getDefault().getPathMatcher(pattern);
+        this.splitter = splitter;
+        this.pipeline = pipeline;
+        this.vectorStore = vectorStore;
+        this.quietPeriod = quietPeriod;
+    }
+
+    /**
+     * Ingests every matching file, then keeps watching the directory in the background.
+     */
+    public synchronized void start() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            registerAll(directory);
+            sync(listFiles());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to watch corpus directory " + directory, e);
+        }
+        thread = new Thread(this::watch, "corpus-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warn("Failed to close the watch service of {}: {}", directory, e.getMessage());
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                Set<Path> changed = new LinkedHashSet<>();
+                // Without events, files that failed to read are still retried after a while
+                WatchKey first = retry.isEmpty() ? watchService.take()
+                        : watchService.poll(RETRY_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+                boolean rescan = first != null && collect(first, changed);
+                // Keep collecting until nothing changes for the quiet period
+                for (WatchKey key = watchService.poll(quietPeriod.toMillis(), TimeUnit.MILLISECONDS); key != null;
+                     key = watchService.poll(quietPeriod.toMillis(), TimeUnit.MILLISECONDS)) {
+                    rescan |= collect(key, changed);
+                }
+                try {
+                    if (rescan) {
+                        // Events were lost: compare the whole directory
+                        Set<Path> files = new LinkedHashSet<>(listFiles());
+                        files.addAll(chunkIds.keySet());
+                        sync(files);
+                    } else {
+                        sync(changed);
+                    }
+                } catch (RuntimeException | IOException e) {
+                    log.error("Failed to sync corpus directory {}, retrying in {} s", directory, RETRY_DELAY.toSeconds(), e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Stopped watching {}", directory);
+        }
+    }
+
+    /**
+     * Adds the files behind the key's events to {@code changed}, and registers new subdirectories.
+     *
+     * @return true when events were lost and the whole directory must be compared
+     */
+    private boolean collect(WatchKey key, Set<Path> changed) {
+        boolean overflow = false;
+        Path parent = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            Path path = parent.resolve((Path) event.context());
+            if (Files.isDirectory(path)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    try {
+                        registerAll(path);
+                        // Files may have been written before the directory was registered
+                        overflow = true;
+                    } catch (IOException e) {
+                        log.warn("Failed to watch {}: {}", path, e.getMessage());
+                    }
+                }
+            } else if (matches(path) || chunkIds.containsKey(path)) {
+                changed.add(path);
+            } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                // A deleted directory takes its files along
+                chunkIds.keySet().stream().filter(file -> file.startsWith(path)).forEach(changed::add);
+            }
+        }
+        key.reset();
+        return overflow;
+    }
+
+    /**
+     * Brings the store in line with the current content of the given files, and of the files that failed
+     * to read before; missing files are removed.
+     */
+    private void sync(Set<Path> changed) {
+        Set<Path> files = new LinkedHashSet<>(changed);
+        files.addAll(retry);
+        retry.clear();
+        if (files.isEmpty()) {
+            return;
+        }
+        try {
+            sync(files, System.nanoTime());
+        } catch (RuntimeException e) {
+            // Syncing a file twice is harmless, dropping its change is not
+            retry.addAll(files);
+            throw e;
+        }
+    }
+
+    private void sync(Set<Path> files, long start) {
+        Map<Path, Set<String>> currentIds = new ConcurrentHashMap<>();
+        Set<Path> failed = ConcurrentHashMap.newKeySet();
+        Stream<Document> documents = files.stream().flatMap(path -> read(path, failed).stream());
+        IngestionReport report = pipeline.ingest(documents, document -> chunk(document, currentIds), batch -> {
+        });
+
+        int deleted = 0;
+        for (Path file : files) {
+            if (failed.contains(file)) {
+                // Keep the chunks of the last successful read until the file can be read again
+                retry.add(file);
+                continue;
+            }
+            Set<String> previous = chunkIds.getOrDefault(file, Set.of());
+            Set<String> current = currentIds.getOrDefault(file, Set.of());
+            List<String> vanished = previous.stream().filter(id -> !current.contains(id)).toList();
+            if (!vanished.isEmpty()) {
+                vectorStore.delete(vanished);
+                deleted += vanished.size();
+            }
+            if (current.isEmpty()) {
+                chunkIds.remove(file);
+            } else {
+                chunkIds.put(file, current);
+            }
+        }
+        long added = report.stages().get(report.stages().size() - 1).items();
+        log.info("Synced {} files of {}: {} chunks embedded, {} deleted, {} in the store, in {} ms",
+                files.size(), directory, added, deleted, chunkIds.values().stream().mapToInt(Set::size).sum(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Splits the document and returns only the chunks the store does not hold yet. Runs on the
+     * pipeline's split stage, and records the ids of all current chunks of the file.
+     */
+    private List<Document> chunk(Document document, Map<Path, Set<String>> currentIds) {
+        String source = (String) document.getMetadata().get("source");
+        Path file = directory.resolve(source);
+        Set<String> known = chunkIds.getOrDefault(file, Set.of());
+        Set<String> current = currentIds.computeIfAbsent(file, ignored -> new HashSet<>());
+        List<Document> newChunks = new ArrayList<>();
+        for (Document chunk : splitter.apply(List.of(document))) {
+            String id = UUID.nameUUIDFromBytes((source + '\0' + chunk.getText()).getBytes(StandardCharsets.UTF_8)).toString();
+            // The same text twice in a file is stored once
+            if (current.add(id) && !known.contains(id)) {
+                newChunks.add(new Document(id, chunk.getText(), chunk.getMetadata()));
+            }
+        }
+        return newChunks;
+    }
+
+    /**
+     * @param failed receives the file if it exists but could not be read
+     * @return the file's text, or empty if it is gone, no longer matches or failed to read
+     */
+    private Optional<Document> read(Path file, Set<Path> failed) {
+        if (!matches(file) || Files.notExists(file) || Files.isDirectory(file)) {
+            return Optional.empty();
+        }
+        try {
+            String text = Files.readString(file, StandardCharsets.UTF_8);
+            return Optional.of(new Document(text, Map.of("source", directory.relativize(file).toString())));
+        } catch (IOException e) {
+            if (Files.notExists(file)) {
+                // Deleted while it was read
+                return Optional.empty();
+            }
+            // Locked, still being written or not readable for now
+            log.warn("Failed to read {}, retrying in {} s: {}", file, RETRY_DELAY.toSeconds(), e.getMessage());
+            failed.add(file);
+            return Optional.empty();
+        }
+    }
+
+    private Set<Path> listFiles() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(Files::isRegularFile).filter(this::matches)
+                    .collect(LinkedHashSet::new, Set::add, Set::addAll);
+        }
+    }
+
+    private boolean matches(Path file) {
+        return file.startsWith(directory) && matcher.matches(directory.relativize(file));
+    }
+
+    private void registerAll(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        }
+    }
+}
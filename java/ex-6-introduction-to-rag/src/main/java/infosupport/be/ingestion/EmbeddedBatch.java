@@ -0,0 +1,13 @@
+package infosupport.be.ingestion;
+
+import org.springframework.ai.document.Document;
+
+import java.util.List;
+
+/**
+ * Chunks and their vectors, as written to the vector store by the {@link IngestionPipeline}.
+ *
+ * @param vectors the vector of each document, in document order
+ */
+public record EmbeddedBatch(List<Document> documents, List<float[]> vectors) {
+}
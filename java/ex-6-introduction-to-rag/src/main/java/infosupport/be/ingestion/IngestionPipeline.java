@@ -0,0 +1,278 @@
+package infosupport.be.ingestion;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.transformer.splitter.TextSplitter;
+import org.springframework.ai.vectorstore.VectorStore;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Ingests documents into a vector store in four stages that run concurrently:
+ * <pre>
+ * read ──▶ [documents] ──▶ split ──▶ [chunks] ──▶ embed × workers ──▶ [batches] ──▶ write
+ * </pre>
+ * The queues in between are bounded, so a slow stage holds back the stages before it instead of letting
+ * the whole corpus pile up in memory. Embedding is usually the slow stage, so it runs on a pool of workers,
+ * each embedding up to {@code batchSize} chunks per model call; the vectors are handed to the vector store
+ * through the {@link PrecomputedEmbeddingModel} it was built with, so writing does not embed them again.
+ * <p>
+ * The embedding model is called from several threads at once. The ONNX and remote models are thread-safe.
+ * If one stage fails, the others are interrupted and {@link #ingest} throws.
+ */
+@Slf4j
+public class IngestionPipeline {
+    private static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(5);
+
+    private final PrecomputedEmbeddingModel embeddingModel;
+    private final VectorStore vectorStore;
+    private final int workers;
+    private final int batchSize;
+    private final int queueCapacity;
+
+    /**
+     * @param embeddingModel the model the vector store was built with
+     * @param workers        embedding threads, 0 means one per core
+     * @param batchSize      chunks per embedding call
+     * @param queueCapacity  capacity of the queues between the stages, in documents or chunks
+     */
+    public IngestionPipeline(PrecomputedEmbeddingModel embeddingModel, VectorStore vectorStore,
+                             int workers, int batchSize, int queueCapacity) {
+        if (batchSize < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Batch size and queue capacity must be at least 1");
+        }
+        this.embeddingModel = embeddingModel;
+        this.vectorStore = vectorStore;
+        this.workers = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        this.batchSize = batchSize;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Splits, embeds and writes the documents, and blocks until all chunks are in the vector store.
+     * The stream is consumed (and closed) on the read stage's thread, so a lazy stream overlaps
+     * reading with the other stages.
+     */
+    public IngestionReport ingest(Stream<Document> documents, TextSplitter splitter) {
+        return ingest(documents, splitter, batch -> {
+        });
+    }
+
+    /**
+     * Like {@link #ingest(Stream, TextSplitter)}, and hands every batch to {@code onWritten} once it is
+     * in the vector store, on the write stage's thread.
+     */
+    public IngestionReport ingest(Stream<Document> documents, TextSplitter splitter, Consumer<EmbeddedBatch> onWritten) {
+        return ingest(documents, document -> splitter.apply(List.of(document)), onWritten);
+    }
+
+    /**
+     * Like {@link #ingest(Stream, TextSplitter, Consumer)}, with a function that turns a document into
+     * the chunks to embed; it runs on the split stage's thread, and may leave out chunks that need no embedding.
+     */
+    public IngestionReport ingest(Stream<Document> documents, Function<Document, List<Document>> chunker,
+                                  Consumer<EmbeddedBatch> onWritten) {
+        return new Run(documents, chunker, onWritten).execute();
+    }
+
+    /**
+     * Queues and counters of a single {@link #ingest} call.
+     */
+    private final class Run {
+        // Marks the end of the input in a document queue; compared by identity
+        private final Document endOfDocuments = new Document("end of documents");
+        private final EmbeddedBatch endOfBatches = new EmbeddedBatch(List.of(), List.of());
+
+        private final Stream<Document> documents;
+        private final Function<Document, List<Document>> chunker;
+        private final Consumer<EmbeddedBatch> onWritten;
+        private final BlockingQueue<Document> documentQueue = new ArrayBlockingQueue<>(queueCapacity);
+        private final BlockingQueue<Document> chunkQueue = new ArrayBlockingQueue<>(queueCapacity);
+        private final BlockingQueue<EmbeddedBatch> batchQueue =
+                new ArrayBlockingQueue<>(Math.max(2, queueCapacity / batchSize));
+        private final StageCounters read = new StageCounters("read", 1, 0);
+        private final StageCounters split = new StageCounters("split", 1, documentQueue.remainingCapacity());
+        private final StageCounters embed = new StageCounters("embed", workers, chunkQueue.remainingCapacity());
+        private final StageCounters write = new StageCounters("write", 1, batchQueue.remainingCapacity());
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private ExecutorService executor;
+
+        Run(Stream<Document> documents, Function<Document, List<Document>> chunker, Consumer<EmbeddedBatch> onWritten) {
+            this.documents = documents;
+            this.chunker = chunker;
+            this.onWritten = onWritten;
+        }
+
+        IngestionReport execute() {
+            long start = System.nanoTime();
+            AtomicInteger threadNumber = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(workers + 3, task -> {
+                Thread thread = new Thread(task, "ingestion-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            submit(read, this::read);
+            submit(split, this::split);
+            for (int i = 0; i < workers; i++) {
+                submit(embed, this::embed);
+            }
+            submit(write, this::write);
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(PROGRESS_INTERVAL.toMillis(), TimeUnit.MILLISECONDS)) {
+                    log.info("Ingesting: {} documents read, {} chunks split, {} embedded, {} written; queued {} / {} / {}",
+                            read.items.get(), split.items.get(), embed.items.get(), write.items.get(),
+                            documentQueue.size(), chunkQueue.size(), batchQueue.size());
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while ingesting", e);
+            }
+            if (failure.get() != null) {
+                throw new IllegalStateException("Ingestion failed: " + failure.get().getMessage(), failure.get());
+            }
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+            return new IngestionReport(elapsed, List.of(read.toStage(), split.toStage(), embed.toStage(), write.toStage()));
+        }
+
+        private void read() throws InterruptedException {
+            try (documents) {
+                long last = System.nanoTime();
+                for (Document document : (Iterable<Document>) documents::iterator) {
+                    long produced = System.nanoTime();
+                    read.busyNanos.addAndGet(produced - last);
+                    documentQueue.put(document);
+                    read.items.incrementAndGet();
+                    last = System.nanoTime();
+                }
+                read.busyNanos.addAndGet(System.nanoTime() - last);
+            }
+            documentQueue.put(endOfDocuments);
+        }
+
+        private void split() throws InterruptedException {
+            for (Document document = split.take(documentQueue); document != endOfDocuments; document = split.take(documentQueue)) {
+                long start = System.nanoTime();
+                List<Document> chunks = chunker.apply(document);
+                split.busyNanos.addAndGet(System.nanoTime() - start);
+                for (Document chunk : chunks) {
+                    chunkQueue.put(chunk);
+                }
+                split.items.addAndGet(chunks.size());
+            }
+            // One end marker per embedding worker
+            for (int i = 0; i < workers; i++) {
+                chunkQueue.put(endOfDocuments);
+            }
+        }
+
+        private void embed() throws InterruptedException {
+            int ends = 0;
+            while (ends == 0) {
+                List<Document> batch = new ArrayList<>(batchSize);
+                batch.add(embed.take(chunkQueue));
+                chunkQueue.drainTo(batch, batchSize - 1);
+                ends = (int) batch.stream().filter(chunk -> chunk == endOfDocuments).count();
+                batch.removeIf(chunk -> chunk == endOfDocuments);
+                if (!batch.isEmpty()) {
+                    long start = System.nanoTime();
+                    List<float[]> vectors = embeddingModel.precompute(batch);
+                    embed.busyNanos.addAndGet(System.nanoTime() - start);
+                    embed.items.addAndGet(batch.size());
+                    batchQueue.put(new EmbeddedBatch(batch, vectors));
+                }
+            }
+            // The batch may have held end markers meant for other workers: hand those back
+            for (int i = 1; i < ends; i++) {
+                chunkQueue.put(endOfDocuments);
+            }
+            batchQueue.put(endOfBatches);
+        }
+
+        private void write() throws InterruptedException {
+            int finishedWorkers = 0;
+            while (finishedWorkers < workers) {
+                EmbeddedBatch batch = write.take(batchQueue);
+                if (batch == endOfBatches) {
+                    finishedWorkers++;
+                    continue;
+                }
+                long start = System.nanoTime();
+                vectorStore.add(batch.documents());
+                onWritten.accept(batch);
+                write.busyNanos.addAndGet(System.nanoTime() - start);
+                write.items.addAndGet(batch.documents().size());
+            }
+        }
+
+        private void submit(StageCounters stage, Task task) {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    // Interrupts are the other stages being stopped after the first failure
+                    if (failure.compareAndSet(null, e)) {
+                        log.error("Ingestion stage '{}' failed", stage.name, e);
+                        executor.shutdownNow();
+                    }
+                }
+            });
+        }
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run() throws InterruptedException;
+    }
+
+    /**
+     * Items, busy time and input queue depth of one stage, updated by its workers.
+     */
+    private static final class StageCounters {
+        private final String name;
+        private final int workers;
+        private final int queueCapacity;
+        private final AtomicLong items = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicLong takes = new AtomicLong();
+        private final AtomicLong depthSum = new AtomicLong();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+
+        /**
+         * @param queueCapacity capacity of the input queue, 0 for the first stage
+         */
+        StageCounters(String name, int workers, int queueCapacity) {
+            this.name = name;
+            this.workers = workers;
+            this.queueCapacity = queueCapacity;
+        }
+
+        <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+            int depth = queue.size();
+            takes.incrementAndGet();
+            depthSum.addAndGet(depth);
+            maxDepth.accumulateAndGet(depth, Math::max);
+            return queue.take();
+        }
+
+        IngestionReport.Stage toStage() {
+            long taken = takes.get();
+            return new IngestionReport.Stage(name, workers, items.get(), busyNanos.get(),
+                    taken == 0 ? 0 : (double) depthSum.get() / taken, maxDepth.get(), queueCapacity);
+        }
+    }
+}
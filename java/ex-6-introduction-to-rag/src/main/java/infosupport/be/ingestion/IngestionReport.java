@@ -0,0 +1,52 @@
+package infosupport.be.ingestion;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Throughput and queue depth of every stage of an {@link IngestionPipeline} run.
+ *
+ * @param elapsed wall-clock time of the whole run
+ * @param stages  the stages, in pipeline order
+ */
+public record IngestionReport(Duration elapsed, List<Stage> stages) {
+
+    /**
+     * @param name              stage name
+     * @param workers           threads running the stage
+     * @param items             items the stage produced: documents, chunks or written chunks
+     * @param busyNanos         time the workers spent working rather than waiting on a queue, summed over the workers
+     * @param averageQueueDepth items waiting in the stage's input queue, on average, when it took one; 0 for the first stage
+     * @param maxQueueDepth     most items seen waiting in the stage's input queue
+     * @param queueCapacity     capacity of the stage's input queue, 0 for the first stage
+     */
+    public record Stage(String name, int workers, long items, long busyNanos,
+                        double averageQueueDepth, int maxQueueDepth, int queueCapacity) {
+
+        /**
+         * @return the share of the run the workers were busy, 1 when every worker worked all the time
+         */
+        public double utilization(Duration elapsed) {
+            long available = elapsed.toNanos() * workers;
+            return available == 0 ? 0 : (double) busyNanos / available;
+        }
+    }
+
+    /**
+     * Renders the report as a table, e.g. for the log. A stage that is busy close to 100% while the
+     * queue before it is full is the bottleneck.
+     */
+    public String format() {
+        double seconds = elapsed.toNanos() / 1e9;
+        StringBuilder report = new StringBuilder(String.format("Ingestion took %.2f s%n", seconds));
+        report.append(String.format("%-6s %7s %8s %10s %6s %18s%n", "stage", "workers", "items", "items/s", "busy", "queue avg / max"));
+        for (Stage stage : stages) {
+            report.append(String.format("%-6s %7d %8d %10.1f %5.0f%% %18s%n",
+                    stage.name(), stage.workers(), stage.items(), seconds == 0 ? 0 : stage.items() / seconds,
+                    100 * stage.utilization(elapsed),
+                    stage.queueCapacity() == 0 ? "-" : String.format("%.1f / %d of %d",
+                            stage.averageQueueDepth(), stage.maxQueueDepth(), stage.queueCapacity())));
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package infosupport.be.ingestion;
+
+import infosupport.be.util.CustomTextSplitter;
+import org.springframework.ai.document.Document;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Reads a text file as a lazy stream of chunk documents, for corpora too large to load at once.
+ * <p>
+ * Where {@link org.springframework.ai.reader.TextReader} reads the whole file into one string that is then
+ * split into copies, this reader memory-maps the file, decodes it block by block and lets the
+ * {@link CustomTextSplitter} cut chunks as the text goes by. The file's pages live in the OS page cache
+ * rather than on the heap, and the heap only holds the chunk being read plus the chunks not yet taken from
+ * the stream, so reading takes memory in proportion to the chunk size, not the corpus size. The documents
+ * are the chunks already, with the same {@code source} and {@code charset} metadata as the TextReader gives.
+ * <p>
+ * Files of any size are mapped in regions of at most {@value #REGION_BYTES} bytes. Close the stream to
+ * close the file; {@link IngestionPipeline} does so when it has read the stream.
+ */
+public class MappedTextReader {
+    private static final int REGION_BYTES = 256 * 1024 * 1024;
+
+    private final Path file;
+    private final CustomTextSplitter splitter;
+    private final Charset charset;
+    private final Map<String, Object> customMetadata = new HashMap<>();
+
+    public MappedTextReader(Path file, CustomTextSplitter splitter) {
+        this(file, splitter, StandardCharsets.UTF_8);
+    }
+
+    public MappedTextReader(Path file, CustomTextSplitter splitter, Charset charset) {
+        this.file = file;
+        this.splitter = splitter;
+        this.charset = charset;
+    }
+
+    /**
+     * @return metadata added to every document, next to {@code source} and {@code charset}
+     */
+    public Map<String, Object> getCustomMetadata() {
+        return customMetadata;
+    }
+
+    /**
+     * Opens the file; chunks are read as the stream is consumed.
+     */
+    public Stream<Document> stream() {
+        Map<String, Object> metadata = new HashMap<>(customMetadata);
+        metadata.put("charset", charset.name());
+        metadata.put("source", file.getFileName().toString());
+        try {
+            return splitter.split(new MappedReader(FileChannel.open(file, StandardOpenOption.READ), charset))
+                    .map(chunk -> new Document(chunk, new HashMap<>(metadata)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open " + file, e);
+        }
+    }
+
+    /**
+     * Decodes a file channel through read-only mappings, one region at a time. A character that straddles
+     * two regions is decoded from the next mapping, which starts at the first byte not yet decoded.
+     */
+    private static final class MappedReader extends Reader {
+        private final FileChannel channel;
+        private final CharsetDecoder decoder;
+        private final long size;
+        private ByteBuffer region = ByteBuffer.allocate(0);
+        private long regionStart;
+        private boolean flushed;
+
+        MappedReader(FileChannel channel, Charset charset) throws IOException {
+            this.channel = channel;
+            // Malformed input becomes U+FFFD, as with new String(bytes, charset)
+            this.decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.size = channel.size();
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+            while (out.position() == offset && !flushed) {
+                boolean last = regionStart + region.limit() >= size;
+                CoderResult result = decoder.decode(region, out, last);
+                if (result.isUnderflow()) {
+                    if (last) {
+                        decoder.flush(out);
+                        flushed = true;
+                    } else {
+                        // Map the next region from the first byte that has not been decoded
+                        regionStart = regionStart + region.position();
+                        region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart,
+                                Math.min(REGION_BYTES, size - regionStart));
+                    }
+                } else if (out.position() == offset) {
+                    // Overflow without any output: a surrogate pair does not fit in one char
+                    throw new IOException("Read buffer too small to decode a character");
+                }
+            }
+            int read = out.position() - offset;
+            return read == 0 && flushed ? -1 : read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package infosupport.be.ingestion;
+
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.MetadataMode;
+import org.springframework.ai.embedding.BatchingStrategy;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingOptions;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Embedding model for a vector store that is fed by the {@link IngestionPipeline}. The pipeline embeds
+ * chunks in batches on its own worker pool and hands the vectors over here, keyed by document id; when
+ * the vector store then asks for the embedding of such a document, the vector is returned instead of
+ * embedding the document a second time. Every vector is handed out once. Other requests, such as the
+ * queries of a similarity search, go to the wrapped model.
+ * <p>
+ * A model's own {@link EmbeddingModel#embed(Document)} may embed more than the text: OpenAI, for one,
+ * formats the document with its metadata. Batches are therefore embedded from the same content the
+ * wrapped model would embed for a single document, so a vector does not depend on the path it took.
+ */
+public class PrecomputedEmbeddingModel implements EmbeddingModel {
+    private final EmbeddingModel delegate;
+    private final Function<Document, String> content;
+    private final Map<String, float[]> precomputed = new ConcurrentHashMap<>();
+
+    /**
+     * Embeds batches of documents from their text.
+     */
+    public PrecomputedEmbeddingModel(EmbeddingModel delegate) {
+        this(delegate, Document::getText);
+    }
+
+    /**
+     * @param content the text the wrapped model embeds for a document, e.g. its
+     *                {@link Document#getFormattedContent(MetadataMode) formatted content}
+     */
+    public PrecomputedEmbeddingModel(EmbeddingModel delegate, Function<Document, String> content) {
+        this.delegate = delegate;
+        this.content = content;
+    }
+
+    /**
+     * Embeds the content of the documents in one call to the wrapped model and keeps the vectors
+     * until the vector store asks for them.
+     *
+     * @return the vectors, in document order
+     */
+    public List<float[]> precompute(List<Document> documents) {
+        List<float[]> vectors = delegate.embed(documents.stream().map(content).toList());
+        for (int i = 0; i < documents.size(); i++) {
+            provide(documents.get(i).getId(), vectors.get(i));
+        }
+        return vectors;
+    }
+
+    /**
+     * Keeps a vector that was embedded earlier, e.g. loaded from a snapshot, until the vector store asks for it.
+     */
+    public void provide(String documentId, float[] vector) {
+        precomputed.put(documentId, vector);
+    }
+
+    /**
+     * @return the number of vectors that were precomputed but not handed out yet
+     */
+    public int pending() {
+        return precomputed.size();
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        float[] vector = precomputed.remove(document.getId());
+        return vector != null ? vector : delegate.embed(document);
+    }
+
+    @Override
+    public List<float[]> embed(List<Document> documents, EmbeddingOptions options, BatchingStrategy batchingStrategy) {
+        List<float[]> vectors = new ArrayList<>(documents.size());
+        List<Document> missing = new ArrayList<>();
+        for (Document document : documents) {
+            float[] vector = precomputed.remove(document.getId());
+            vectors.add(vector);
+            if (vector == null) {
+                missing.add(document);
+            }
+        }
+        if (!missing.isEmpty()) {
+            List<float[]> vectorsOfMissing = new ArrayList<>(missing.size());
+            for (List<Document> batch : batchingStrategy.batch(missing)) {
+                EmbeddingResponse response = delegate.call(new EmbeddingRequest(batch.stream().map(content).toList(), options));
+                response.getResults().forEach(result -> vectorsOfMissing.add(result.getOutput()));
+            }
+            var embedded = vectorsOfMissing.iterator();
+            for (int i = 0; i < vectors.size(); i++) {
+                if (vectors.get(i) == null) {
+                    vectors.set(i, embedded.next());
+                }
+            }
+        }
+        return vectors;
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        return delegate.call(request);
+    }
+
+    @Override
+    public int dimensions() {
+        return delegate.dimensions();
+    }
+}
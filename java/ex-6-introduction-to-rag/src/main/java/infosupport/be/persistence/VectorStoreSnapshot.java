@@ -0,0 +1,323 @@
+package infosupport.be.persistence;
+
+import infosupport.be.ingestion.EmbeddedBatch;
+import infosupport.be.ingestion.PrecomputedEmbeddingModel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of an ingested vector store, so a restart with the same corpus, splitter and embedding
+ * model restores the store without splitting or embedding anything.
+ * <p>
+ * The snapshot is keyed by a SHA-256 of the corpus content, a description of the splitter, the
+ * embedding model id and the model's dimension; the key is stored in the header and a snapshot with
+ * another key or another vector dimension is ignored.
+ * File layout (little-endian):
+ * <pre>
+ * header:    magic "VSNP" | version | dimension | documents | key length | key (UTF-8) | padding to 4 bytes
+ * vectors:   documents * dimension floats
+ * documents: id | text | metadata entries | per entry: key | type | value   (strings as length + UTF-8)
+ * </pre>
+ * Loading maps the file read-only and copies the vectors out of the mapping in bulk. They reach the
+ * vector store through its {@link PrecomputedEmbeddingModel}, so the embedding model is never called.
+ */
+@Slf4j
+public class VectorStoreSnapshot {
+    private static final int MAGIC = 0x504E5356; // "VSNP" read as a little-endian int
+    private static final int VERSION = 1;
+    private static final int LOAD_BATCH = 1024;
+    private static final byte STRING = 'S';
+    private static final byte INT = 'I';
+    private static final byte LONG = 'L';
+    private static final byte DOUBLE = 'D';
+    private static final byte BOOLEAN = 'B';
+
+    private final Path file;
+    private final String key;
+    private final int dimension;
+
+    private VectorStoreSnapshot(Path file, String key, int dimension) {
+        this.file = file;
+        this.key = key;
+        this.dimension = dimension;
+    }
+
+    /**
+     * @param directory  directory that holds one snapshot file per key
+     * @param corpus     the text that is ingested
+     * @param splitterId describes the splitter and its configuration
+     * @param modelId    identifies the embedding model
+     * @param dimension  the dimension of the model's vectors
+     */
+    public static VectorStoreSnapshot of(Path directory, Resource corpus, String splitterId, String modelId,
+                                         int dimension) {
+        String key = "corpus=" + sha256(corpus) + ";splitter=" + splitterId + ";model=" + modelId
+                + ";dimension=" + dimension;
+        String name = HexFormat.of().formatHex(digest().digest(key.getBytes(StandardCharsets.UTF_8)), 0, 16);
+        return new VectorStoreSnapshot(directory.resolve(name + ".vss"), key, dimension);
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    /**
+     * Adds every snapshotted document to the vector store.
+     *
+     * @return the number of documents restored, or -1 if there is no usable snapshot for this key
+     */
+    public int loadInto(PrecomputedEmbeddingModel embeddingModel, VectorStore vectorStore) {
+        if (!Files.isRegularFile(file)) {
+            return -1;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (mapped.remaining() < 5 * Integer.BYTES || mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+                log.warn("Vector store snapshot {} has another format, ignoring it", file);
+                return -1;
+            }
+            int dimension = mapped.getInt();
+            int count = mapped.getInt();
+            if (dimension != this.dimension) {
+                log.warn("Vector store snapshot {} holds {}-dimensional vectors, the model embeds {}, ignoring it",
+                        file, dimension, this.dimension);
+                return -1;
+            }
+            if (!key.equals(readString(mapped))) {
+                log.warn("Vector store snapshot {} belongs to another corpus, splitter or model, ignoring it", file);
+                return -1;
+            }
+            mapped.position(align(mapped.position()));
+
+            FloatBuffer vectors = mapped.slice(mapped.position(), count * dimension * Float.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            mapped.position(mapped.position() + count * dimension * Float.BYTES);
+            // Decode everything first, so a damaged snapshot leaves the vector store empty
+            List<Document> documents = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                documents.add(readDocument(mapped));
+            }
+            for (int from = 0; from < count; from += LOAD_BATCH) {
+                List<Document> batch = documents.subList(from, Math.min(count, from + LOAD_BATCH));
+                for (Document document : batch) {
+                    float[] vector = new float[dimension];
+                    vectors.get(vector);
+                    embeddingModel.provide(document.getId(), vector);
+                }
+                vectorStore.add(batch);
+            }
+            return count;
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            log.warn("Could not read vector store snapshot {}, ingesting again: {}", file, e.toString());
+            return -1;
+        }
+    }
+
+    /**
+     * @return a recorder to pass the ingested batches to, which writes the snapshot on {@link Recorder#save()}
+     */
+    public Recorder recorder() {
+        return new Recorder();
+    }
+
+    /**
+     * Collects the written documents and vectors of an ingestion run.
+     */
+    public final class Recorder {
+        private final List<Document> documents = new ArrayList<>();
+        private final List<float[]> vectors = new ArrayList<>();
+
+        private Recorder() {
+        }
+
+        public synchronized void record(EmbeddedBatch batch) {
+            documents.addAll(batch.documents());
+            vectors.addAll(batch.vectors());
+        }
+
+        /**
+         * Writes the snapshot to a temporary file and moves it into place, so a crash never leaves
+         * a half-written snapshot behind. Failing to save is logged, the next start ingests again.
+         */
+        public synchronized void save() {
+            if (documents.isEmpty()) {
+                return;
+            }
+            if (vectors.get(0).length != dimension) {
+                log.warn("Not saving vector store snapshot {}: the vectors have {} dimensions instead of {}",
+                        file, vectors.get(0).length, dimension);
+                return;
+            }
+            try {
+                Files.createDirectories(file.getParent());
+                Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+                try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    write(channel, header(vectors.get(0).length));
+                    write(channel, vectorSection());
+                    for (Document document : documents) {
+                        write(channel, encode(document));
+                    }
+                }
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                log.info("Saved a snapshot of {} documents to {}", documents.size(), file);
+            } catch (IOException e) {
+                log.warn("Failed to save vector store snapshot {}: {}", file, e.getMessage());
+            }
+        }
+
+        private ByteBuffer header(int dimension) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate(align(5 * Integer.BYTES + keyBytes.length)).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(dimension).putInt(documents.size())
+                    .putInt(keyBytes.length).put(keyBytes);
+            return header.clear();
+        }
+
+        private ByteBuffer vectorSection() {
+            int dimension = vectors.get(0).length;
+            ByteBuffer section = ByteBuffer.allocate(vectors.size() * dimension * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            FloatBuffer floats = section.asFloatBuffer();
+            for (float[] vector : vectors) {
+                floats.put(vector, 0, dimension);
+            }
+            return section;
+        }
+    }
+
+    private static ByteBuffer encode(Document document) {
+        List<byte[]> strings = new ArrayList<>();
+        strings.add(utf8(document.getId()));
+        strings.add(utf8(document.getText()));
+        int size = 3 * Integer.BYTES + strings.get(0).length + strings.get(1).length;
+        Map<String, Object> metadata = document.getMetadata();
+        for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+            byte[] name = utf8(entry.getKey());
+            strings.add(name);
+            size += Integer.BYTES + name.length + 1;
+            size += switch (entry.getValue()) {
+                case Integer ignored -> Integer.BYTES;
+                case Long ignored -> Long.BYTES;
+                case Double ignored -> Double.BYTES;
+                case Boolean ignored -> 1;
+                case null, default -> {
+                    byte[] value = utf8(String.valueOf(entry.getValue()));
+                    strings.add(value);
+                    yield Integer.BYTES + value.length;
+                }
+            };
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        var encoded = strings.iterator();
+        putString(buffer, encoded.next());
+        putString(buffer, encoded.next());
+        buffer.putInt(metadata.size());
+        for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+            putString(buffer, encoded.next());
+            switch (entry.getValue()) {
+                case Integer number -> buffer.put(INT).putInt(number);
+                case Long number -> buffer.put(LONG).putLong(number);
+                case Double number -> buffer.put(DOUBLE).putDouble(number);
+                case Boolean flag -> buffer.put(BOOLEAN).put((byte) (flag ? 1 : 0));
+                case null, default -> putString(buffer.put(STRING), encoded.next());
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static Document readDocument(ByteBuffer buffer) {
+        String id = readString(buffer);
+        String text = readString(buffer);
+        int entries = buffer.getInt();
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        for (int i = 0; i < entries; i++) {
+            String name = readString(buffer);
+            byte type = buffer.get();
+            metadata.put(name, switch (type) {
+                case INT -> buffer.getInt();
+                case LONG -> buffer.getLong();
+                case DOUBLE -> buffer.getDouble();
+                case BOOLEAN -> buffer.get() != 0;
+                case STRING -> readString(buffer);
+                default -> throw new IndexOutOfBoundsException("Unknown metadata type " + type);
+            });
+        }
+        return new Document(id, text, metadata);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IndexOutOfBoundsException("String of " + length + " bytes at " + buffer.position());
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String sha256(Resource resource) {
+        MessageDigest digest = digest();
+        try (InputStream in = resource.getInputStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to hash " + resource, e);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Keeps the vector section 4-byte aligned inside the mapping
+    private static int align(int position) {
+        return (position + 3) & ~3;
+    }
+}
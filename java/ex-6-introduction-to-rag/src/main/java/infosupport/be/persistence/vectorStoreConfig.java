@@ -1,10 +1,23 @@
 package infosupport.be.persistence;
 
+import infosupport.be.ingestion.CorpusWatcher;
+import infosupport.be.ingestion.EmbeddedBatch;
+import infosupport.be.ingestion.IngestionPipeline;
+import infosupport.be.ingestion.IngestionReport;
+import infosupport.be.ingestion.MappedTextReader;
+import infosupport.be.ingestion.PrecomputedEmbeddingModel;
 import infosupport.be.util.CustomTextSplitter;
+import infosupport.be.util.HashingEmbeddingModel;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.MetadataMode;
 import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.openai.OpenAiEmbeddingModel;
 import org.springframework.ai.reader.TextReader;
+import org.springframework.ai.transformer.splitter.TextSplitter;
 import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+import org.springframework.ai.transformers.TransformersEmbeddingModel;
 import org.springframework.ai.vectorstore.SimpleVectorStore;
 import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.beans.factory.annotation.Value;
@@ -12,6 +25,15 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.io.Resource;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
 @Slf4j
 @Configuration
 public class vectorStoreConfig {
@@ -23,9 +45,44 @@ public class vectorStoreConfig {
     @Value("classpath:rag/dnd_bestiary.txt")
     private Resource bestiary;
 
+    @Value("${embedding.ingestion.workers:0}")
+    private int ingestionWorkers;
+    @Value("${embedding.ingestion.batch-size:32}")
+    private int ingestionBatchSize;
+    @Value("${embedding.ingestion.queue-capacity:256}")
+    private int ingestionQueueCapacity;
+
+    @Value("${embedding.snapshot.enabled:true}")
+    private boolean snapshotEnabled;
+    @Value("${embedding.snapshot.directory:vector-store-snapshots}")
+    private String snapshotDirectory;
+    @Value("${spring.ai.transformers.embedding.model.uri:}")
+    private String transformersModelUri;
+    @Value("${spring.ai.openai.embedding.options.model:}")
+    private String openAiEmbeddingModel;
+    @Value("${spring.ai.azure.openai.embedding.options.deployment-name:}")
+    private String azureEmbeddingDeployment;
+    // The defaults of the Spring AI auto-configuration
+    @Value("${spring.ai.openai.embedding.metadata-mode:EMBED}")
+    private MetadataMode openAiMetadataMode;
+    @Value("${spring.ai.embedding.transformer.metadata-mode:NONE}")
+    private MetadataMode transformersMetadataMode;
+
+    @Value("${embedding.corpus.directory:}")
+    private String corpusDirectory;
+    @Value("${embedding.corpus.pattern:glob:**.txt}")
+    private String corpusPattern;
+    @Value("${embedding.corpus.quiet-period-ms:500}")
+    private long corpusQuietPeriodMillis;
+
+    private CorpusWatcher corpusWatcher;
+
     @Bean
-    public VectorStore vectorStore(EmbeddingModel embeddingModel) {
-        var vectorStore = SimpleVectorStore.builder(embeddingModel).build();
+    public VectorStore vectorStore(EmbeddingModel embeddingModel) throws IOException {
+        /* The ingestion pipeline embeds the chunks on a worker pool; through this model the vector store
+        picks up those vectors instead of embedding every chunk again, one at a time */
+        var precomputedEmbeddingModel = new PrecomputedEmbeddingModel(embeddingModel, embeddedContent(embeddingModel));
+        var vectorStore = SimpleVectorStore.builder(precomputedEmbeddingModel).build();
 
         /* The TokenTextSplitter is a simple text splitter that attempts to retrieve paragraphs up to X amount of tokens before splitting.
         The problem with the TokenTextSplitter is that it has no knowledge of the structure of the text. Meaning it
@@ -36,22 +93,98 @@ public class vectorStoreConfig {
         // var recipesTextSplitter = new CustomTextSplitter("(02) 8188 8722 | HelloFresh.com.au");
         // var bestiaryTextSplitter = new CustomTextSplitter("====");
 
-        log.info("Reading documents from resources");
-        var documents = new TextReader(pokedex).read();
-        // var documents = new TextReader(recipes).read();
-        // var documents = new TextReader(bestiary).read();
-        /* You could also use a PDFReader for this, e.g. implementing a DocumentReader and using Apache PDFBox */
+        var corpus = pokedex;
+        // var corpus = recipes;
+        // var corpus = bestiary;
+        // TextSplitter textSplitter = defaultTextSplitter;
+        TextSplitter textSplitter = pokemonTextSplitter;
+        // TextSplitter textSplitter = recipesTextSplitter;
+        // TextSplitter textSplitter = bestiaryTextSplitter;
+
+        /* Read -> split -> embed -> write, with the stages running concurrently and bounded queues in between */
+        var pipeline = new IngestionPipeline(precomputedEmbeddingModel, vectorStore,
+                ingestionWorkers, ingestionBatchSize, ingestionQueueCapacity);
 
-        log.info("Splitting documents");
-        // var chunks = new TokenTextSplitter().transform(documents);
-        var chunks = pokemonTextSplitter.transform(documents);
-        // var chunks = recipesTextSplitter.transform(documents);
-        // var chunks = bestiaryTextSplitter.transform(documents);
+        /* Alternatively, ingest a directory and keep the store in sync with it: only changed chunks are embedded again */
+        if (!corpusDirectory.isBlank()) {
+            corpusWatcher = new CorpusWatcher(Path.of(corpusDirectory), corpusPattern, textSplitter, pipeline,
+                    vectorStore, Duration.ofMillis(corpusQuietPeriodMillis));
+            corpusWatcher.start();
+            return vectorStore;
+        }
 
-        // Ingest the split document chunks into the vector store
-        log.info("Ingesting {} chunks into the vector store", chunks.size());
-        vectorStore.write(chunks);
+        /* A restart with the same corpus, splitter and model restores the previous run from a snapshot, without embedding */
+        var snapshot = snapshotEnabled
+                ? VectorStoreSnapshot.of(Path.of(snapshotDirectory), corpus, splitterId(textSplitter),
+                        modelId(embeddingModel), embeddingModel.dimensions())
+                : null;
+        if (snapshot != null) {
+            long start = System.nanoTime();
+            int restored = snapshot.loadInto(precomputedEmbeddingModel, vectorStore);
+            if (restored >= 0) {
+                log.info("Restored {} chunks from snapshot {} in {} ms",
+                        restored, snapshot.file(), (System.nanoTime() - start) / 1_000_000);
+                return vectorStore;
+            }
+        }
+
+        /* You could also use a PDFReader for this, e.g. implementing a DocumentReader and using Apache PDFBox */
+        log.info("Ingesting documents into the vector store");
+        var recorder = snapshot == null ? null : snapshot.recorder();
+        Consumer<EmbeddedBatch> onWritten = batch -> {
+            if (recorder != null) {
+                recorder.record(batch);
+            }
+        };
+        IngestionReport report;
+        if (textSplitter instanceof CustomTextSplitter customTextSplitter && corpus.isFile()) {
+            /* The custom splitter can split a memory-mapped file while reading it, chunk by chunk, instead of
+            reading the whole corpus into memory first */
+            var chunks = new MappedTextReader(corpus.getFile().toPath(), customTextSplitter).stream();
+            report = pipeline.ingest(chunks, chunk -> List.of(chunk), onWritten);
+        } else {
+            var documents = new TextReader(corpus).read();
+            report = pipeline.ingest(documents.stream(), textSplitter, onWritten);
+        }
+        log.info("\n{}", report.format());
+        if (recorder != null) {
+            recorder.save();
+        }
 
         return vectorStore;
     }
+
+    @PreDestroy
+    public void stopWatching() {
+        if (corpusWatcher != null) {
+            corpusWatcher.close();
+        }
+    }
+
+    // What the model's own embed(Document) embeds, so batched chunks get the same vectors as single ones
+    private Function<Document, String> embeddedContent(EmbeddingModel embeddingModel) {
+        if (embeddingModel instanceof OpenAiEmbeddingModel) {
+            return document -> document.getFormattedContent(openAiMetadataMode);
+        }
+        if (embeddingModel instanceof TransformersEmbeddingModel) {
+            return document -> document.getFormattedContent(transformersMetadataMode);
+        }
+        return Document::getText;
+    }
+
+    // The splitters have no configuration to compare, except for the separators of the custom one
+    private static String splitterId(TextSplitter textSplitter) {
+        return textSplitter instanceof CustomTextSplitter ? textSplitter.toString() : textSplitter.getClass().getName();
+    }
+
+    // The class alone does not tell which model it calls, so the configured model names are part of the id
+    private String modelId(EmbeddingModel embeddingModel) {
+        if (embeddingModel instanceof HashingEmbeddingModel hashingModel) {
+            return hashingModel.modelName();
+        }
+        String modelName = Stream.of(openAiEmbeddingModel, azureEmbeddingDeployment, transformersModelUri)
+                .filter(name -> !name.isBlank())
+                .collect(Collectors.joining(","));
+        return embeddingModel.getClass().getName() + "@" + modelName;
+    }
 }
@@ -2,96 +2,322 @@ package infosupport.be.util;
 
 import org.springframework.ai.transformer.splitter.TextSplitter;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Custom text splitter that splits text based on a list of separators.
  * Generated by ChatGPT
+ * <p>
+ * All separators are matched in one scan of the text by an Aho–Corasick automaton, so splitting takes
+ * linear time however many separators there are, and chunks are only copied once they are known.
  */
 public class CustomTextSplitter extends TextSplitter {
 
     private final List<String> separators;
+    private final int[] separatorLengths;
+    private final Matcher matcher;
 
     public CustomTextSplitter(List<String> separators) {
-        this.separators = separators;
+        // An empty separator would match everywhere
+        this.separators = separators.stream().filter(separator -> !separator.isEmpty()).toList();
+        this.separatorLengths = this.separators.stream().mapToInt(String::length).toArray();
+        this.matcher = new Matcher(this.separators);
     }
     public CustomTextSplitter(String separator) {
-        this.separators = new ArrayList<>();
-        this.separators.add(separator);
+        this(List.of(separator));
+    }
+
+    @Override
+    public String toString() {
+        return "CustomTextSplitter" + separators;
     }
 
     protected List<String> splitText(String text) {
         List<String> chunks = new ArrayList<>();
-        int index = 0;
+        split(text, (start, end) -> chunks.add(text.substring(start, end)));
+        return chunks;
+    }
 
-        while (index < text.length()) {
-            boolean startsWithSeparator = false;
-            String currentSeparator = null;
+    /**
+     * Receives the offsets of a chunk, as {@code [start, end)} into the split text.
+     */
+    @FunctionalInterface
+    public interface ChunkConsumer {
+        void accept(int start, int end);
+    }
 
-            // Check if the current index starts with any of the separators
-            for (String separator : separators) {
-                if (text.startsWith(separator, index)) {
-                    startsWithSeparator = true;
-                    currentSeparator = separator;
-                    break;
+    /**
+     * Splits the text in a single pass and reports every chunk as offsets, so the caller decides whether
+     * to copy it. A chunk starts at a separator and runs up to the next separator that starts after the end
+     * of this one; chunks are trimmed, empty chunks are skipped. When several separators start at the same
+     * position, the first one in the list wins.
+     */
+    public void split(CharSequence text, ChunkConsumer consumer) {
+        int length = text.length();
+        Scan scan = new Scan();
+        int chunkStart = 0;
+        for (int position = 0; position < length + matcher.window - 1; position++) {
+            int boundary = (int) (position < length ? scan.next(text.charAt(position)) : scan.end());
+            if (boundary >= 0) {
+                emit(text, chunkStart, boundary, consumer);
+                chunkStart = boundary;
+            }
+        }
+        emit(text, chunkStart, length, consumer);
+    }
+
+    /**
+     * Splits the text as it is read, for corpora too large to hold as one string: only the chunk being
+     * read is buffered. The chunks are the same as {@link #splitText}'s. The stream reads lazily and
+     * closes the reader when it is closed; read errors surface as {@link UncheckedIOException}.
+     */
+    public Stream<String> split(Reader reader) {
+        Iterator<String> chunks = new Iterator<>() {
+            private final char[] block = new char[8192];
+            private final Scan scan = new Scan();
+            private final Deque<String> ready = new ArrayDeque<>();
+            // The text from the start of the current chunk, which is at offset bufferStart of the whole text
+            private final StringBuilder buffer = new StringBuilder();
+            private long bufferStart;
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                while (ready.isEmpty() && !done) {
+                    fill();
                 }
+                return !ready.isEmpty();
             }
 
-            if (startsWithSeparator) {
-                // Current index starts with a separator
-                // Find the next separator after the current one
-                int nextIndex = -1;
-                for (String separator : separators) {
-                    int separatorIndex = text.indexOf(separator, index + currentSeparator.length());
-                    if (separatorIndex != -1 && (nextIndex == -1 || separatorIndex < nextIndex)) {
-                        nextIndex = separatorIndex;
-                    }
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
+                return ready.poll();
+            }
 
-                if (nextIndex != -1) {
-                    // Extract chunk from current index to next separator
-                    String chunk = text.substring(index, nextIndex).trim();
-                    if (!chunk.isEmpty()) {
-                        chunks.add(chunk);
+            private void fill() {
+                int read;
+                try {
+                    read = reader.read(block);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (read < 0) {
+                    // Settle the separators that may still start in the last characters
+                    for (int i = 1; i < matcher.window; i++) {
+                        accept(scan.end());
                     }
-                    index = nextIndex;
-                } else {
-                    // No more separators; add the rest of the text
-                    String chunk = text.substring(index).trim();
-                    if (!chunk.isEmpty()) {
-                        chunks.add(chunk);
+                    emit(buffer, 0, buffer.length(), (start, end) -> ready.add(buffer.substring(start, end)));
+                    done = true;
+                    return;
+                }
+                for (int i = 0; i < read; i++) {
+                    buffer.append(block[i]);
+                    accept(scan.next(block[i]));
+                }
+            }
+
+            private void accept(long boundary) {
+                if (boundary >= 0) {
+                    int length = (int) (boundary - bufferStart);
+                    emit(buffer, 0, length, (start, end) -> ready.add(buffer.substring(start, end)));
+                    buffer.delete(0, length);
+                    bufferStart = boundary;
+                }
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(chunks, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
                     }
-                    break;
+                });
+    }
+
+    private static void emit(CharSequence text, int start, int end, ChunkConsumer consumer) {
+        // Same whitespace as String.trim()
+        while (start < end && text.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (start < end) {
+            consumer.accept(start, end);
+        }
+    }
+
+    /**
+     * Feeds the text through the matcher one character at a time and tells where chunks start.
+     */
+    private final class Scan {
+        // The first separator in the list that starts at each of the last offsets, or -1
+        private final int[] pending = new int[matcher.window];
+        private int state;
+        private long position;
+        // A separator starting before this offset overlaps the previous one and is not a boundary
+        private long nextAllowed;
+
+        Scan() {
+            Arrays.fill(pending, -1);
+        }
+
+        /**
+         * @return the offset where a chunk starts, if one is known now, or -1
+         */
+        long next(char c) {
+            state = matcher.next(state, c);
+            for (int separator : matcher.outputs[state]) {
+                int slot = (int) ((position - separatorLengths[separator] + 1) % pending.length);
+                if (pending[slot] < 0 || separator < pending[slot]) {
+                    pending[slot] = separator;
                 }
-            } else {
-                // Current index does not start with a separator
-                // Find the next separator
-                int nextIndex = -1;
-                for (String separator : separators) {
-                    int separatorIndex = text.indexOf(separator, index);
-                    if (separatorIndex != -1 && (nextIndex == -1 || separatorIndex < nextIndex)) {
-                        nextIndex = separatorIndex;
+            }
+            return settle();
+        }
+
+        /**
+         * Advances past the end of the text; call it {@code window - 1} times to settle all offsets.
+         */
+        long end() {
+            return settle();
+        }
+
+        // No separator that starts window - 1 characters back can still be found, so that offset is final
+        private long settle() {
+            long settled = position++ - pending.length + 1;
+            if (settled < 0) {
+                return -1;
+            }
+            int slot = (int) (settled % pending.length);
+            int separator = pending[slot];
+            pending[slot] = -1;
+            if (separator < 0 || settled < nextAllowed) {
+                return -1;
+            }
+            nextAllowed = settled + separatorLengths[separator];
+            return settled;
+        }
+    }
+
+    /**
+     * Aho–Corasick automaton over all separators, as a dense transition table: one step per character,
+     * however many separators there are. Characters that occur in no separator share one column.
+     * Matches are reported by their end, so a {@link Scan} collects their starts in a ring buffer as wide
+     * as the longest separator until no later match can start there. Immutable, so shared between threads.
+     */
+    private static final class Matcher {
+        final int[][] outputs;
+        final int window;
+        private final int[] transitions;
+        private final int columns;
+        private final int[] columnOf;
+
+        Matcher(List<String> separators) {
+            int maxChar = 0;
+            int maxLength = 1;
+            for (String separator : separators) {
+                maxLength = Math.max(maxLength, separator.length());
+                for (int i = 0; i < separator.length(); i++) {
+                    maxChar = Math.max(maxChar, separator.charAt(i));
+                }
+            }
+            columnOf = new int[maxChar + 1];
+            int distinct = 0;
+            for (String separator : separators) {
+                for (int i = 0; i < separator.length(); i++) {
+                    if (columnOf[separator.charAt(i)] == 0) {
+                        columnOf[separator.charAt(i)] = ++distinct;
                     }
                 }
+            }
+            columns = distinct + 1;
 
-                if (nextIndex != -1) {
-                    // Extract chunk up to the next separator
-                    String chunk = text.substring(index, nextIndex).trim();
-                    if (!chunk.isEmpty()) {
-                        chunks.add(chunk);
+            // The trie, with -1 for missing edges
+            List<int[]> edges = new ArrayList<>();
+            List<List<Integer>> matches = new ArrayList<>();
+            edges.add(newRow());
+            matches.add(new ArrayList<>());
+            for (int index = 0; index < separators.size(); index++) {
+                String separator = separators.get(index);
+                int node = 0;
+                for (int i = 0; i < separator.length(); i++) {
+                    int column = columnOf[separator.charAt(i)];
+                    if (edges.get(node)[column] < 0) {
+                        edges.get(node)[column] = edges.size();
+                        edges.add(newRow());
+                        matches.add(new ArrayList<>());
                     }
-                    index = nextIndex;
-                } else {
-                    // No more separators; add the rest of the text
-                    String chunk = text.substring(index).trim();
-                    if (!chunk.isEmpty()) {
-                        chunks.add(chunk);
+                    node = edges.get(node)[column];
+                }
+                matches.get(node).add(index);
+            }
+
+            // Breadth-first: follow failure links to complete the transitions and inherit their matches
+            int states = edges.size();
+            transitions = new int[states * columns];
+            int[] failure = new int[states];
+            outputs = new int[states][];
+            int[] queue = new int[states];
+            int head = 0;
+            int tail = 0;
+            for (int column = 0; column < columns; column++) {
+                int child = edges.get(0)[column];
+                transitions[column] = Math.max(child, 0);
+                if (child > 0) {
+                    queue[tail++] = child;
+                }
+            }
+            outputs[0] = new int[0];
+            while (head < tail) {
+                int node = queue[head++];
+                List<Integer> found = matches.get(node);
+                for (int inherited : outputs[failure[node]]) {
+                    found.add(inherited);
+                }
+                outputs[node] = found.stream().mapToInt(Integer::intValue).toArray();
+                for (int column = 0; column < columns; column++) {
+                    int child = edges.get(node)[column];
+                    int fallback = transitions[failure[node] * columns + column];
+                    if (child > 0) {
+                        failure[child] = fallback;
+                        transitions[node * columns + column] = child;
+                        queue[tail++] = child;
+                    } else {
+                        transitions[node * columns + column] = fallback;
                     }
-                    break;
                 }
             }
+
+            window = maxLength;
+        }
+
+        private int[] newRow() {
+            int[] row = new int[columns];
+            Arrays.fill(row, -1);
+            return row;
+        }
+
+        int next(int state, char c) {
+            int column = c < columnOf.length ? columnOf[c] : 0;
+            return transitions[state * columns + column];
         }
-        return chunks;
     }
-}
\ No newline at end of file
+}
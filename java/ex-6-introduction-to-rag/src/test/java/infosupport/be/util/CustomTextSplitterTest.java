@@ -0,0 +1,168 @@
+package infosupport.be.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the single-pass splitter against the straightforward splitter it replaced, which looks for every
+ * separator at every position.
+ */
+class CustomTextSplitterTest {
+    private static final String ALPHABET = "ab#.\n ";
+
+    @Test
+    void overlappingSeparators() {
+        assertSameChunks(List.of("aba", "ba"), "xababa y aba aba ababab z");
+        assertSameChunks(List.of("aa"), "aaaaa b aaa c aa");
+        assertSameChunks(List.of("ab", "ba"), "abababa x bab");
+    }
+
+    @Test
+    void separatorsSharingAPrefix() {
+        assertSameChunks(List.of("\n\n", "\n", "\n#"), "intro\n# title\n\nbody\nline\n\n\n## sub\nend");
+        assertSameChunks(List.of("\n#", "\n"), "intro\n# title\n\nbody\nline\n## sub\nend");
+        assertSameChunks(List.of("a", "ab", "abc"), "xabcyabz abc a");
+        assertSameChunks(List.of("abc", "ab", "a"), "xabcyabz abc a");
+    }
+
+    @Test
+    void separatorsAtStartAndEnd() {
+        assertSameChunks(List.of("##"), "## first ## second ##");
+        assertSameChunks(List.of("##", "#"), "#first#second##");
+        assertSameChunks(List.of("."), ".");
+        assertSameChunks(List.of("..."), "..");
+    }
+
+    @Test
+    void emptySeparatorsAreIgnored() {
+        assertSameChunks(List.of("", "."), "one. two. three.");
+        assertSameChunks(List.of(""), "  the whole text  ");
+        assertEquals(List.of(), split(List.of("", "."), ""));
+    }
+
+    @Test
+    void randomTexts() {
+        Random random = new Random(24);
+        for (int i = 0; i < 5_000; i++) {
+            assertSameChunks(randomSeparators(random), randomText(random, random.nextInt(60)));
+        }
+    }
+
+    @Test
+    void readerMatchesSplitText() {
+        Random random = new Random(25);
+        for (int i = 0; i < 500; i++) {
+            List<String> separators = randomSeparators(random);
+            String text = randomText(random, random.nextInt(200));
+            CustomTextSplitter splitter = new CustomTextSplitter(separators);
+            assertEquals(splitter.splitText(text), read(splitter, new StringReader(text)),
+                    () -> "separators " + separators + ", text " + text);
+            assertEquals(splitter.splitText(text), read(splitter, new TrickleReader(text, 1 + random.nextInt(3))),
+                    () -> "separators " + separators + ", text " + text + ", read in small blocks");
+        }
+    }
+
+    @Test
+    void readerMatchesSplitTextAcrossBlocks() {
+        // Longer than the reader's block, with separators straddling the block boundaries
+        Random random = new Random(26);
+        List<String> separators = List.of("\n\n", "\n#", "ab#");
+        String text = randomText(random, 50_000);
+        CustomTextSplitter splitter = new CustomTextSplitter(separators);
+        assertEquals(splitter.splitText(text), read(splitter, new StringReader(text)));
+        assertEquals(reference(separators, text), splitter.splitText(text));
+    }
+
+    private static void assertSameChunks(List<String> separators, String text) {
+        assertEquals(reference(separators, text), split(separators, text),
+                () -> "separators " + separators + ", text " + text);
+    }
+
+    private static List<String> split(List<String> separators, String text) {
+        return new CustomTextSplitter(separators).splitText(text);
+    }
+
+    private static List<String> read(CustomTextSplitter splitter, Reader reader) {
+        try (Stream<String> chunks = splitter.split(reader)) {
+            return chunks.toList();
+        }
+    }
+
+    private static List<String> randomSeparators(Random random) {
+        List<String> separators = new ArrayList<>();
+        int count = 1 + random.nextInt(4);
+        for (int i = 0; i < count; i++) {
+            separators.add(randomText(random, random.nextInt(4)));
+        }
+        return separators;
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return text.toString();
+    }
+
+    /**
+     * The splitter before the single-pass scan, minus empty separators, on which it never terminated.
+     */
+    private static List<String> reference(List<String> separators, String text) {
+        separators = separators.stream().filter(separator -> !separator.isEmpty()).toList();
+        List<String> chunks = new ArrayList<>();
+        int index = 0;
+        while (index < text.length()) {
+            String currentSeparator = null;
+            for (String separator : separators) {
+                if (text.startsWith(separator, index)) {
+                    currentSeparator = separator;
+                    break;
+                }
+            }
+            int from = currentSeparator == null ? index : index + currentSeparator.length();
+            int nextIndex = -1;
+            for (String separator : separators) {
+                int separatorIndex = text.indexOf(separator, from);
+                if (separatorIndex != -1 && (nextIndex == -1 || separatorIndex < nextIndex)) {
+                    nextIndex = separatorIndex;
+                }
+            }
+            String chunk = text.substring(index, nextIndex == -1 ? text.length() : nextIndex).trim();
+            if (!chunk.isEmpty()) {
+                chunks.add(chunk);
+            }
+            if (nextIndex == -1) {
+                break;
+            }
+            index = nextIndex;
+        }
+        return chunks;
+    }
+
+    /**
+     * Hands out at most a few characters per read, like a slow stream.
+     */
+    private static final class TrickleReader extends StringReader {
+        private final int maxRead;
+
+        TrickleReader(String text, int maxRead) {
+            super(text);
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            return super.read(buffer, offset, Math.min(length, maxRead));
+        }
+    }
+}